@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of command and argument encoding in AbstractPowerHellImpl.
+ * The benchmark is in the same package to be able to call protected methods.
+ * 
+ * @author semancik
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+	
+	private static final String COMMAND = "Set-ADUser";
+	
+	@Param({ "1", "10", "100" })
+	private int argumentCount;
+	
+	@Param({ "16", "256" })
+	private int valueLength;
+	
+	private AbstractPowerHellImpl powerHell;
+	private Map<String,Object> arguments;
+	private String script;
+	private String value;
+
+	@Setup
+	public void setup() {
+		powerHell = new BenchmarkPowerHell();
+		powerHell.setArgumentStyle(ArgumentStyle.VARIABLES);
+		arguments = new LinkedHashMap<>();
+		for (int i = 0; i < argumentCount; i++) {
+			arguments.put("argument" + i, createValue(i));
+		}
+		value = createValue(0);
+		script = powerHell.createPowerShellScripWithArguments(COMMAND, arguments);
+	}
+	
+	/**
+	 * Value with some single quotes that need to be escaped.
+	 */
+	private String createValue(int seed) {
+		StringBuilder sb = new StringBuilder(valueLength);
+		for (int i = 0; i < valueLength; i++) {
+			if ((i + seed) % 13 == 0) {
+				sb.append('\'');
+			} else {
+				sb.append((char)('a' + (i + seed) % 26));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Benchmark
+	public String createPowerShellScripWithArguments() {
+		return powerHell.createPowerShellScripWithArguments(COMMAND, arguments);
+	}
+
+	@Benchmark
+	public String encodePowerShellVariablesAndCommandToString() {
+		return powerHell.encodePowerShellVariablesAndCommandToString(COMMAND, arguments);
+	}
+
+	@Benchmark
+	public String encodeUtf16Base64() {
+		return powerHell.encodeUtf16Base64(script);
+	}
+
+	@Benchmark
+	public String encodePowerShellToString() {
+		return powerHell.encodePowerShellToString(COMMAND, arguments);
+	}
+
+	@Benchmark
+	public String quoteSingle() {
+		return powerHell.quoteSingle(value);
+	}
+	
+	private static class BenchmarkPowerHell extends AbstractPowerHellImpl {
+
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public int disconnect() {
+			return 0;
+		}
+
+		@Override
+		public String getImplementationName() {
+			return "Benchmark";
+		}
+
+		@Override
+		protected void executeCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr,
+				PowerHellCommandMetrics metrics) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of loop output parsing. Synthetic transcript of one command
+ * output is split to chunks (as received from WinRM) and parsed.
+ * 
+ * @author semancik
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopParserBenchmark {
+	
+	private static final String PROMPT = PowerHellWinRmLoopImpl.PROMPT;
+	private static final String LINE = "DistinguishedName : CN=Jack Sparrow,OU=Pirates,DC=example,DC=com\r\n";
+	
+	@Param({ "1000", "100000", "1000000" })
+	private int transcriptLength;
+	
+	@Param({ "4096" })
+	private int chunkSize;
+	
+	private List<String> promptChunks;
+	private List<String> framedChunks;
+
+	@Setup
+	public void setup() {
+		StringBuilder output = new StringBuilder();
+		while (output.length() < transcriptLength) {
+			output.append(LINE);
+		}
+		promptChunks = split(output + PROMPT + "\r\n");
+		
+		StringBuilder framed = new StringBuilder();
+		int position = 0;
+		while (position < output.length()) {
+			int end = Math.min(position + LINE.length(), output.length());
+			framed.append('O').append(end - position).append(':').append(output, position, end);
+			position = end;
+		}
+		framed.append("Z0:");
+		framedChunks = split(framed.toString());
+	}
+	
+	private List<String> split(String transcript) {
+		List<String> chunks = new ArrayList<>();
+		for (int i = 0; i < transcript.length(); i += chunkSize) {
+			chunks.add(transcript.substring(i, Math.min(i + chunkSize, transcript.length())));
+		}
+		return chunks;
+	}
+
+	@Benchmark
+	public void promptParser(Blackhole blackhole) throws PowerHellExecutionException {
+		PowerHellLoopParser parser = new PowerHellPromptLoopParser(PROMPT, new BlackholeHandler(blackhole));
+		for (String chunk : promptChunks) {
+			parser.parse(chunk);
+		}
+	}
+
+	@Benchmark
+	public void framedParser(Blackhole blackhole) throws PowerHellExecutionException {
+		PowerHellLoopParser parser = new PowerHellFramedLoopParser(new BlackholeHandler(blackhole));
+		for (String chunk : framedChunks) {
+			parser.parse(chunk);
+		}
+	}
+	
+	private static class BlackholeHandler implements PowerHellLoopParser.Handler {
+		
+		private final Blackhole blackhole;
+
+		BlackholeHandler(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void output(String data) {
+			blackhole.consume(data);
+		}
+
+		@Override
+		public void end(String errorMessage) {
+			blackhole.consume(errorMessage);
+		}
+
+		@Override
+		public void inputRequest() {
+			blackhole.consume(true);
+		}
+	}
+}
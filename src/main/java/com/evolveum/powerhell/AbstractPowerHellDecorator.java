@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Base for PowerHell implementations that add functionality (caching, throttling, etc.)
+ * to other PowerHell implementation. All the operations are passed to the delegate,
+ * subclasses override what they need. Decorators can be stacked.
+ * </p>
+ *
+ * @author semancik
+ */
+public abstract class AbstractPowerHellDecorator implements PowerHell {
+
+	// Configuration
+	private PowerHell delegate;
+
+	protected AbstractPowerHellDecorator() {
+	}
+
+	protected AbstractPowerHellDecorator(PowerHell delegate) {
+		this.delegate = delegate;
+	}
+
+	public PowerHell getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * PowerHell that executes the commands.
+	 */
+	public void setDelegate(PowerHell delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void connect() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		delegate.connect();
+	}
+
+	@Override
+	public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		return delegate.runCommand(command, arguments);
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		delegate.runCommand(command, arguments, stdout, stderr);
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		delegate.runCommand(command, arguments, stdin, stdout, stderr);
+	}
+
+	@Override
+	public void runCommandForObjects(String command, Map<String, Object> arguments, Consumer<Object> consumer) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		delegate.runCommandForObjects(command, arguments, consumer);
+	}
+
+	@Override
+	public CompletableFuture<String> runCommandAsync(String command, Map<String, Object> arguments) {
+		return delegate.runCommandAsync(command, arguments);
+	}
+
+	@Override
+	public int disconnect() {
+		return delegate.disconnect();
+	}
+
+	@Override
+	public String getImplementationName() {
+		return delegate.getImplementationName();
+	}
+
+}
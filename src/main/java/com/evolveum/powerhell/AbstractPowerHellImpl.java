@@ -16,15 +16,23 @@
 package com.evolveum.powerhell;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringWriter;
-import java.nio.charset.Charset;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import javax.net.ssl.HostnameVerifier;
-import javax.xml.bind.DatatypeConverter;
 
 import org.apache.cxf.interceptor.Fault;
 import org.slf4j.Logger;
@@ -47,7 +55,24 @@ public abstract class AbstractPowerHellImpl implements PowerHell {
 	private static final String POWERSHELL_COMMAND = "powershell";
 	private static final String POWERSHELL_ENCODED_COMMAND_PARAM = "-EncodedCommand";
 	
+	private static final long ASYNC_THREAD_KEEP_ALIVE = 60L;
+	private static final int COMPRESSED_CHUNK_SIZE = 49152;
+	
+	/**
+	 * PowerShell function that provides command input in the PowerShell implementations.
+	 */
+	public static final String INPUT_FUNCTION = "Read-PowerHellInput";
+	static final String INPUT_REQUEST_MESSAGE = "input";
+	private static final String INPUT_END_MESSAGE = "eof";
+	private static final String EXEC_INPUT_PROMPT = PowerHellWinRmLoopImpl.PROMPT;
+	
 	private ArgumentStyle argumentStyle;
+	private Executor asyncExecutor;
+	private int jsonDepth = 2;
+	private PowerHellListener listener;
+	private long commandTimeout = 0;
+	private boolean outputCompression = false;
+	private int inputChunkSize = 32768;
 		
 	public ArgumentStyle getArgumentStyle() {
 		return argumentStyle;
@@ -57,6 +82,236 @@ public abstract class AbstractPowerHellImpl implements PowerHell {
 		this.argumentStyle = argumentStyle;
 	}
 
+	/**
+	 * Executor used by runCommandAsync(). If not set, a single-thread executor is created on demand.
+	 * PowerHell implementations are not thread-safe, therefore single-thread executor
+	 * (or other executor that runs the tasks sequentially) should be used.
+	 * The exception are implementations that can run several commands at once.
+	 */
+	public synchronized Executor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			int threads = getAsyncThreads();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, ASYNC_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<>(), runnable -> {
+						Thread thread = new Thread(runnable, "PowerHell " + getImplementationName());
+						thread.setDaemon(true);
+						return thread;
+					});
+			// Do not keep idle thread, there may be a lot of PowerHell instances.
+			executor.allowCoreThreadTimeOut(true);
+			asyncExecutor = executor;
+		}
+		return asyncExecutor;
+	}
+
+	public synchronized void setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+	}
+	
+	/**
+	 * Number of threads of default async executor. This is the number of commands
+	 * that the implementation can safely execute at the same time.
+	 */
+	protected int getAsyncThreads() {
+		return 1;
+	}
+
+	public int getJsonDepth() {
+		return jsonDepth;
+	}
+
+	/**
+	 * Depth of objects serialized by runCommandForObjects() (-Depth parameter of ConvertTo-Json).
+	 */
+	public void setJsonDepth(int jsonDepth) {
+		this.jsonDepth = jsonDepth;
+	}
+
+	public PowerHellListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Listener that receives metrics of executions (timing, sizes, reconnects, etc.)
+	 */
+	public void setListener(PowerHellListener listener) {
+		this.listener = listener;
+	}
+	
+	public long getCommandTimeout() {
+		return commandTimeout;
+	}
+
+	/**
+	 * Maximum time (in milliseconds) to wait for a command to finish.
+	 * The command is terminated when it does not finish in time.
+	 * Zero means wait forever.
+	 */
+	public void setCommandTimeout(long commandTimeout) {
+		this.commandTimeout = commandTimeout;
+	}
+	
+	public boolean isOutputCompression() {
+		return outputCompression;
+	}
+
+	/**
+	 * If set to true, output of the commands is compressed on the remote side and
+	 * decompressed as it is received. This is useful for commands with large output
+	 * on slow links. Stderr is not compressed.
+	 * Warning, verbose, debug and information streams (e.g. Write-Host) are redirected
+	 * to the compressed output, which requires PowerShell 5.0 or later. Text that is
+	 * written directly to the console (e.g. [Console]::Write) bypasses the compression
+	 * and makes the output undecodable, such commands cannot be used with compression.
+	 * This works only for implementations that execute commands in PowerShell.
+	 */
+	public void setOutputCompression(boolean outputCompression) {
+		this.outputCompression = outputCompression;
+	}
+	
+	public int getInputChunkSize() {
+		return inputChunkSize;
+	}
+
+	/**
+	 * Maximum number of characters of command input that are sent at once.
+	 * Next chunk is sent only after the command has asked for it.
+	 */
+	public void setInputChunkSize(int inputChunkSize) {
+		this.inputChunkSize = inputChunkSize;
+	}
+	
+	/**
+	 * Endpoint that is used to execute the commands. Used for metrics and diagnostics.
+	 */
+	public String getEndpoint() {
+		return "local";
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		runCommand(command, arguments, null, stdout, stderr);
+	}
+	
+	/**
+	 * Runs the command and feeds it with data read from stdin. The data are read and sent
+	 * in chunks, therefore large input does not need to be kept in memory.
+	 * PowerShell implementations (loop and exec) provide the data to the command by
+	 * Read-PowerHellInput function, which returns the input as a sequence of lines, e.g.
+	 * <pre>
+	 * Read-PowerHellInput | ConvertFrom-Csv | ForEach-Object { ... }
+	 * </pre>
+	 * Local execution of other commands passes the data to stdin of the process as they are.
+	 * Implementations that cannot send input fail with PowerHellExecutionException.
+	 */
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (!outputCompression) {
+			runCommandWithMetrics(command, arguments, stdin, stdout, stderr);
+			return;
+		}
+		String psScript = createCompressedOutputScript(createPowerShellScripWithArguments(command, arguments));
+		PowerHellInflatingWriter inflatingWriter = new PowerHellInflatingWriter(stdout);
+		// Arguments are already part of the script
+		boolean success = false;
+		try {
+			runCommandWithMetrics(psScript, Collections.emptyMap(), stdin, inflatingWriter, stderr);
+			success = true;
+		} finally {
+			// Inflater has to be released even if the command fails
+			try {
+				inflatingWriter.close();
+			} catch (IOException e) {
+				if (success) {
+					throw new PowerHellExecutionException("Error decompressing command output: " + e.getMessage(), e);
+				}
+				LOG.debug("Error decompressing output of failed command: {}", e.getMessage());
+			}
+		}
+	}
+	
+	private void runCommandWithMetrics(String command, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		PowerHellCommandMetrics metrics = startCommandMetrics();
+		try {
+			executeCommand(command, arguments, stdin, metrics.countingWriter(stdout), metrics.countingWriter(stderr), metrics);
+			metrics.markEnd(true);
+		} finally {
+			finishCommandMetrics(metrics);
+		}
+	}
+	
+	/**
+	 * Executes the command, writing output to the writers as it arrives.
+	 * Implementation should mark the time when the command was sent in the metrics.
+	 * Received output is counted by the writers.
+	 */
+	protected abstract void executeCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) 
+			throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException;
+	
+	/**
+	 * Executes the command with input. Implementations that can send input to the command
+	 * should override this method. Input is null if there is no input.
+	 * Default implementation fails if there is any input.
+	 */
+	protected void executeCommand(String command, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) 
+			throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (stdin != null) {
+			throw new PowerHellExecutionException(getImplementationName() + " does not support command input");
+		}
+		executeCommand(command, arguments, stdout, stderr, metrics);
+	}
+
+	@Override
+	public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		StringWriter writerStdOut = new StringWriter();
+		StringWriter writerStdErr = new StringWriter();
+		try {
+			runCommand(command, arguments, writerStdOut, writerStdErr);
+		} catch (PowerHellExecutionException e) {
+			if (e.getStdout() == null) {
+				e.setStdout(writerStdOut.toString());
+			}
+			if (e.getStderr() == null) {
+				e.setStderr(writerStdErr.toString());
+			}
+			throw e;
+		}
+		return writerStdOut.toString();
+	}
+
+	/**
+	 * Objects are serialized to JSON on the remote side (one object per line)
+	 * and they are parsed as soon as they arrive.
+	 * This works only for implementations that execute commands in PowerShell.
+	 */
+	@Override
+	public void runCommandForObjects(String command, Map<String, Object> arguments, Consumer<Object> consumer) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		String psScript = createStructuredScript(createPowerShellScripWithArguments(command, arguments));
+		StringWriter writerStdErr = new StringWriter();
+		PowerHellObjectWriter objectWriter = new PowerHellObjectWriter(consumer);
+		try {
+			// Arguments are already part of the script
+			runCommand(psScript, Collections.emptyMap(), objectWriter, writerStdErr);
+		} catch (PowerHellExecutionException e) {
+			if (e.getStderr() == null) {
+				e.setStderr(writerStdErr.toString());
+			}
+			throw e;
+		}
+		objectWriter.close();
+		try {
+			objectWriter.checkParseErrors();
+		} catch (PowerHellExecutionException e) {
+			e.setStderr(writerStdErr.toString());
+			throw e;
+		}
+	}
+
+	@Override
+	public CompletableFuture<String> runCommandAsync(String command, Map<String, Object> arguments) {
+		return runCommandAsync(command, arguments, getAsyncExecutor());
+	}
+
 	protected void processFault(String message, Fault e) throws PowerHellSecurityException, PowerHellCommunicationException {
 		// Fault does not have useful information on its own. Try to mine out something useful.
 		Throwable cause = e.getCause();
@@ -69,24 +324,29 @@ public abstract class AbstractPowerHellImpl implements PowerHell {
 	}
 		
 	protected String encodeUtf16Base64(String command) {
-		byte[] bytes = command.getBytes(Charset.forName("UTF-16LE"));
-        return DatatypeConverter.printBase64Binary(bytes);
+		StringBuilder out = PowerHellScriptEncoder.outputBuffer();
+		PowerHellScriptEncoder.appendUtf16LeBase64(out, command);
+		return out.toString();
 	}
 	
 	protected String encodePowerShellToString(String command, Map<String,Object> arguments) {
-		String psScript = createPowerShellScripWithArguments(command, arguments);
-		return POWERSHELL_COMMAND + " " + POWERSHELL_ENCODED_COMMAND_PARAM + " " + encodeUtf16Base64(psScript);
+		StringBuilder psScript = PowerHellScriptEncoder.scriptBuffer();
+		appendPowerShellScripWithArguments(psScript, command, arguments);
+		StringBuilder out = PowerHellScriptEncoder.outputBuffer();
+		out.append(POWERSHELL_COMMAND).append(' ').append(POWERSHELL_ENCODED_COMMAND_PARAM).append(' ');
+		PowerHellScriptEncoder.appendUtf16LeBase64(out, psScript);
+		return out.toString();
 	}
 	
 	protected List<String> encodePowerShellToList(String command, Map<String,Object> arguments) {
 		List<String> commandLine = new ArrayList<>();
 		commandLine.add(POWERSHELL_COMMAND);
-		if (arguments == null) {
-			return commandLine;
-		}
-		String psScript = createPowerShellScripWithArguments(command, arguments);
+		StringBuilder psScript = PowerHellScriptEncoder.scriptBuffer();
+		appendPowerShellScripWithArguments(psScript, command, arguments);
+		StringBuilder out = PowerHellScriptEncoder.outputBuffer();
+		PowerHellScriptEncoder.appendUtf16LeBase64(out, psScript);
 		commandLine.add(POWERSHELL_ENCODED_COMMAND_PARAM);
-		commandLine.add(encodeUtf16Base64(psScript));
+		commandLine.add(out.toString());
 		return commandLine;
 	}
 	
@@ -99,10 +359,19 @@ public abstract class AbstractPowerHellImpl implements PowerHell {
 	protected String createPowerShellScripWithArguments(String command, Map<String,Object> arguments) {
 		if (arguments == null) {
 			return command;
+		}
+		StringBuilder sb = PowerHellScriptEncoder.scriptBuffer();
+		appendPowerShellScripWithArguments(sb, command, arguments);
+		return sb.toString();
+	}
+	
+	protected void appendPowerShellScripWithArguments(StringBuilder sb, String command, Map<String,Object> arguments) {
+		if (arguments == null) {
+			sb.append(command);
 		} else if (getArgumentStyle() == ArgumentStyle.VARIABLES) {
-			return encodePowerShellVariablesAndCommandToString(command, arguments);
+			appendPowerShellVariablesAndCommand(sb, command, arguments);
 		} else {
-			return encodeCommandExecToString(command, arguments);
+			appendCommandExec(sb, command, arguments);
 		}
 	}
 	
@@ -110,16 +379,24 @@ public abstract class AbstractPowerHellImpl implements PowerHell {
 		if (arguments == null) {
 			return command;
 		}
-		StringBuilder commandLineBuilder = new StringBuilder();
+		StringBuilder sb = PowerHellScriptEncoder.scriptBuffer();
+		appendPowerShellVariablesAndCommand(sb, command, arguments);
+		return sb.toString();
+	}
+	
+	private void appendPowerShellVariablesAndCommand(StringBuilder sb, String command, Map<String, Object> arguments) {
 		String paramPrefix = getParamPrefix();
 		for (Entry<String, Object> argEntry: arguments.entrySet()) {
-			commandLineBuilder.append(paramPrefix).append(argEntry.getKey());
-			commandLineBuilder.append(" = ");
-			commandLineBuilder.append(quoteSingle(argEntry.getValue().toString()));
-			commandLineBuilder.append("; ");
+			sb.append(paramPrefix).append(argEntry.getKey());
+			sb.append(" = ");
+			if (argEntry.getValue() == null) {
+				sb.append("$null");
+			} else {
+				PowerHellScriptEncoder.appendQuotedSingle(sb, argEntry.getValue().toString());
+			}
+			sb.append("; ");
 		}
-		commandLineBuilder.append(command);
-		return commandLineBuilder.toString();
+		sb.append(command);
 	}
 	
 	protected List<String> encodeCommandExecToList(String command, Map<String,Object> arguments) {
@@ -142,27 +419,224 @@ public abstract class AbstractPowerHellImpl implements PowerHell {
 		if (arguments == null) {
 			return command;
 		}
-		StringBuilder commandLineBuilder = new StringBuilder();
-		commandLineBuilder.append(command);
+		StringBuilder sb = PowerHellScriptEncoder.scriptBuffer();
+		appendCommandExec(sb, command, arguments);
+		return sb.toString();
+	}
+	
+	private void appendCommandExec(StringBuilder sb, String command, Map<String,Object> arguments) {
+		sb.append(command);
 		String paramPrefix = getParamPrefix();
 		for (Entry<String, Object> argEntry: arguments.entrySet()) {
-			commandLineBuilder.append(" ");
-			commandLineBuilder.append(paramPrefix).append(argEntry.getKey());
+			sb.append(' ');
+			sb.append(paramPrefix).append(argEntry.getKey());
 			if (argEntry.getValue() != null) {
-				commandLineBuilder.append(" ");
-				commandLineBuilder.append(argEntry.getValue().toString());
+				sb.append(' ');
+				sb.append(argEntry.getValue().toString());
 			}
 		}
-		return commandLineBuilder.toString();
 	}
 
 	protected String quoteSingle(Object value) {
 		if (value == null) {
 			return "";
 		}
-		return "'" + value.toString().replaceAll("'", "''") + "'";
+		String string = value.toString();
+		StringBuilder sb = new StringBuilder(string.length() + 2);
+		PowerHellScriptEncoder.appendQuotedSingle(sb, string);
+		return sb.toString();
 	}
 	
+	/**
+	 * Creates PowerShell script that implements the loop: reads commands from stdin
+	 * and executes them. Commands are terminated by a line that contains just the prompt.
+	 * Prompt is also written to the output after each command, followed by error message (if any).
+	 * Line with prompt followed by " exit" terminates the loop.
+	 */
+	protected String createLoopScript(String initScriptlet, String prompt) {
+		return createLoopScript(initScriptlet, prompt, LoopProtocol.PROMPT);
+	}
+	
+	/**
+	 * Creates PowerShell loop script for specified protocol. The first prompt (after initialization)
+	 * is always written as plain text. Framed protocol needs PowerShell 5 or later.
+	 */
+	protected String createLoopScript(String initScriptlet, String prompt, LoopProtocol protocol) {
+		StringBuilder sb = new StringBuilder();
+		if (initScriptlet != null) {
+			sb.append(initScriptlet);
+			sb.append("\n");
+		}
+		appendInputFunction(sb, prompt, protocol, true);
+		sb.append("write-host '").append(prompt).append("'\r\n");
+		sb.append("while($true) {\r\n");
+		sb.append("  $powerhellCommand = ''\r\n");
+		sb.append("  while($powerhellLine = [Console]::In.ReadLine()) {\r\n");
+		sb.append("    if($powerhellLine -eq \"").append(prompt).append(" exit\") { exit }\r\n");
+		sb.append("    if($powerhellLine -eq \"").append(prompt).append("\") { break }\r\n");
+		sb.append("    $powerhellCommand = $powerhellCommand + $powerhellLine + \"`n\"\r\n");
+		sb.append("  }\r\n");
+		if (protocol == LoopProtocol.FRAMED) {
+			// Information stream (write-host) is redirected to the pipeline, so it is framed as well.
+			sb.append("  Invoke-Expression -ErrorVariable powerhellError $powerhellCommand 6>&1 | Out-String -Stream | ForEach-Object {\r\n");
+			sb.append("    $powerhellFrame = $_ + \"`n\"\r\n");
+			sb.append("    [Console]::Out.Write('O' + $powerhellFrame.Length + ':' + $powerhellFrame)\r\n");
+			sb.append("  }\r\n");
+			sb.append("  $powerhellFrame = \"$powerhellError\"\r\n");
+			sb.append("  [Console]::Out.Write('Z' + $powerhellFrame.Length + ':' + $powerhellFrame)\r\n");
+			sb.append("  [Console]::Out.Flush()\r\n");
+		} else {
+			sb.append("  Invoke-Expression -ErrorVariable powerhellError $powerhellCommand\r\n");
+			sb.append("  write-host '").append(prompt).append("'$powerhellError\r\n");
+		}
+		sb.append("  $powerhellError = \"\"\r\n");
+		sb.append("}\r\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Creates script that provides Read-PowerHellInput function to a command that is executed
+	 * as a separate PowerShell process. Input is sent to stdin of the process in the same chunks
+	 * as in the loop, see createExecInputChunk(). The chunks are not requested by the command,
+	 * they are sent as fast as the process (or the transport) accepts them.
+	 */
+	protected String createExecInputScript(String psScript) {
+		StringBuilder sb = new StringBuilder();
+		appendInputFunction(sb, EXEC_INPUT_PROMPT, LoopProtocol.PROMPT, false);
+		sb.append(psScript);
+		return sb.toString();
+	}
+
+	/**
+	 * Appends definition of the function that reads command input from stdin.
+	 * In the loop, the function asks for each chunk of input by writing input request directly
+	 * to the console (bypassing the pipeline). Then it reads one line with base64-encoded UTF-8 chunk.
+	 * Chunks are decoded and returned as lines. End of input is indicated by the prompt with "eof".
+	 */
+	private void appendInputFunction(StringBuilder sb, String prompt, LoopProtocol protocol, boolean requestInput) {
+		sb.append("function global:").append(INPUT_FUNCTION).append(" {\r\n");
+		sb.append("  $powerhellPending = ''\r\n");
+		sb.append("  while($true) {\r\n");
+		if (requestInput) {
+			if (protocol == LoopProtocol.FRAMED) {
+				sb.append("    [Console]::Out.Write('").append(PowerHellFramedLoopParser.FRAME_INPUT).append("0").append(PowerHellFramedLoopParser.FRAME_LENGTH_SEPARATOR).append("')\r\n");
+			} else {
+				sb.append("    [Console]::Out.WriteLine('").append(prompt).append(' ').append(INPUT_REQUEST_MESSAGE).append("')\r\n");
+			}
+			sb.append("    [Console]::Out.Flush()\r\n");
+		}
+		sb.append("    $powerhellChunk = [Console]::In.ReadLine()\r\n");
+		sb.append("    if($powerhellChunk -eq $null -or $powerhellChunk -eq \"").append(prompt).append(' ').append(INPUT_END_MESSAGE).append("\") { break }\r\n");
+		sb.append("    $powerhellLines = ($powerhellPending + [System.Text.Encoding]::UTF8.GetString([System.Convert]::FromBase64String($powerhellChunk))) -split \"`r?`n\"\r\n");
+		sb.append("    for($i = 0; $i -lt $powerhellLines.Length - 1; $i++) { $powerhellLines[$i] }\r\n");
+		sb.append("    $powerhellPending = $powerhellLines[$powerhellLines.Length - 1]\r\n");
+		sb.append("  }\r\n");
+		sb.append("  if($powerhellPending -ne '') { $powerhellPending }\r\n");
+		sb.append("}\r\n");
+	}
+	
+	/**
+	 * Reads next chunk of input of a command that was created by createExecInputScript().
+	 * Returns end of input line if there is no more input, see isExecInputEnd().
+	 */
+	protected String createExecInputChunk(Reader stdin) throws PowerHellExecutionException {
+		return createInputChunk(stdin, EXEC_INPUT_PROMPT);
+	}
+
+	protected boolean isExecInputEnd(String chunk) {
+		return chunk.startsWith(EXEC_INPUT_PROMPT);
+	}
+
+	/**
+	 * Reads next chunk of command input and returns it as a line for Read-PowerHellInput function.
+	 * Returns end of input line if there is no more input (or no input at all).
+	 */
+	protected String createInputChunk(Reader stdin, String prompt) throws PowerHellExecutionException {
+		int count = 0;
+		char[] buffer = null;
+		if (stdin != null) {
+			buffer = new char[inputChunkSize + 1];
+			try {
+				while (count < inputChunkSize) {
+					int readCount = stdin.read(buffer, count, inputChunkSize - count);
+					if (readCount < 0) {
+						break;
+					}
+					count += readCount;
+				}
+				if (count > 0 && Character.isHighSurrogate(buffer[count - 1])) {
+					// Do not split surrogate pair between chunks, each chunk is encoded separately
+					int next = stdin.read();
+					if (next >= 0) {
+						buffer[count++] = (char) next;
+					}
+				}
+			} catch (IOException e) {
+				throw new PowerHellExecutionException("Error reading command input: " + e.getMessage(), e);
+			}
+		}
+		if (count == 0) {
+			return prompt + " " + INPUT_END_MESSAGE + "\r\n";
+		}
+		StringBuilder sb = PowerHellScriptEncoder.outputBuffer();
+		PowerHellScriptEncoder.appendUtf8Base64(sb, CharBuffer.wrap(buffer, 0, count));
+		sb.append("\r\n");
+		return sb.toString();
+	}
+	
+	/**
+	 * Creates single-line command that defines global PowerShell function with the script as its body.
+	 * The script is base64-encoded, therefore it may contain anything, including empty lines
+	 * that would otherwise confuse the loop.
+	 */
+	protected String createFunctionDefinition(String name, String script) {
+		StringBuilder sb = PowerHellScriptEncoder.outputBuffer();
+		sb.append("Set-Item -Path function:global:").append(name);
+		sb.append(" -Value ([ScriptBlock]::Create([System.Text.Encoding]::Unicode.GetString([System.Convert]::FromBase64String('");
+		PowerHellScriptEncoder.appendUtf16LeBase64(sb, script);
+		sb.append("'))))");
+		return sb.toString();
+	}
+	
+	/**
+	 * Creates function name that is derived from the script content.
+	 */
+	protected String createScriptFunctionName(String script) {
+		return "PowerHell-" + PowerHellScriptEncoder.hash(script);
+	}
+
+	/**
+	 * Creates script that compresses output of the original script. Output is written
+	 * as UTF-8 into raw deflate stream, which is emitted in base64-encoded chunks, one chunk per line.
+	 * The chunks are emitted while the script is running, so the output can be decompressed
+	 * as it arrives. Output streams other than error stream are redirected to the compressed
+	 * output, as the host would write them to stdout between the chunks.
+	 */
+	protected String createCompressedOutputScript(String psScript) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("$powerhellBuffer = New-Object System.IO.MemoryStream\n");
+		sb.append("$powerhellDeflate = New-Object System.IO.Compression.DeflateStream($powerhellBuffer, [System.IO.Compression.CompressionMode]::Compress)\n");
+		sb.append("$powerhellWriter = New-Object System.IO.StreamWriter($powerhellDeflate, (New-Object System.Text.UTF8Encoding($false)))\n");
+		sb.append("try {\n");
+		// Everything except errors goes through the compression, errors keep their meaning
+		sb.append("& {\n").append(psScript).append("\n} 3>&1 4>&1 5>&1 6>&1 | Out-String -Stream | ForEach-Object {\n");
+		sb.append("  $powerhellWriter.WriteLine($_)\n");
+		sb.append("  if ($powerhellBuffer.Length -gt ").append(COMPRESSED_CHUNK_SIZE).append(") {\n");
+		sb.append("    [System.Convert]::ToBase64String($powerhellBuffer.ToArray())\n");
+		sb.append("    $powerhellBuffer.SetLength(0)\n");
+		sb.append("  }\n");
+		sb.append("}\n");
+		sb.append("} finally {\n");
+		sb.append("  $powerhellWriter.Close()\n");
+		sb.append("  [System.Convert]::ToBase64String($powerhellBuffer.ToArray())\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	protected String createStructuredScript(String psScript) {
+		return "& {\n" + psScript + "\n} | ForEach-Object { ConvertTo-Json -InputObject $_ -Compress -Depth " + jsonDepth + " }";
+	}
+
 	protected String getParamPrefix() {
 		if (getArgumentStyle() == null) {
 			return ArgumentStyle.PARAMETERS_DASH.getPrefix();
@@ -171,6 +645,62 @@ public abstract class AbstractPowerHellImpl implements PowerHell {
 	}
 
 	
+	protected void writeOutput(Writer writer, String data) throws PowerHellExecutionException {
+		if (data == null || data.isEmpty()) {
+			return;
+		}
+		try {
+			writer.write(data);
+		} catch (IOException e) {
+			throw new PowerHellExecutionException("Error writing command output: " + e.getMessage(), e);
+		}
+	}
+
+	protected void writeOutput(Writer writer, char[] buffer, int count) throws PowerHellExecutionException {
+		if (count <= 0) {
+			return;
+		}
+		try {
+			writer.write(buffer, 0, count);
+		} catch (IOException e) {
+			throw new PowerHellExecutionException("Error writing command output: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Returns deadline (in System.nanoTime() units) for a command that starts now.
+	 * Returns zero if there is no timeout.
+	 */
+	protected long getCommandDeadline() {
+		if (commandTimeout <= 0) {
+			return 0;
+		}
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commandTimeout);
+	}
+	
+	/**
+	 * Checks whether command executed by current thread should be aborted, either because
+	 * the thread was interrupted or because the deadline has passed.
+	 * Returns exception to throw after the command is terminated, null if the command may go on.
+	 */
+	protected PowerHellExecutionException getCommandAbortReason(long deadline) {
+		return getCommandAbortReason(deadline, Thread.currentThread());
+	}
+	
+	protected PowerHellExecutionException getCommandAbortReason(long deadline, Thread thread) {
+		PowerHellExecutionException abortReason = null;
+		if (thread.isInterrupted()) {
+			// Cause tells interruption from timeout
+			abortReason = new PowerHellExecutionException("Command interrupted", new InterruptedException("Command thread interrupted"));
+		} else if (deadline != 0 && System.nanoTime() - deadline > 0) {
+			abortReason = new PowerHellExecutionException("Command did not finish in "+commandTimeout+" ms");
+		}
+		if (abortReason != null) {
+			abortReason.setAborted(true);
+		}
+		return abortReason;
+	}
+	
 	protected void logData(String prefix, String data) {
 		if (LOG.isTraceEnabled()) {
 			if (data != null && !data.isEmpty()) {
@@ -179,9 +709,75 @@ public abstract class AbstractPowerHellImpl implements PowerHell {
 		}
 	}
 	
-	protected void logExecution(String outCommandLine, long tsCommStart) {
-		long tsCommStop = System.currentTimeMillis();
-		LOG.debug("Command {} run time: {} ms", outCommandLine, tsCommStop-tsCommStart);
+	protected void logExecution(String outCommandLine, PowerHellCommandMetrics metrics) {
+		LOG.debug("Command {} run time: {} ms", outCommandLine, metrics.getTotalNanos() / 1000000);
+	}
+	
+	protected PowerHellCommandMetrics startCommandMetrics() {
+		return new PowerHellCommandMetrics(getImplementationName(), getEndpoint());
+	}
+	
+	protected void finishCommandMetrics(PowerHellCommandMetrics metrics) {
+		if (!metrics.isEnded()) {
+			metrics.markEnd(false);
+		}
+		if (listener != null) {
+			try {
+				listener.onCommand(metrics);
+			} catch (RuntimeException e) {
+				LOG.warn("PowerHell listener failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+	
+	protected void fireConnect(long tsStartNanos) {
+		if (listener != null) {
+			try {
+				listener.onConnect(getImplementationName(), getEndpoint(), System.nanoTime() - tsStartNanos);
+			} catch (RuntimeException e) {
+				LOG.warn("PowerHell listener failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+	
+	protected void fireLoopStart(long tsStartNanos) {
+		if (listener != null) {
+			try {
+				listener.onLoopStart(getImplementationName(), getEndpoint(), System.nanoTime() - tsStartNanos);
+			} catch (RuntimeException e) {
+				LOG.warn("PowerHell listener failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+	
+	protected void fireReconnect() {
+		if (listener != null) {
+			try {
+				listener.onReconnect(getImplementationName(), getEndpoint());
+			} catch (RuntimeException e) {
+				LOG.warn("PowerHell listener failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+	
+	protected void fireFaultRetry(Throwable fault) {
+		if (listener != null) {
+			try {
+				listener.onFaultRetry(getImplementationName(), getEndpoint(), fault);
+			} catch (RuntimeException e) {
+				LOG.warn("PowerHell listener failed: {}", e.getMessage(), e);
+			}
+		}
+	}
+	
+	protected void fireExitCodeFailure(Integer exitCode) {
+		if (listener != null && exitCode != null) {
+			try {
+				listener.onExitCodeFailure(getImplementationName(), getEndpoint(), exitCode);
+			} catch (RuntimeException e) {
+				LOG.warn("PowerHell listener failed: {}", e.getMessage(), e);
+			}
+		}
 	}
 
 }
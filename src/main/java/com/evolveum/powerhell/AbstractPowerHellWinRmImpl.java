@@ -48,9 +48,11 @@ public abstract class AbstractPowerHellWinRmImpl extends AbstractPowerHellImpl {
 	private String password;
 	private HostnameVerifier hostnameVerifier;
 	private boolean disableCertificateChecks;
+	private PowerHellTransportFactory transportFactory = PowerHellWinRm4jTransport::create;
+	private PowerHellRetryPolicy retryPolicy = new PowerHellRetryPolicy();
 	
 	// State
-	private WinRmClient client;
+	private PowerHellTransport transport;
 	
 	public String getEndpointUrl() {
 		return endpointUrl;
@@ -108,34 +110,96 @@ public abstract class AbstractPowerHellWinRmImpl extends AbstractPowerHellImpl {
 		this.disableCertificateChecks = disableCertificateChecks;
 	}
 
+	public PowerHellTransportFactory getTransportFactory() {
+		return transportFactory;
+	}
+
+	/**
+	 * Factory for transport that is used to communicate with the endpoint.
+	 * Default transport is winrm4j client.
+	 */
+	public void setTransportFactory(PowerHellTransportFactory transportFactory) {
+		this.transportFactory = transportFactory;
+	}
+
+	public PowerHellRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Policy that decides whether commands that failed with WinRM fault are re-tried.
+	 */
+	public void setRetryPolicy(PowerHellRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	@Override
+	public String getEndpoint() {
+		return endpointUrl;
+	}
+
 	@Override
 	public void connect() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
 		connectClient();
 	}
 	
 	protected boolean isClientConnected() {
-		return client != null;
+		return transport != null;
 	}
 	
 	protected void connectClient() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
-		WinRmClient.Builder builder = WinRmClient.builder(endpointUrl, authenticationScheme);
-		builder.credentials(domainName, userName, password);
-		builder.disableCertificateChecks(disableCertificateChecks);
-		builder.hostnameVerifier(hostnameVerifier);
-		builder.retriesForConnectionFailures(1);
-		
 		LOG.debug("Connecting WinRM for PowerHell {} Endpoint: {}", getImplementationName(), endpointUrl);
-		client = builder.build();
+		long tsStart = System.nanoTime();
+		transport = transportFactory.createTransport(this);
+		fireConnect(tsStart);
 	}
 	
+	protected PowerHellTransport getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * Returns winrm4j client of current transport. Returns null if not connected,
+	 * or if the transport does not use winrm4j (e.g. custom transport factory).
+	 * @deprecated Commands are executed by the transport, use {@link #getTransport()}.
+	 */
+	@Deprecated
 	protected WinRmClient getClient() {
-		return client;
+		if (transport instanceof PowerHellWinRm4jTransport) {
+			return ((PowerHellWinRm4jTransport) transport).getClient();
+		}
+		return null;
 	}
 	
 	protected void disconnectClient() {
-		if (client != null) {
-			client.disconnect();
-			client = null;
+		if (transport != null) {
+			transport.disconnect();
+			transport = null;
+		}
+	}
+	
+	/**
+	 * Forgets current client without disconnecting it. New client is connected when needed.
+	 * Caller is responsible for disconnecting the old client.
+	 */
+	protected void detachClient() {
+		transport = null;
+	}
+
+	/**
+	 * Waits before next attempt, as specified by retry policy.
+	 */
+	protected void waitBeforeRetry(int attempt) throws PowerHellExecutionException {
+		long backoff = retryPolicy.getBackoff(attempt);
+		if (backoff <= 0) {
+			return;
+		}
+		LOG.debug("Waiting {} ms before re-try", backoff);
+		try {
+			Thread.sleep(backoff);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PowerHellExecutionException("Interrupted while waiting for re-try", e);
 		}
 	}
 
@@ -153,9 +217,7 @@ public abstract class AbstractPowerHellWinRmImpl extends AbstractPowerHellImpl {
 	
 	@Override
 	public int disconnect() {
-		if (client != null) {
-			client.disconnect();
-		}
+		disconnectClient();
 		return 0;
 	}
 
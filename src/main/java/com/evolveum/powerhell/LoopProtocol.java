@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Protocol used to separate output of individual commands in PowerHell loop.
+ * 
+ * @author semancik
+ */
+public enum LoopProtocol {
+
+	/**
+	 * Output of a command is terminated by a prompt, followed by error message (if any) and end of line.
+	 * Output is written by PowerShell as it is. This is the original PowerHell protocol.
+	 */
+	PROMPT,
+	
+	/**
+	 * Output is sent in length-prefixed frames: type character, length, colon, payload.
+	 * "O" frames contain output of the command, "Z" frame ends the command and it contains error message (if any).
+	 * Frames can be parsed incrementally, regardless of how the output is split into chunks.
+	 * Output of the command is formatted by Out-String.
+	 */
+	FRAMED;
+	
+}
@@ -15,7 +15,14 @@
  */
 package com.evolveum.powerhell;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public interface PowerHell {
 	
@@ -27,6 +34,118 @@ public interface PowerHell {
 	
 	String runCommand(String command, Map<String,Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException;
 
+	/**
+	 * Runs the command and writes the output to provided writers as it arrives.
+	 * The output is not buffered, therefore this is suitable for commands with large output.
+	 * The stdout and stderr properties of PowerHellExecutionException are not set
+	 * when the command fails, the output was already written to the writers.
+	 * Default implementation buffers the output and writes it when the command ends,
+	 * implementations are supposed to override it.
+	 */
+	default void runCommand(String command, Map<String,Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		String out;
+		try {
+			try {
+				out = runCommand(command, arguments);
+			} catch (PowerHellExecutionException e) {
+				if (e.getStdout() != null) {
+					stdout.write(e.getStdout());
+				}
+				if (e.getStderr() != null) {
+					stderr.write(e.getStderr());
+				}
+				throw e;
+			}
+			if (out != null) {
+				stdout.write(out);
+			}
+		} catch (IOException e) {
+			throw new PowerHellExecutionException("Error writing command output: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Runs the command and feeds it with data read from stdin. PowerShell commands read
+	 * the data by Read-PowerHellInput function, which returns the input as a sequence of lines.
+	 * The input is read and sent in chunks, therefore it does not need to be kept in memory.
+	 * Input may be null, which means no input.
+	 * Default implementation fails if there is any input, implementations that can send
+	 * input to the commands are supposed to override it.
+	 */
+	default void runCommand(String command, Map<String,Object> arguments, Reader stdin, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (stdin != null) {
+			throw new PowerHellExecutionException(getImplementationName() + " does not support command input");
+		}
+		runCommand(command, arguments, stdout, stderr);
+	}
+
+	/**
+	 * Runs PowerShell command and passes objects from its output pipeline to the consumer
+	 * as they arrive. JSON objects are provided as Map, arrays as List, other values as String,
+	 * Long, Double or Boolean.
+	 * The command fails if some of its output cannot be parsed (e.g. something that was written
+	 * directly to the console). The objects that were parsed are passed to the consumer anyway,
+	 * unparsed output is provided as stdout of PowerHellExecutionException.
+	 * Default implementation fails, implementations that can execute PowerShell commands
+	 * are supposed to override it.
+	 */
+	default void runCommandForObjects(String command, Map<String,Object> arguments, Consumer<Object> consumer) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		throw new PowerHellExecutionException("Structured output is not supported by " + getImplementationName());
+	}
+
+	/**
+	 * Runs the command asynchronously, using default executor of the implementation.
+	 * The returned future is completed with command output or with the same exception
+	 * that would be thrown by runCommand().
+	 * Implementations that are not thread-safe execute the commands one by one,
+	 * in the order in which they were submitted.
+	 * Default implementation runs the command in the calling thread and returns completed future,
+	 * implementations are supposed to override it.
+	 */
+	default CompletableFuture<String> runCommandAsync(String command, Map<String,Object> arguments) {
+		return runCommandAsync(command, arguments, Runnable::run);
+	}
+
+	/**
+	 * Runs the command asynchronously, using provided executor.
+	 * Caller is responsible for using an executor that matches thread-safety
+	 * of the implementation (e.g. single-threaded executor for a loop implementation).
+	 * Cancelling the future interrupts the command if it is already running.
+	 */
+	default CompletableFuture<String> runCommandAsync(String command, Map<String,Object> arguments, Executor executor) {
+		CompletableFuture<String> future = new CompletableFuture<>();
+		AtomicReference<Thread> runner = new AtomicReference<>();
+		future.whenComplete((result, e) -> {
+			if (future.isCancelled()) {
+				synchronized (runner) {
+					Thread thread = runner.get();
+					if (thread != null) {
+						thread.interrupt();
+					}
+				}
+			}
+		});
+		executor.execute(() -> {
+			if (future.isDone()) {
+				// Cancelled while waiting in the queue
+				return;
+			}
+			runner.set(Thread.currentThread());
+			try {
+				future.complete(runCommand(command, arguments));
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				synchronized (runner) {
+					runner.set(null);
+					// Do not let the interrupt leak to next task of the executor thread
+					Thread.interrupted();
+				}
+			}
+		});
+		return future;
+	}
+
 	/**
 	 * Disposes PowerHell.
 	 * Disconnects from server, ends the master process, etc.
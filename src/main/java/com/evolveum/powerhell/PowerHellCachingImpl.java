@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * PowerHell decorator that caches output of read-only commands. Commands are
+ * cached only if cacheable predicate says so. Cache key is the command text
+ * together with the arguments. Only successful executions are cached.
+ * </p>
+ * <p>
+ * Cached entries expire after configured time to live. Number of cached entries
+ * is limited, least recently used entries are evicted first.
+ * Cache can be invalidated explicitly, e.g. after a command that changes the data.
+ * Output of a command that was started before the invalidation is not stored,
+ * as it may be stale.
+ * </p>
+ * <p>
+ * Output of commands executed by runCommand(command, arguments) is cached without stderr,
+ * as it is not available. Output of commands executed with writers is cached with stderr.
+ * Commands with input are never cached, they are passed to the delegate directly.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellCachingImpl extends AbstractPowerHellDecorator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellCachingImpl.class);
+
+	// Configuration
+	private BiPredicate<String, Map<String,Object>> cacheablePredicate;
+	private long timeToLive = 60000L;
+	private int maxEntries = 1000;
+
+	// State
+	private final LinkedHashMap<PowerHellCommand, CacheEntry> cache = new LinkedHashMap<PowerHellCommand, CacheEntry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<PowerHellCommand, CacheEntry> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	private long generation = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public PowerHellCachingImpl() {
+		super();
+	}
+
+	public PowerHellCachingImpl(PowerHell delegate) {
+		super(delegate);
+	}
+
+	public BiPredicate<String, Map<String, Object>> getCacheablePredicate() {
+		return cacheablePredicate;
+	}
+
+	/**
+	 * Decides whether the command (with the arguments) can be cached.
+	 * Only read-only commands should be cached. If not set, nothing is cached.
+	 */
+	public void setCacheablePredicate(BiPredicate<String, Map<String, Object>> cacheablePredicate) {
+		this.cacheablePredicate = cacheablePredicate;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Time (in milliseconds) for which the cached output is used.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Maximum number of cached entries.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public synchronized int getSize() {
+		return cache.size();
+	}
+
+	@Override
+	public String getImplementationName() {
+		return "Caching " + super.getImplementationName();
+	}
+
+	@Override
+	public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (!isCacheable(command, arguments)) {
+			return super.runCommand(command, arguments);
+		}
+		long lookupGeneration = getGeneration();
+		CacheEntry entry = lookup(command, arguments);
+		if (entry != null) {
+			return entry.stdout;
+		}
+		String stdout = super.runCommand(command, arguments);
+		store(lookupGeneration, command, arguments, stdout, null);
+		return stdout;
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (!isCacheable(command, arguments)) {
+			super.runCommand(command, arguments, stdout, stderr);
+			return;
+		}
+		long lookupGeneration = getGeneration();
+		CacheEntry entry = lookup(command, arguments);
+		if (entry != null) {
+			try {
+				stdout.write(entry.stdout);
+				if (entry.stderr != null) {
+					stderr.write(entry.stderr);
+				}
+			} catch (IOException e) {
+				throw new PowerHellExecutionException("Error writing command output: " + e.getMessage(), e);
+			}
+			return;
+		}
+		StringWriter capturedStdout = new StringWriter();
+		StringWriter capturedStderr = new StringWriter();
+		super.runCommand(command, arguments, new PowerHellTeeWriter(stdout, capturedStdout), new PowerHellTeeWriter(stderr, capturedStderr));
+		store(lookupGeneration, command, arguments, capturedStdout.toString(), capturedStderr.toString());
+	}
+
+	@Override
+	public CompletableFuture<String> runCommandAsync(String command, Map<String, Object> arguments) {
+		if (!isCacheable(command, arguments)) {
+			return super.runCommandAsync(command, arguments);
+		}
+		long lookupGeneration = getGeneration();
+		CacheEntry entry = lookup(command, arguments);
+		if (entry != null) {
+			return CompletableFuture.completedFuture(entry.stdout);
+		}
+		Map<String, Object> argumentsCopy = copy(arguments);
+		return super.runCommandAsync(command, arguments).thenApply(stdout -> {
+			store(lookupGeneration, command, argumentsCopy, stdout, null);
+			return stdout;
+		});
+	}
+
+	/**
+	 * Removes cached output of the command.
+	 */
+	public synchronized void invalidate(String command, Map<String, Object> arguments) {
+		generation++;
+		cache.remove(new PowerHellCommand(command, arguments));
+	}
+
+	/**
+	 * Removes cached output of all commands.
+	 */
+	public synchronized void invalidateAll() {
+		generation++;
+		cache.clear();
+	}
+
+	/**
+	 * Removes expired entries. This is not strictly needed, as expired entries are not used.
+	 * But it releases the memory.
+	 */
+	public synchronized void purgeExpired() {
+		long now = System.nanoTime();
+		Iterator<CacheEntry> iterator = cache.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isExpired(now)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private boolean isCacheable(String command, Map<String, Object> arguments) {
+		return cacheablePredicate != null && cacheablePredicate.test(command, arguments);
+	}
+
+	private synchronized CacheEntry lookup(String command, Map<String, Object> arguments) {
+		PowerHellCommand key = new PowerHellCommand(command, arguments);
+		CacheEntry entry = cache.get(key);
+		if (entry != null && entry.isExpired(System.nanoTime())) {
+			cache.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+			LOG.trace("Cache hit: {}", command);
+		}
+		return entry;
+	}
+
+	/**
+	 * Any invalidation changes the generation. Outputs of all commands that are running
+	 * at that time are not stored, even if a different command was invalidated.
+	 * We do not know which commands are affected by the change.
+	 */
+	private synchronized long getGeneration() {
+		return generation;
+	}
+
+	private synchronized void store(long lookupGeneration, String command, Map<String, Object> arguments, String stdout, String stderr) {
+		if (lookupGeneration != generation) {
+			LOG.trace("Cache was invalidated while the command was running, not storing output: {}", command);
+			return;
+		}
+		long expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeToLive);
+		// Arguments are copied, caller may change the map later.
+		cache.put(new PowerHellCommand(command, copy(arguments)), new CacheEntry(stdout, stderr, expiresAt));
+	}
+
+	private Map<String, Object> copy(Map<String, Object> arguments) {
+		return arguments == null ? null : new HashMap<>(arguments);
+	}
+
+	private static class CacheEntry {
+		private final String stdout;
+		private final String stderr;
+		private final long expiresAt;
+
+		CacheEntry(String stdout, String stderr, long expiresAt) {
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Circuit breaker for one endpoint. The breaker opens after a number of consecutive
+ * communication or security failures. While it is open, commands fail immediately
+ * without trying to contact the endpoint. After open duration the breaker becomes
+ * half-open and lets a limited number of probe commands through. Successful probe
+ * closes the breaker, failed probe opens it again. Outcome of commands that were
+ * started before the breaker opened does not close or re-open the breaker.
+ * </p>
+ * <p>
+ * Errors reported by the commands themselves (execution errors) mean that the endpoint
+ * is alive, therefore they count as success. Commands aborted because of timeout
+ * count as failures. Commands cancelled or interrupted by the caller say nothing about
+ * the endpoint, they are reported by onIgnored(). The same breaker should be used for all
+ * the commands that go to the same endpoint, see {@link PowerHellCircuitBreakerRegistry}.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellCircuitBreaker {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellCircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	// Configuration
+	private String name;
+	private int failureThreshold = 5;
+	private long openDuration = 30000L;
+	private int maxProbes = 1;
+
+	// State
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openedAt;
+	private int probesInFlight = 0;
+	private long lastPermit = 0;
+	private long firstProbePermit = Long.MAX_VALUE;
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Name of the breaker (usually endpoint), used in logs and error messages.
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * Number of consecutive failures that opens the breaker.
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public long getOpenDuration() {
+		return openDuration;
+	}
+
+	/**
+	 * Time (in milliseconds) for which the breaker stays open before probes are allowed.
+	 */
+	public void setOpenDuration(long openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	public int getMaxProbes() {
+		return maxProbes;
+	}
+
+	/**
+	 * Maximum number of probe commands that are executed at the same time in half-open state.
+	 */
+	public void setMaxProbes(int maxProbes) {
+		this.maxProbes = maxProbes;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Checks whether a command can be executed. Throws exception if the breaker is open.
+	 * If the command is executed, the outcome must be reported by onSuccess(), onFailure() or onIgnored().
+	 * @return permit that has to be passed to onSuccess(), onFailure() or onIgnored()
+	 */
+	public synchronized long acquirePermission() throws PowerHellCommunicationException {
+		if (state == State.OPEN) {
+			long openFor = System.nanoTime() - openedAt;
+			if (openFor < TimeUnit.MILLISECONDS.toNanos(openDuration)) {
+				throw createOpenException();
+			}
+			LOG.debug("Circuit breaker {} half-open, probing", name);
+			state = State.HALF_OPEN;
+			probesInFlight = 0;
+			firstProbePermit = lastPermit + 1;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probesInFlight >= maxProbes) {
+				throw createOpenException();
+			}
+			probesInFlight++;
+		}
+		return ++lastPermit;
+	}
+
+	/**
+	 * Reports successful command. Only a probe can close half-open breaker,
+	 * commands that started earlier cannot close the breaker in any state.
+	 * @param permit value returned by acquirePermission()
+	 */
+	public synchronized void onSuccess(long permit) {
+		switch (state) {
+			case CLOSED:
+				consecutiveFailures = 0;
+				break;
+			case HALF_OPEN:
+				if (isProbe(permit)) {
+					LOG.info("Circuit breaker {} closed, endpoint is available again", name);
+					state = State.CLOSED;
+					consecutiveFailures = 0;
+					probesInFlight = 0;
+				}
+				break;
+			case OPEN:
+				// Late success of a command that started before the breaker opened
+				break;
+		}
+	}
+
+	/**
+	 * Reports failed command. In half-open state only a failed probe opens the breaker again.
+	 * @param permit value returned by acquirePermission()
+	 */
+	public synchronized void onFailure(long permit, Throwable failure) {
+		consecutiveFailures++;
+		if ((state == State.HALF_OPEN && isProbe(permit)) || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			LOG.warn("Circuit breaker {} opened after {} failures, last failure: {}", name, consecutiveFailures, failure.getMessage());
+			state = State.OPEN;
+			openedAt = System.nanoTime();
+			probesInFlight = 0;
+		}
+	}
+
+	/**
+	 * Reports command whose outcome says nothing about the endpoint, e.g. a command
+	 * cancelled by the caller. It does not change the state, but a probe frees its place
+	 * for another probe.
+	 * @param permit value returned by acquirePermission()
+	 */
+	public synchronized void onIgnored(long permit) {
+		if (state == State.HALF_OPEN && isProbe(permit) && probesInFlight > 0) {
+			probesInFlight--;
+		}
+	}
+
+	private boolean isProbe(long permit) {
+		return permit >= firstProbePermit;
+	}
+
+	private PowerHellCommunicationException createOpenException() {
+		return new PowerHellCommunicationException("Circuit breaker for "+name+" is open, endpoint is considered unavailable");
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PowerHellCircuitBreaker(" + name + ", " + state + ", failures " + consecutiveFailures + ")";
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Keeps one circuit breaker for each endpoint, so all the PowerHell instances
+ * that talk to the same endpoint share the same breaker.
+ *
+ * @author semancik
+ */
+public class PowerHellCircuitBreakerRegistry {
+
+	// Configuration
+	private Supplier<PowerHellCircuitBreaker> breakerFactory = PowerHellCircuitBreaker::new;
+
+	// State
+	private final Map<String, PowerHellCircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	public Supplier<PowerHellCircuitBreaker> getBreakerFactory() {
+		return breakerFactory;
+	}
+
+	/**
+	 * Creates configured breakers for new endpoints.
+	 */
+	public void setBreakerFactory(Supplier<PowerHellCircuitBreaker> breakerFactory) {
+		this.breakerFactory = breakerFactory;
+	}
+
+	public PowerHellCircuitBreaker getBreaker(String endpoint) {
+		return breakers.computeIfAbsent(endpoint, key -> {
+			PowerHellCircuitBreaker breaker = breakerFactory.get();
+			breaker.setName(key);
+			return breaker;
+		});
+	}
+
+	public Map<String, PowerHellCircuitBreaker> getBreakers() {
+		return breakers;
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * PowerHell decorator that protects the caller from unavailable endpoint using
+ * {@link PowerHellCircuitBreaker}. When the breaker is open, commands (and connection
+ * attempts) fail immediately with communication exception instead of waiting for
+ * connection timeouts. Communication and security failures, commands aborted because of
+ * timeout, as well as runtime exceptions of the communication library, are reported
+ * to the breaker as failures. Commands cancelled or interrupted by the caller are not
+ * counted at all.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellCircuitBreakingImpl extends AbstractPowerHellDecorator {
+
+	// Configuration
+	private PowerHellCircuitBreaker breaker;
+
+	public PowerHellCircuitBreakingImpl() {
+		super();
+	}
+
+	public PowerHellCircuitBreakingImpl(PowerHell delegate, PowerHellCircuitBreaker breaker) {
+		super(delegate);
+		this.breaker = breaker;
+	}
+
+	public PowerHellCircuitBreaker getBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Breaker to use. Breaker should be shared by all the instances that use the same endpoint.
+	 */
+	public void setBreaker(PowerHellCircuitBreaker breaker) {
+		this.breaker = breaker;
+	}
+
+	@Override
+	public String getImplementationName() {
+		return "Circuit breaking " + super.getImplementationName();
+	}
+
+	@Override
+	public void connect() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long permit = breaker.acquirePermission();
+		try {
+			super.connect();
+		} catch (Throwable e) {
+			reportOutcome(permit, e);
+			throw e;
+		}
+		breaker.onSuccess(permit);
+	}
+
+	@Override
+	public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long permit = breaker.acquirePermission();
+		String stdout;
+		try {
+			stdout = super.runCommand(command, arguments);
+		} catch (Throwable e) {
+			reportOutcome(permit, e);
+			throw e;
+		}
+		breaker.onSuccess(permit);
+		return stdout;
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long permit = breaker.acquirePermission();
+		try {
+			super.runCommand(command, arguments, stdout, stderr);
+		} catch (Throwable e) {
+			reportOutcome(permit, e);
+			throw e;
+		}
+		breaker.onSuccess(permit);
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long permit = breaker.acquirePermission();
+		try {
+			super.runCommand(command, arguments, stdin, stdout, stderr);
+		} catch (Throwable e) {
+			reportOutcome(permit, e);
+			throw e;
+		}
+		breaker.onSuccess(permit);
+	}
+
+	@Override
+	public void runCommandForObjects(String command, Map<String, Object> arguments, Consumer<Object> consumer) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long permit = breaker.acquirePermission();
+		try {
+			super.runCommandForObjects(command, arguments, consumer);
+		} catch (Throwable e) {
+			reportOutcome(permit, e);
+			throw e;
+		}
+		breaker.onSuccess(permit);
+	}
+
+	@Override
+	public CompletableFuture<String> runCommandAsync(String command, Map<String, Object> arguments) {
+		long permit;
+		try {
+			permit = breaker.acquirePermission();
+		} catch (PowerHellCommunicationException e) {
+			CompletableFuture<String> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+		CompletableFuture<String> future;
+		try {
+			future = super.runCommandAsync(command, arguments);
+		} catch (RuntimeException e) {
+			reportOutcome(permit, e);
+			throw e;
+		}
+		return future.whenComplete((stdout, e) -> {
+			if (e == null) {
+				breaker.onSuccess(permit);
+			} else {
+				reportOutcome(permit, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+			}
+		});
+	}
+
+	private void reportOutcome(long permit, Throwable e) {
+		if (isInterruption(e)) {
+			// Caller has given up, the endpoint may be fine.
+			breaker.onIgnored(permit);
+		} else if (e instanceof PowerHellExecutionException && !((PowerHellExecutionException) e).isAborted()) {
+			// Endpoint responded, the command has failed. That is fine for the breaker.
+			breaker.onSuccess(permit);
+		} else {
+			// Command aborted because of timeout did not get any response from the endpoint.
+			breaker.onFailure(permit, e);
+		}
+	}
+
+	private boolean isInterruption(Throwable e) {
+		if (e instanceof CancellationException) {
+			return true;
+		}
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof InterruptedException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * PowerHell decorator that coalesces identical commands that are executed at the same time.
+ * If a command is requested while identical command (same text, same arguments) is
+ * already being executed, the request waits for the running execution and gets its result.
+ * Only one execution is sent to the server. Failure of the execution is reported to all
+ * the requests. Waiting requests get a copy of the exception, with the original exception
+ * as a cause. Nothing is kept after the execution ends, use {@link PowerHellCachingImpl}
+ * for that.
+ * </p>
+ * <p>
+ * Cancellation or interruption of the request that executes the command is not shared.
+ * It is a decision of that request, not a failure of the command. One of the waiting
+ * requests executes the command again instead, the others wait for it.
+ * </p>
+ * <p>
+ * Only read-only commands should be coalesced. Commands are coalesced only if coalescable
+ * predicate says so.
+ * </p>
+ * <p>
+ * Output of commands executed by runCommand(command, arguments) is shared without stderr,
+ * as it is not available. Output of commands executed with writers is shared with stderr.
+ * Commands with input are never coalesced, they are passed to the delegate directly.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellCoalescingImpl extends AbstractPowerHellDecorator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellCoalescingImpl.class);
+
+	// Configuration
+	private BiPredicate<String, Map<String,Object>> coalescablePredicate;
+
+	private static final SharedResult ABANDONED = new SharedResult(null, null);
+
+	// State
+	private final Map<PowerHellCommand, CompletableFuture<SharedResult>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	public PowerHellCoalescingImpl() {
+		super();
+	}
+
+	public PowerHellCoalescingImpl(PowerHell delegate) {
+		super(delegate);
+	}
+
+	public BiPredicate<String, Map<String, Object>> getCoalescablePredicate() {
+		return coalescablePredicate;
+	}
+
+	/**
+	 * Decides whether the command (with the arguments) can share execution with identical commands.
+	 * Only read-only commands should be coalesced. If not set, nothing is coalesced.
+	 */
+	public void setCoalescablePredicate(BiPredicate<String, Map<String, Object>> coalescablePredicate) {
+		this.coalescablePredicate = coalescablePredicate;
+	}
+
+	/**
+	 * Number of requests that did not execute the command, but used result of other execution.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	@Override
+	public String getImplementationName() {
+		return "Coalescing " + super.getImplementationName();
+	}
+
+	@Override
+	public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (!isCoalescable(command, arguments)) {
+			return super.runCommand(command, arguments);
+		}
+		PowerHellCommand key = createKey(command, arguments);
+		CompletableFuture<SharedResult> execution = new CompletableFuture<>();
+		CompletableFuture<SharedResult> running = inFlight.putIfAbsent(key, execution);
+		if (running != null) {
+			SharedResult result = await(command, running);
+			if (result == ABANDONED) {
+				return runCommand(command, arguments);
+			}
+			return result.stdout;
+		}
+		try {
+			String stdout = super.runCommand(command, arguments);
+			finish(key, execution, new SharedResult(stdout, null), null);
+			return stdout;
+		} catch (Throwable e) {
+			finish(key, execution, null, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (!isCoalescable(command, arguments)) {
+			super.runCommand(command, arguments, stdout, stderr);
+			return;
+		}
+		PowerHellCommand key = createKey(command, arguments);
+		CompletableFuture<SharedResult> execution = new CompletableFuture<>();
+		CompletableFuture<SharedResult> running = inFlight.putIfAbsent(key, execution);
+		if (running != null) {
+			SharedResult result = await(command, running);
+			if (result == ABANDONED) {
+				runCommand(command, arguments, stdout, stderr);
+				return;
+			}
+			try {
+				stdout.write(result.stdout);
+				if (result.stderr != null) {
+					stderr.write(result.stderr);
+				}
+			} catch (IOException e) {
+				throw new PowerHellExecutionException("Error writing command output: " + e.getMessage(), e);
+			}
+			return;
+		}
+		try {
+			StringWriter capturedStdout = new StringWriter();
+			StringWriter capturedStderr = new StringWriter();
+			super.runCommand(command, arguments, new PowerHellTeeWriter(stdout, capturedStdout), new PowerHellTeeWriter(stderr, capturedStderr));
+			finish(key, execution, new SharedResult(capturedStdout.toString(), capturedStderr.toString()), null);
+		} catch (Throwable e) {
+			finish(key, execution, null, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public CompletableFuture<String> runCommandAsync(String command, Map<String, Object> arguments) {
+		if (!isCoalescable(command, arguments)) {
+			return super.runCommandAsync(command, arguments);
+		}
+		PowerHellCommand key = createKey(command, arguments);
+		CompletableFuture<SharedResult> execution = new CompletableFuture<>();
+		CompletableFuture<SharedResult> running = inFlight.putIfAbsent(key, execution);
+		if (running != null) {
+			LOG.trace("Coalescing with running execution: {}", command);
+			Map<String, Object> argumentsCopy = key.getArguments();
+			return running.handle((result, e) -> {
+				if (e != null) {
+					CompletableFuture<String> failed = new CompletableFuture<>();
+					failed.completeExceptionally(copyFailure(e));
+					return failed;
+				}
+				if (result == ABANDONED) {
+					return runCommandAsync(command, argumentsCopy);
+				}
+				coalescedCount.incrementAndGet();
+				return CompletableFuture.completedFuture(result.stdout);
+			}).thenCompose(future -> future);
+		}
+		CompletableFuture<String> future;
+		try {
+			future = super.runCommandAsync(command, arguments);
+		} catch (RuntimeException e) {
+			finish(key, execution, null, e);
+			throw e;
+		}
+		future.whenComplete((stdout, e) -> finish(key, execution, e == null ? new SharedResult(stdout, null) : null, e));
+		return future;
+	}
+
+	private boolean isCoalescable(String command, Map<String, Object> arguments) {
+		return coalescablePredicate != null && coalescablePredicate.test(command, arguments);
+	}
+
+	private PowerHellCommand createKey(String command, Map<String, Object> arguments) {
+		// Arguments are copied, caller may change the map while the command is running.
+		return new PowerHellCommand(command, arguments == null ? null : new HashMap<>(arguments));
+	}
+
+	/**
+	 * The execution is removed before it is completed, so the waiting requests
+	 * that have to execute the command again do not find it.
+	 */
+	private void finish(PowerHellCommand key, CompletableFuture<SharedResult> execution, SharedResult result, Throwable failure) {
+		inFlight.remove(key, execution);
+		if (failure == null) {
+			execution.complete(result);
+		} else if (isAbort(failure)) {
+			LOG.trace("Execution of {} was cancelled or interrupted, waiting requests will execute it again", key.getCommand());
+			execution.complete(ABANDONED);
+		} else {
+			execution.completeExceptionally(failure);
+		}
+	}
+
+	private boolean isAbort(Throwable failure) {
+		Throwable cause = failure;
+		if (cause instanceof CompletionException && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause instanceof CancellationException || cause.getCause() instanceof InterruptedException
+				|| Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * Returns ABANDONED if the request has to execute the command itself.
+	 */
+	private SharedResult await(String command, CompletableFuture<SharedResult> running) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		LOG.trace("Coalescing with running execution: {}", command);
+		try {
+			SharedResult result = running.get();
+			if (result != ABANDONED) {
+				coalescedCount.incrementAndGet();
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PowerHellExecutionException("Interrupted while waiting for command", e);
+		} catch (ExecutionException e) {
+			Throwable failure = copyFailure(e.getCause());
+			if (failure instanceof PowerHellExecutionException) {
+				throw (PowerHellExecutionException) failure;
+			}
+			if (failure instanceof PowerHellSecurityException) {
+				throw (PowerHellSecurityException) failure;
+			}
+			if (failure instanceof PowerHellCommunicationException) {
+				throw (PowerHellCommunicationException) failure;
+			}
+			throw (Error) failure;
+		}
+	}
+
+	/**
+	 * Every waiting request gets its own exception, with the shared failure as the cause.
+	 * The waiters are running in different threads, they must not fill in stack trace
+	 * or add suppressed exceptions to the same exception instance.
+	 * Errors are not copied, they are rethrown as they are.
+	 */
+	private Throwable copyFailure(Throwable failure) {
+		Throwable cause = failure;
+		if (cause instanceof CompletionException && cause.getCause() != null) {
+			// Failed asynchronous execution
+			cause = cause.getCause();
+		}
+		if (cause instanceof Error) {
+			return cause;
+		}
+		if (cause instanceof PowerHellSecurityException) {
+			return new PowerHellSecurityException(cause.getMessage(), cause);
+		}
+		if (cause instanceof PowerHellCommunicationException) {
+			return new PowerHellCommunicationException(cause.getMessage(), cause);
+		}
+		if (cause instanceof PowerHellExecutionException) {
+			PowerHellExecutionException shared = (PowerHellExecutionException) cause;
+			PowerHellExecutionException copy = new PowerHellExecutionException(shared.getMessage(), shared, shared.getExitCode());
+			copy.setStdout(shared.getStdout());
+			copy.setStderr(shared.getStderr());
+			copy.setPromptMessage(shared.getPromptMessage());
+			copy.setCommandResults(shared.getCommandResults());
+			copy.setAborted(shared.isAborted());
+			return copy;
+		}
+		// Runtime exceptions cannot be copied preserving their class
+		return new PowerHellExecutionException(cause.getMessage(), cause);
+	}
+
+	private static class SharedResult {
+		private final String stdout;
+		private final String stderr;
+
+		SharedResult(String stdout, String stderr) {
+			this.stdout = stdout;
+			this.stderr = stderr;
+		}
+	}
+}
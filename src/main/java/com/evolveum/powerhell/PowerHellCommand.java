@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Command and its arguments, as used in batch execution.
+ * Also used as a key to identify identical commands (e.g. in a cache).
+ * 
+ * @author semancik
+ */
+public class PowerHellCommand {
+	
+	private final String command;
+	private final Map<String,Object> arguments;
+	
+	public PowerHellCommand(String command, Map<String, Object> arguments) {
+		this.command = command;
+		this.arguments = arguments;
+	}
+
+	public PowerHellCommand(String command) {
+		this(command, null);
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public Map<String, Object> getArguments() {
+		return arguments;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(command, arguments);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null || getClass() != obj.getClass()) {
+			return false;
+		}
+		PowerHellCommand other = (PowerHellCommand) obj;
+		return Objects.equals(command, other.command) && Objects.equals(arguments, other.arguments);
+	}
+
+	@Override
+	public String toString() {
+		return "PowerHellCommand(" + command + ", " + arguments + ")";
+	}
+	
+}
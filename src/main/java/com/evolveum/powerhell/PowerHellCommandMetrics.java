@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Metrics of a single command execution. Durations are in nanoseconds.
+ * Sizes are measured in characters, as this is what PowerHell sends and receives.
+ * 
+ * Phases: send (from start of the command until the command is sent, including
+ * loop re-start if needed), time to first byte (from send to the first received
+ * output), receive (from send to the end of the command), total.
+ * 
+ * @author semancik
+ */
+public class PowerHellCommandMetrics {
+	
+	private final String implementationName;
+	private final String endpoint;
+	private final long tsStart;
+	private long tsSent = 0;
+	private long tsFirstByte = 0;
+	private long tsEnd = 0;
+	private long charsSent = 0;
+	private long charsReceived = 0;
+	private boolean success = false;
+	
+	PowerHellCommandMetrics(String implementationName, String endpoint) {
+		this.implementationName = implementationName;
+		this.endpoint = endpoint;
+		this.tsStart = System.nanoTime();
+	}
+
+	public String getImplementationName() {
+		return implementationName;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+	
+	public long getSendNanos() {
+		return sent() - tsStart;
+	}
+	
+	/**
+	 * Time from sending the command to the first output. Zero if there was no output.
+	 */
+	public long getTimeToFirstByteNanos() {
+		if (tsFirstByte == 0) {
+			return 0;
+		}
+		return tsFirstByte - sent();
+	}
+	
+	public long getReceiveNanos() {
+		return end() - sent();
+	}
+	
+	public long getTotalNanos() {
+		return end() - tsStart;
+	}
+
+	public long getCharsSent() {
+		return charsSent;
+	}
+
+	public long getCharsReceived() {
+		return charsReceived;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+	
+	void markSent(String data) {
+		if (data != null) {
+			charsSent += data.length();
+		}
+		tsSent = System.nanoTime();
+	}
+	
+	/**
+	 * Marks sending of the same data again (re-try). The data are not counted again.
+	 */
+	void markResent() {
+		tsSent = System.nanoTime();
+	}
+	
+	/**
+	 * Counts command input that is sent after the command, without changing time of sending.
+	 */
+	void markInputSent(String data) {
+		if (data != null) {
+			markInputSent(data.length());
+		}
+	}
+	
+	synchronized void markInputSent(int count) {
+		charsSent += count;
+	}
+	
+	void markReceived(String data) {
+		if (data != null) {
+			markReceived(data.length());
+		}
+	}
+
+	synchronized void markReceived(int count) {
+		if (count <= 0) {
+			return;
+		}
+		if (tsFirstByte == 0) {
+			tsFirstByte = System.nanoTime();
+		}
+		charsReceived += count;
+	}
+	
+	boolean isEnded() {
+		return tsEnd != 0;
+	}
+	
+	void markEnd(boolean success) {
+		this.tsEnd = System.nanoTime();
+		this.success = success;
+	}
+	
+	/**
+	 * Returns writer that counts the characters and passes them to the delegate.
+	 */
+	Writer countingWriter(Writer delegate) {
+		return new Writer() {
+			
+			@Override
+			public void write(char[] buffer, int offset, int length) throws IOException {
+				markReceived(length);
+				delegate.write(buffer, offset, length);
+			}
+			
+			@Override
+			public void write(String str, int offset, int length) throws IOException {
+				markReceived(length);
+				delegate.write(str, offset, length);
+			}
+			
+			@Override
+			public void flush() throws IOException {
+				delegate.flush();
+			}
+			
+			@Override
+			public void close() throws IOException {
+				delegate.close();
+			}
+		};
+	}
+	
+	private long sent() {
+		return tsSent == 0 ? tsStart : tsSent;
+	}
+
+	private long end() {
+		return tsEnd == 0 ? System.nanoTime() : tsEnd;
+	}
+
+	@Override
+	public String toString() {
+		return "PowerHellCommandMetrics(" + implementationName + ", " + endpoint + ", total=" + getTotalNanos()/1000000 
+				+ "ms, ttfb=" + getTimeToFirstByteNanos()/1000000 + "ms, sent=" + charsSent + ", received=" + charsReceived 
+				+ (success ? "" : ", failed") + ")";
+	}
+	
+}
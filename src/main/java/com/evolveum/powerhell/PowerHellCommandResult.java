@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Result of a single command in batch execution.
+ * 
+ * @author semancik
+ */
+public class PowerHellCommandResult {
+	
+	private final String stdout;
+	private final String stderr;
+	private final String errorMessage;
+	
+	public PowerHellCommandResult(String stdout, String stderr, String errorMessage) {
+		this.stdout = stdout;
+		this.stderr = stderr;
+		this.errorMessage = errorMessage;
+	}
+
+	public String getStdout() {
+		return stdout;
+	}
+
+	public String getStderr() {
+		return stderr;
+	}
+
+	/**
+	 * Error message reported by the loop (same as prompt message of PowerHellExecutionException).
+	 * Null if the command was successful.
+	 */
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+	
+	public boolean isSuccess() {
+		return errorMessage == null;
+	}
+
+	@Override
+	public String toString() {
+		return "PowerHellCommandResult(" + (isSuccess() ? "success" : "error: " + errorMessage) + ")";
+	}
+	
+}
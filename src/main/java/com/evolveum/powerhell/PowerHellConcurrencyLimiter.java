@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Adaptive limit of concurrent commands for one endpoint. The limit is learned
+ * from the feedback, using additive increase / multiplicative decrease (AIMD).
+ * Successful commands that actually used the whole limit raise the limit slowly
+ * (approximately by one for each "round" of commands). Overload signals
+ * (e.g. WinRM quota faults and timeouts, or latency above threshold)
+ * cut the limit by backoff ratio. Only one cut is made for a burst of failures,
+ * failures of commands that started before the last cut are ignored.
+ * </p>
+ * <p>
+ * Commands above the limit wait until other commands finish. The same limiter
+ * should be used for all the commands that go to the same endpoint,
+ * see {@link PowerHellConcurrencyLimiterRegistry}.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellConcurrencyLimiter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellConcurrencyLimiter.class);
+
+	// Configuration
+	private String name;
+	private int initialLimit = 4;
+	private int minLimit = 1;
+	private int maxLimit = 64;
+	private double backoffRatio = 0.5;
+	private long latencyThreshold = 0;
+	private long maxWaitTime = 0;
+
+	// State
+	private double limit = 0;
+	private int inFlight = 0;
+	private long lastDecrease = System.nanoTime();
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Name of the limiter (usually endpoint), used in logs and error messages.
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public int getInitialLimit() {
+		return initialLimit;
+	}
+
+	public void setInitialLimit(int initialLimit) {
+		this.initialLimit = initialLimit;
+	}
+
+	public int getMinLimit() {
+		return minLimit;
+	}
+
+	public void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	public void setMaxLimit(int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	public double getBackoffRatio() {
+		return backoffRatio;
+	}
+
+	/**
+	 * Ratio by which the limit is multiplied in case of overload (0.5 = limit is cut in half).
+	 */
+	public void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	public long getLatencyThreshold() {
+		return latencyThreshold;
+	}
+
+	/**
+	 * Command that takes longer than this (in milliseconds) is considered to be a sign of overload.
+	 * Zero means that latency is not considered.
+	 */
+	public void setLatencyThreshold(long latencyThreshold) {
+		this.latencyThreshold = latencyThreshold;
+	}
+
+	public long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+
+	/**
+	 * Maximum time (in milliseconds) that a command waits until it can be executed.
+	 * Zero means wait forever.
+	 */
+	public void setMaxWaitTime(long maxWaitTime) {
+		this.maxWaitTime = maxWaitTime;
+	}
+
+	/**
+	 * Current limit.
+	 */
+	public synchronized int getLimit() {
+		if (limit == 0) {
+			limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+		}
+		return Math.max(minLimit, (int) limit);
+	}
+
+	/**
+	 * Number of commands that are executed at the moment.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Waits until a command can be executed.
+	 * @return token that has to be passed to release() when the command ends
+	 */
+	public synchronized long acquire() throws PowerHellExecutionException, PowerHellCommunicationException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitTime);
+		try {
+			while (inFlight >= getLimit()) {
+				if (maxWaitTime > 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new PowerHellCommunicationException("Timeout waiting for concurrency limit of "+name
+								+" (limit "+getLimit()+", "+maxWaitTime+" ms)");
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} else {
+					wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PowerHellExecutionException("Interrupted while waiting for concurrency limit of "+name, e);
+		}
+		inFlight++;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Marks end of the command and adjusts the limit.
+	 * @param token value returned by acquire()
+	 * @param overloaded true if the command failed in a way that indicates overload of the endpoint
+	 */
+	public synchronized void release(long token, boolean overloaded) {
+		long now = System.nanoTime();
+		int usedLimit = getLimit();
+		boolean limitWasUsed = inFlight >= usedLimit;
+		inFlight--;
+		if (!overloaded && latencyThreshold > 0 && now - token > TimeUnit.MILLISECONDS.toNanos(latencyThreshold)) {
+			overloaded = true;
+		}
+		if (overloaded) {
+			if (token - lastDecrease > 0) {
+				limit = Math.max(minLimit, limit * backoffRatio);
+				lastDecrease = now;
+				LOG.debug("Overload of {}, decreasing concurrency limit {} -> {}", name, usedLimit, getLimit());
+			}
+		} else if (limitWasUsed) {
+			// Increase only when the limit is really a limit. It would grow without bounds otherwise.
+			limit = Math.min(maxLimit, limit + 1.0 / limit);
+			if (getLimit() > usedLimit) {
+				LOG.trace("Increasing concurrency limit of {} to {}", name, getLimit());
+			}
+		}
+		notifyAll();
+	}
+
+	@Override
+	public String toString() {
+		return "PowerHellConcurrencyLimiter(" + name + ", limit " + getLimit() + ", in flight " + getInFlight() + ")";
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Keeps one concurrency limiter for each endpoint, so all the PowerHell instances
+ * that talk to the same endpoint share the same limit.
+ *
+ * @author semancik
+ */
+public class PowerHellConcurrencyLimiterRegistry {
+
+	// Configuration
+	private Supplier<PowerHellConcurrencyLimiter> limiterFactory = PowerHellConcurrencyLimiter::new;
+
+	// State
+	private final Map<String, PowerHellConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+	public Supplier<PowerHellConcurrencyLimiter> getLimiterFactory() {
+		return limiterFactory;
+	}
+
+	/**
+	 * Creates configured limiters for new endpoints.
+	 */
+	public void setLimiterFactory(Supplier<PowerHellConcurrencyLimiter> limiterFactory) {
+		this.limiterFactory = limiterFactory;
+	}
+
+	public PowerHellConcurrencyLimiter getLimiter(String endpoint) {
+		return limiters.computeIfAbsent(endpoint, key -> {
+			PowerHellConcurrencyLimiter limiter = limiterFactory.get();
+			limiter.setName(key);
+			return limiter;
+		});
+	}
+
+	public Map<String, PowerHellConcurrencyLimiter> getLimiters() {
+		return limiters;
+	}
+}
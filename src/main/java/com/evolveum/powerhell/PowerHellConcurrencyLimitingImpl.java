@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * PowerHell decorator that limits number of concurrent commands using adaptive
+ * {@link PowerHellConcurrencyLimiter}. Commands above the limit wait instead of
+ * overloading the endpoint. Failures that indicate overload of the endpoint (quota faults
+ * and timeouts, as classified by {@link PowerHellRetryPolicy}) are reported to the limiter.
+ * Other failures (e.g. authentication or command errors) do not change the limit.
+ * </p>
+ * <p>
+ * The delegate must be able to execute several commands at once, e.g.
+ * {@link PowerHellPoolImpl} or multiplexed {@link PowerHellWinRmExecImpl}.
+ * Asynchronous commands wait for the limit in threads of the decorator.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellConcurrencyLimitingImpl extends AbstractPowerHellDecorator {
+
+	private static final long ASYNC_THREAD_KEEP_ALIVE = 60L;
+
+	// Configuration
+	private PowerHellConcurrencyLimiter limiter;
+	private PowerHellRetryPolicy retryPolicy = new PowerHellRetryPolicy();
+
+	// State
+	private ThreadPoolExecutor asyncExecutor;
+
+	public PowerHellConcurrencyLimitingImpl() {
+		super();
+	}
+
+	public PowerHellConcurrencyLimitingImpl(PowerHell delegate, PowerHellConcurrencyLimiter limiter) {
+		super(delegate);
+		this.limiter = limiter;
+	}
+
+	public PowerHellConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Limiter to use. Limiter should be shared by all the instances that use the same endpoint.
+	 */
+	public void setLimiter(PowerHellConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public PowerHellRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Retry policy that is used to classify the failures. Only its classification is used,
+	 * nothing is re-tried by this decorator.
+	 */
+	public void setRetryPolicy(PowerHellRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	@Override
+	public String getImplementationName() {
+		return "Concurrency limiting " + super.getImplementationName();
+	}
+
+	@Override
+	public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long token = limiter.acquire();
+		boolean overloaded = false;
+		try {
+			return super.runCommand(command, arguments);
+		} catch (Throwable e) {
+			overloaded = isOverload(e);
+			throw e;
+		} finally {
+			limiter.release(token, overloaded);
+		}
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long token = limiter.acquire();
+		boolean overloaded = false;
+		try {
+			super.runCommand(command, arguments, stdout, stderr);
+		} catch (Throwable e) {
+			overloaded = isOverload(e);
+			throw e;
+		} finally {
+			limiter.release(token, overloaded);
+		}
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long token = limiter.acquire();
+		boolean overloaded = false;
+		try {
+			super.runCommand(command, arguments, stdin, stdout, stderr);
+		} catch (Throwable e) {
+			overloaded = isOverload(e);
+			throw e;
+		} finally {
+			limiter.release(token, overloaded);
+		}
+	}
+
+	@Override
+	public void runCommandForObjects(String command, Map<String, Object> arguments, Consumer<Object> consumer) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		long token = limiter.acquire();
+		boolean overloaded = false;
+		try {
+			super.runCommandForObjects(command, arguments, consumer);
+		} catch (Throwable e) {
+			overloaded = isOverload(e);
+			throw e;
+		} finally {
+			limiter.release(token, overloaded);
+		}
+	}
+
+	@Override
+	public CompletableFuture<String> runCommandAsync(String command, Map<String, Object> arguments) {
+		return runCommandAsync(command, arguments, getAsyncExecutor());
+	}
+
+	@Override
+	public int disconnect() {
+		synchronized (this) {
+			if (asyncExecutor != null) {
+				asyncExecutor.shutdown();
+				asyncExecutor = null;
+			}
+		}
+		return super.disconnect();
+	}
+
+	private boolean isOverload(Throwable e) {
+		PowerHellRetryPolicy.FaultType faultType = retryPolicy.classify(e);
+		return faultType == PowerHellRetryPolicy.FaultType.QUOTA_EXCEEDED || faultType == PowerHellRetryPolicy.FaultType.TIMEOUT;
+	}
+
+	private synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			int threads = limiter.getMaxLimit();
+			asyncExecutor = new ThreadPoolExecutor(threads, threads, ASYNC_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), runnable -> {
+						Thread thread = new Thread(runnable, "PowerHell concurrency limiting " + limiter.getName());
+						thread.setDaemon(true);
+						return thread;
+					});
+			asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return asyncExecutor;
+	}
+}
@@ -15,6 +15,8 @@
  */
 package com.evolveum.powerhell;
 
+import java.util.List;
+
 /**
  * @author semancik
  *
@@ -25,6 +27,8 @@ public class PowerHellExecutionException extends PowerHellException {
 	private String stdout;
 	private String stderr;
 	private String promptMessage;
+	private List<PowerHellCommandResult> commandResults;
+	private boolean aborted;
 	
 	public PowerHellExecutionException() {
 		super();
@@ -84,4 +88,29 @@ public class PowerHellExecutionException extends PowerHellException {
 	public void setPromptMessage(String promptMessage) {
 		this.promptMessage = promptMessage;
 	}
+
+	/**
+	 * Results of the commands of a batch that were executed before the batch failed.
+	 * Null if the exception was not thrown by batch execution.
+	 */
+	public List<PowerHellCommandResult> getCommandResults() {
+		return commandResults;
+	}
+
+	public void setCommandResults(List<PowerHellCommandResult> commandResults) {
+		this.commandResults = commandResults;
+	}
+
+	/**
+	 * True if the command was aborted by the client, because it did not finish in time
+	 * or because the thread was interrupted. The command did not report the failure,
+	 * we do not know whether the endpoint is still alive.
+	 */
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	public void setAborted(boolean aborted) {
+		this.aborted = aborted;
+	}
 }
@@ -0,0 +1,546 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.ws.WebServiceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * In-process transport that does not execute anything. Responses to the commands
+ * are provided by a responder, which can also simulate slow commands and faults.
+ * It is supposed to be used to test and load-test WinRM PowerHell implementations
+ * without Windows host and without any PowerShell:
+ * </p>
+ * <pre>
+ * PowerHellFakeTransport transport = new PowerHellFakeTransport();
+ * transport.setResponder(script -&gt; PowerHellFakeTransport.Response.output("hello\r\n"));
+ * powerHell.setTransportFactory(ph -&gt; transport);
+ * </pre>
+ * <p>
+ * PowerShell command lines ("powershell -EncodedCommand ...") are decoded, the responder
+ * gets the script. The loop script of {@link PowerHellWinRmLoopImpl} is recognized
+ * and emulated: the first prompt is sent, the commands sent to the loop are passed
+ * to the responder one by one and they are terminated by the prompt (or by frame end).
+ * Input requests of the commands (Read-PowerHellInput) are not emulated.
+ * Other command lines are passed to the responder as they are.
+ * </p>
+ * <p>
+ * Exception thrown by the responder is thrown by the operation that started
+ * the command (commandAsync or send), which simulates a fault of WinRM request.
+ * Fault that happens later (during receive) is simulated by {@link Response#fault(RuntimeException)}.
+ * </p>
+ * <p>
+ * The transport is thread-safe. The same instance may be shared by several PowerHell instances.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellFakeTransport implements PowerHellTransport {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellFakeTransport.class);
+	private static final String POWERSHELL_ENCODED_COMMAND_PREFIX = "powershell -EncodedCommand ";
+
+	// Configuration
+	private Responder responder = script -> Response.output("");
+	private String prompt = PowerHellWinRmLoopImpl.PROMPT;
+	private LoopProtocol loopProtocol = LoopProtocol.PROMPT;
+	private long receiveTimeout = 100L;
+	private int maxReceiveLength = 0;
+
+	// State
+	private final List<String> scripts = new ArrayList<>();
+	private int activeCommands = 0;
+	private int maxActiveCommands = 0;
+	private int disconnects = 0;
+
+	public Responder getResponder() {
+		return responder;
+	}
+
+	/**
+	 * Provides responses to the commands. It may be invoked concurrently
+	 * by several threads if the commands are executed concurrently.
+	 */
+	public void setResponder(Responder responder) {
+		this.responder = responder;
+	}
+
+	public String getPrompt() {
+		return prompt;
+	}
+
+	/**
+	 * Prompt of the emulated loop. It has to be the same as the prompt of the PowerHell loop.
+	 */
+	public void setPrompt(String prompt) {
+		this.prompt = prompt;
+	}
+
+	public LoopProtocol getLoopProtocol() {
+		return loopProtocol;
+	}
+
+	/**
+	 * Protocol of the emulated loop. It has to be the same as the protocol of the PowerHell loop.
+	 */
+	public void setLoopProtocol(LoopProtocol loopProtocol) {
+		this.loopProtocol = loopProtocol;
+	}
+
+	public long getReceiveTimeout() {
+		return receiveTimeout;
+	}
+
+	/**
+	 * Maximum time (in milliseconds) that a single receive waits for output.
+	 * This is similar to operation timeout of WinRM.
+	 */
+	public void setReceiveTimeout(long receiveTimeout) {
+		this.receiveTimeout = receiveTimeout;
+	}
+
+	public int getMaxReceiveLength() {
+		return maxReceiveLength;
+	}
+
+	/**
+	 * Maximum number of stdout characters returned by a single receive. Longer output
+	 * is split between several receives at arbitrary places, e.g. in the middle of the prompt.
+	 * Zero means no limit.
+	 */
+	public void setMaxReceiveLength(int maxReceiveLength) {
+		this.maxReceiveLength = maxReceiveLength;
+	}
+
+	/**
+	 * Scripts that were passed to the responder, in the order in which they were received.
+	 */
+	public synchronized List<String> getScripts() {
+		return new ArrayList<>(scripts);
+	}
+
+	/**
+	 * Number of commands that were not released yet.
+	 */
+	public synchronized int getActiveCommands() {
+		return activeCommands;
+	}
+
+	/**
+	 * Maximum number of commands that were active at the same time.
+	 */
+	public synchronized int getMaxActiveCommands() {
+		return maxActiveCommands;
+	}
+
+	/**
+	 * Number of times the transport was disconnected.
+	 */
+	public synchronized int getDisconnects() {
+		return disconnects;
+	}
+
+	@Override
+	public int command(String commandLine, Writer stdout, Writer stderr) {
+		FakeCommand command = commandAsync(commandLine);
+		try {
+			while (true) {
+				Integer exitCode = command.receive();
+				write(stdout, command.getLastOut());
+				write(stderr, command.getLastErr());
+				if (exitCode != null) {
+					return exitCode;
+				}
+			}
+		} finally {
+			command.release();
+		}
+	}
+
+	@Override
+	public FakeCommand commandAsync(String commandLine) {
+		String script = decode(commandLine);
+		FakeCommand command;
+		if (script.contains(prompt + " exit")) {
+			LOG.trace("Starting fake loop");
+			command = new FakeCommand(true);
+			command.addOutput(0L, prompt + "\r\n", null);
+		} else {
+			Response response = respond(script);
+			command = new FakeCommand(false);
+			command.addResponse(response);
+		}
+		synchronized (this) {
+			activeCommands++;
+			maxActiveCommands = Math.max(maxActiveCommands, activeCommands);
+		}
+		return command;
+	}
+
+	@Override
+	public synchronized void disconnect() {
+		disconnects++;
+	}
+
+	private Response respond(String script) {
+		synchronized (this) {
+			scripts.add(script);
+		}
+		LOG.trace("Fake command: {}", script);
+		Response response = responder.respond(script);
+		return response == null ? Response.output("") : response;
+	}
+
+	private synchronized void commandReleased() {
+		activeCommands--;
+	}
+
+	private String decode(String commandLine) {
+		if (commandLine.startsWith(POWERSHELL_ENCODED_COMMAND_PREFIX)) {
+			byte[] bytes = Base64.getDecoder().decode(commandLine.substring(POWERSHELL_ENCODED_COMMAND_PREFIX.length()).trim());
+			return new String(bytes, StandardCharsets.UTF_16LE);
+		}
+		return commandLine;
+	}
+
+	private void write(Writer writer, String data) {
+		if (data == null || data.isEmpty()) {
+			return;
+		}
+		try {
+			writer.write(data);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@FunctionalInterface
+	public interface Responder {
+
+		/**
+		 * Returns response to the script. May throw runtime exception to simulate a fault.
+		 */
+		Response respond(String script);
+	}
+
+	/**
+	 * Scripted response to a command.
+	 */
+	public static class Response {
+
+		private String stdout = "";
+		private String stderr;
+		private String errorMessage;
+		private Integer exitCode;
+		private RuntimeException fault;
+		private long delay;
+
+		/**
+		 * Successful command with specified output.
+		 */
+		public static Response output(String stdout) {
+			Response response = new Response();
+			response.stdout = stdout;
+			return response;
+		}
+
+		/**
+		 * Failed command. The message is reported by the loop (prompt message).
+		 * Command that is not executed in the loop writes the message to stderr and exits with code 1.
+		 */
+		public static Response error(String errorMessage) {
+			Response response = new Response();
+			response.errorMessage = errorMessage;
+			return response;
+		}
+
+		/**
+		 * Command that exits with specified code. If executed in the loop, the loop exits as well.
+		 */
+		public static Response exit(int exitCode) {
+			Response response = new Response();
+			response.exitCode = exitCode;
+			return response;
+		}
+
+		/**
+		 * Command that fails with a fault when its output is received.
+		 */
+		public static Response fault(RuntimeException fault) {
+			Response response = new Response();
+			response.fault = fault;
+			return response;
+		}
+
+		/**
+		 * Command that produces part of its output, then it fails with a fault
+		 * when the rest of the output is received.
+		 */
+		public static Response faultAfterOutput(String stdout, RuntimeException fault) {
+			Response response = fault(fault);
+			response.stdout = stdout;
+			return response;
+		}
+
+		/**
+		 * Adds stderr output to the response.
+		 */
+		public Response stderr(String stderr) {
+			this.stderr = stderr;
+			return this;
+		}
+
+		/**
+		 * Delays the response by specified number of milliseconds.
+		 */
+		public Response delay(long delay) {
+			this.delay = delay;
+			return this;
+		}
+	}
+
+	private static class Chunk {
+		private final long readyAt;
+		private final String out;
+		private final String err;
+		private final Integer exitCode;
+		private final RuntimeException fault;
+
+		Chunk(long readyAt, String out, String err, Integer exitCode, RuntimeException fault) {
+			this.readyAt = readyAt;
+			this.out = out;
+			this.err = err;
+			this.exitCode = exitCode;
+			this.fault = fault;
+		}
+	}
+
+	/**
+	 * Command with scripted output. Output of each response is available
+	 * after the delay of the response, the delays of loop commands add up.
+	 */
+	public class FakeCommand implements PowerHellTransportCommand {
+
+		private final boolean loop;
+		private final Deque<Chunk> chunks = new ArrayDeque<>();
+		private final StringBuilder pendingInput = new StringBuilder();
+		private final StringBuilder loopCommand = new StringBuilder();
+		private long lastReadyAt = System.nanoTime();
+		private boolean ended = false;
+		private boolean released = false;
+		private String lastOut;
+		private String lastErr;
+
+		FakeCommand(boolean loop) {
+			this.loop = loop;
+		}
+
+		@Override
+		public Integer receive() {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(receiveTimeout);
+			StringBuilder out = new StringBuilder();
+			StringBuilder err = new StringBuilder();
+			Integer exitCode = null;
+			synchronized (this) {
+				try {
+					while (true) {
+						Chunk chunk = chunks.peekFirst();
+						long now = System.nanoTime();
+						if (chunk != null && chunk.readyAt <= now) {
+							if (chunk.fault != null && (out.length() > 0 || err.length() > 0)) {
+								// Output received so far is provided first, the fault comes with next receive
+								break;
+							}
+							chunks.removeFirst();
+							if (chunk.fault != null) {
+								throw chunk.fault;
+							}
+							if (maxReceiveLength > 0 && chunk.out != null && out.length() + chunk.out.length() > maxReceiveLength) {
+								// The rest of the chunk (with exit code, if any) is left for next receive
+								int split = Math.max(maxReceiveLength - out.length(), 0);
+								out.append(chunk.out, 0, split);
+								chunks.addFirst(new Chunk(chunk.readyAt, chunk.out.substring(split), chunk.err, chunk.exitCode, null));
+								break;
+							}
+							append(out, chunk.out);
+							append(err, chunk.err);
+							if (chunk.exitCode != null) {
+								exitCode = chunk.exitCode;
+								chunks.clear();
+								break;
+							}
+							continue;
+						}
+						if (out.length() > 0 || err.length() > 0 || now >= deadline) {
+							break;
+						}
+						long waitUntil = chunk == null ? deadline : Math.min(deadline, chunk.readyAt);
+						TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitUntil - now, 1L));
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			lastOut = out.length() == 0 ? null : out.toString();
+			lastErr = err.length() == 0 ? null : err.toString();
+			return exitCode;
+		}
+
+		@Override
+		public String getLastOut() {
+			return lastOut;
+		}
+
+		@Override
+		public String getLastErr() {
+			return lastErr;
+		}
+
+		@Override
+		public void send(String input) {
+			List<String> loopScripts = new ArrayList<>();
+			synchronized (this) {
+				if (released || (loop && ended)) {
+					throw new WebServiceException("Fake command has already ended");
+				}
+				if (!loop) {
+					// Input of other commands is ignored. Their response is ready right away,
+					// but they accept input until released, as if they were reading it.
+					return;
+				}
+				pendingInput.append(input);
+				int eol;
+				while ((eol = pendingInput.indexOf("\n")) >= 0) {
+					String line = pendingInput.substring(0, eol);
+					pendingInput.delete(0, eol + 1);
+					if (line.endsWith("\r")) {
+						line = line.substring(0, line.length() - 1);
+					}
+					if (line.equals(prompt + " exit")) {
+						chunks.addLast(new Chunk(nextReadyAt(0L), null, null, 0, null));
+						ended = true;
+						notifyAll();
+						return;
+					} else if (line.equals(prompt)) {
+						loopScripts.add(loopCommand.toString());
+						loopCommand.setLength(0);
+					} else {
+						loopCommand.append(line).append("\n");
+					}
+				}
+			}
+			// Responder is invoked outside of the lock, it may take time
+			for (String script : loopScripts) {
+				synchronized (this) {
+					if (ended) {
+						break;
+					}
+				}
+				addResponse(respond(script));
+			}
+		}
+
+		@Override
+		public void release() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+				ended = true;
+				chunks.clear();
+				notifyAll();
+			}
+			commandReleased();
+		}
+
+		private synchronized void addResponse(Response response) {
+			if (ended) {
+				// Loop has exited, the rest of the commands is not executed
+				return;
+			}
+			if (response.fault != null) {
+				long readyAt = nextReadyAt(response.delay);
+				if (response.stdout != null && !response.stdout.isEmpty()) {
+					chunks.addLast(new Chunk(readyAt, response.stdout, null, null, null));
+				}
+				chunks.addLast(new Chunk(readyAt, null, null, null, response.fault));
+				notifyAll();
+				return;
+			}
+			long readyAt = nextReadyAt(response.delay);
+			String out = response.stdout;
+			String err = response.stderr;
+			if (response.exitCode != null) {
+				chunks.addLast(new Chunk(readyAt, out, err, response.exitCode, null));
+				ended = true;
+			} else if (!loop) {
+				if (response.errorMessage != null) {
+					err = err == null ? response.errorMessage : err + response.errorMessage;
+				}
+				chunks.addLast(new Chunk(readyAt, out, err, response.errorMessage == null ? 0 : 1, null));
+				ended = true;
+			} else if (loopProtocol == LoopProtocol.FRAMED) {
+				chunks.addLast(new Chunk(readyAt, frame(PowerHellFramedLoopParser.FRAME_OUTPUT, out)
+						+ frame(PowerHellFramedLoopParser.FRAME_END, response.errorMessage), err, null, null));
+			} else {
+				String end = prompt + (response.errorMessage == null ? "" : response.errorMessage) + "\r\n";
+				chunks.addLast(new Chunk(readyAt, out == null ? end : out + end, err, null, null));
+			}
+			notifyAll();
+		}
+
+		private synchronized void addOutput(long delay, String out, String err) {
+			if (out != null || err != null) {
+				chunks.addLast(new Chunk(nextReadyAt(delay), out, err, null, null));
+				notifyAll();
+			}
+		}
+
+		private long nextReadyAt(long delay) {
+			lastReadyAt = Math.max(lastReadyAt, System.nanoTime()) + TimeUnit.MILLISECONDS.toNanos(delay);
+			return lastReadyAt;
+		}
+
+		private String frame(char type, String payload) {
+			if (payload == null || payload.isEmpty()) {
+				return type == PowerHellFramedLoopParser.FRAME_END ? type + "0:" : "";
+			}
+			return type + Integer.toString(payload.length()) + PowerHellFramedLoopParser.FRAME_LENGTH_SEPARATOR + payload;
+		}
+
+		private void append(StringBuilder sb, String data) {
+			if (data != null) {
+				sb.append(data);
+			}
+		}
+	}
+
+}
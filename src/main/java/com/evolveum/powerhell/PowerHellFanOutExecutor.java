@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Executes the same command on many targets (usually WinRM endpoints) in parallel.
+ * Each target is a PowerHell instance configured for one endpoint.
+ * Number of targets that are processed at the same time is limited by maximum concurrency.
+ * </p>
+ * <p>
+ * Results are passed to the consumer as soon as they are available, in the order in which
+ * the targets finish. The consumer is invoked in the thread that called runCommand().
+ * Failure of one target does not affect the other targets, it is reported in its result.
+ * </p>
+ * <p>
+ * By default, the targets are connected before the command and disconnected after it.
+ * Connections can be managed by the caller instead, e.g. when the same targets are used
+ * for several commands.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellFanOutExecutor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellFanOutExecutor.class);
+
+	// Configuration
+	private int maxConcurrency = 8;
+	private boolean manageConnections = true;
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * Maximum number of targets that are processed at the same time.
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public boolean isManageConnections() {
+		return manageConnections;
+	}
+
+	/**
+	 * If set to true (default), each target is connected before the command and
+	 * disconnected after the command. If set to false, the targets must be connected by the caller.
+	 */
+	public void setManageConnections(boolean manageConnections) {
+		this.manageConnections = manageConnections;
+	}
+
+	/**
+	 * Runs the command on all the targets, passing the results to the consumer as they arrive.
+	 * Returns when all the targets are finished.
+	 * @return results in the order in which the targets finished
+	 */
+	public List<PowerHellFanOutResult> runCommand(List<? extends PowerHell> targets, String command, Map<String, Object> arguments,
+			Consumer<PowerHellFanOutResult> resultConsumer) throws PowerHellExecutionException {
+		List<PowerHellFanOutResult> results = new ArrayList<>(targets.size());
+		if (targets.isEmpty()) {
+			return results;
+		}
+		int threads = Math.max(1, Math.min(maxConcurrency, targets.size()));
+		LOG.debug("Running command on {} targets, concurrency {}", targets.size(), threads);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "PowerHell fan-out");
+					thread.setDaemon(true);
+					return thread;
+				});
+		BlockingQueue<PowerHellFanOutResult> completed = new LinkedBlockingQueue<>();
+		try {
+			for (PowerHell target : targets) {
+				executor.execute(() -> completed.add(runOnTarget(target, command, arguments)));
+			}
+			while (results.size() < targets.size()) {
+				PowerHellFanOutResult result = completed.take();
+				results.add(result);
+				if (resultConsumer != null) {
+					resultConsumer.accept(result);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PowerHellExecutionException("Interrupted while waiting for "+(targets.size()-results.size())+" targets", e);
+		} finally {
+			// Interrupts commands that are still running (if the caller was interrupted)
+			executor.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Runs the command on all the targets.
+	 * @return results in the order in which the targets finished
+	 */
+	public List<PowerHellFanOutResult> runCommand(List<? extends PowerHell> targets, String command, Map<String, Object> arguments) throws PowerHellExecutionException {
+		return runCommand(targets, command, arguments, null);
+	}
+
+	private PowerHellFanOutResult runOnTarget(PowerHell target, String command, Map<String, Object> arguments) {
+		String endpoint = getEndpoint(target);
+		long tsStart = System.nanoTime();
+		String stdout = null;
+		Exception exception = null;
+		try {
+			if (manageConnections) {
+				target.connect();
+			}
+			try {
+				stdout = target.runCommand(command, arguments);
+			} finally {
+				if (manageConnections) {
+					disconnect(target, endpoint);
+				}
+			}
+		} catch (PowerHellException | RuntimeException e) {
+			LOG.debug("Command failed on {}: {}", endpoint, e.getMessage(), e);
+			exception = e;
+		} catch (Error e) {
+			// Result must be provided anyway, otherwise the caller would wait forever
+			LOG.error("Command failed on {}: {}", endpoint, e.getMessage(), e);
+			exception = new PowerHellExecutionException("Command failed: " + e.getMessage(), e);
+		}
+		return new PowerHellFanOutResult(target, endpoint, stdout, exception, System.nanoTime() - tsStart);
+	}
+
+	private void disconnect(PowerHell target, String endpoint) {
+		try {
+			target.disconnect();
+		} catch (RuntimeException e) {
+			LOG.warn("Error disconnecting {}: {}", endpoint, e.getMessage(), e);
+		}
+	}
+
+	private String getEndpoint(PowerHell target) {
+		if (target instanceof AbstractPowerHellImpl) {
+			return ((AbstractPowerHellImpl) target).getEndpoint();
+		}
+		return target.getImplementationName();
+	}
+}
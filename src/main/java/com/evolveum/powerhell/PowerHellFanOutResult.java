@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Result of a command executed on one of the targets by {@link PowerHellFanOutExecutor}.
+ * 
+ * @author semancik
+ */
+public class PowerHellFanOutResult {
+	
+	private final PowerHell target;
+	private final String endpoint;
+	private final String stdout;
+	private final Exception exception;
+	private final long durationNanos;
+	
+	public PowerHellFanOutResult(PowerHell target, String endpoint, String stdout, Exception exception, long durationNanos) {
+		this.target = target;
+		this.endpoint = endpoint;
+		this.stdout = stdout;
+		this.exception = exception;
+		this.durationNanos = durationNanos;
+	}
+
+	public PowerHell getTarget() {
+		return target;
+	}
+
+	/**
+	 * Endpoint of the target (e.g. WinRM URL), if known. Implementation name otherwise.
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public String getStdout() {
+		return stdout;
+	}
+
+	/**
+	 * Exception that was thrown when connecting to the target or executing the command.
+	 * Null if the command was successful.
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * Duration of the execution on the target, including connection.
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+	
+	public boolean isSuccess() {
+		return exception == null;
+	}
+
+	@Override
+	public String toString() {
+		return "PowerHellFanOutResult(" + endpoint + ": " + (isSuccess() ? "success" : "error: " + exception.getMessage()) + ")";
+	}
+	
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parser for {@link LoopProtocol#FRAMED}. Single pass over the data,
+ * state is kept between the chunks.
+ * 
+ * Output that is not framed (e.g. something written directly to console by the command)
+ * is passed as command output. Frame header is recognized only at frame boundary:
+ * at the beginning of the output, right after complete frame or at the beginning of a line
+ * of unframed output. Anything that does not look like a complete frame header
+ * (type, length, separator) is passed as output as well. Unframed output should therefore
+ * end with line end, otherwise the frame that follows it is not recognized.
+ * 
+ * @author semancik
+ */
+class PowerHellFramedLoopParser implements PowerHellLoopParser {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellFramedLoopParser.class);
+	
+	static final char FRAME_OUTPUT = 'O';
+	static final char FRAME_END = 'Z';
+	static final char FRAME_INPUT = 'I';
+	static final char FRAME_LENGTH_SEPARATOR = ':';
+	private static final int MAX_LENGTH_DIGITS = 9;
+	
+	private enum State { TYPE, LENGTH, PAYLOAD, UNFRAMED }
+	
+	private final Handler handler;
+	private State state = State.TYPE;
+	private char frameType;
+	private int remaining;
+	private final StringBuilder header = new StringBuilder();
+	private boolean unframedLineOutput;
+	private final StringBuilder endPayload = new StringBuilder();
+	
+	PowerHellFramedLoopParser(Handler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public void parse(String chunk) throws PowerHellExecutionException {
+		if (chunk == null) {
+			return;
+		}
+		int length = chunk.length();
+		int i = 0;
+		while (i < length) {
+			switch (state) {
+				case TYPE:
+					char c = chunk.charAt(i);
+					if (isFrameType(c)) {
+						frameType = c;
+						remaining = 0;
+						header.setLength(0);
+						header.append(c);
+						state = State.LENGTH;
+						i++;
+					} else {
+						state = State.UNFRAMED;
+					}
+					break;
+					
+				case LENGTH:
+					char d = chunk.charAt(i);
+					if (d >= '0' && d <= '9' && header.length() <= MAX_LENGTH_DIGITS) {
+						remaining = remaining * 10 + (d - '0');
+						header.append(d);
+						i++;
+					} else if (d == FRAME_LENGTH_SEPARATOR && header.length() > 1) {
+						i++;
+						if (remaining == 0) {
+							frameComplete();
+						} else {
+							state = State.PAYLOAD;
+						}
+					} else {
+						// Not a frame after all. The character is processed again as unframed output.
+						LOG.trace("Unframed output looks like frame header: {}", header);
+						handler.output(header.toString());
+						unframedLineOutput = true;
+						state = State.UNFRAMED;
+					}
+					break;
+					
+				case PAYLOAD:
+					int take = Math.min(remaining, length - i);
+					if (frameType == FRAME_OUTPUT) {
+						handler.output(chunk.substring(i, i + take));
+					} else {
+						endPayload.append(chunk, i, i + take);
+					}
+					i += take;
+					remaining -= take;
+					if (remaining == 0) {
+						frameComplete();
+					}
+					break;
+					
+				case UNFRAMED:
+					i = unframed(chunk, i);
+					break;
+			}
+		}
+	}
+
+	private void frameComplete() throws PowerHellExecutionException {
+		state = State.TYPE;
+		if (frameType == FRAME_END) {
+			String errorMessage = endPayload.length() == 0 ? null : endPayload.toString();
+			endPayload.setLength(0);
+			handler.end(errorMessage);
+		} else if (frameType == FRAME_INPUT) {
+			endPayload.setLength(0);
+			handler.inputRequest();
+		}
+	}
+	
+	private boolean isFrameType(char c) {
+		return c == FRAME_OUTPUT || c == FRAME_END || c == FRAME_INPUT;
+	}
+
+	/**
+	 * Passes data up to the end of line as output. Next frame may start after that.
+	 * Line ends between frames are ignored.
+	 */
+	private int unframed(String chunk, int start) throws PowerHellExecutionException {
+		int end = chunk.indexOf('\n', start);
+		boolean lineEnd = end >= 0;
+		end = lineEnd ? end + 1 : chunk.length();
+		String data = chunk.substring(start, end);
+		if (unframedLineOutput || !data.trim().isEmpty()) {
+			LOG.trace("Unframed output: {}", data);
+			handler.output(data);
+			unframedLineOutput = true;
+		}
+		if (lineEnd) {
+			unframedLineOutput = false;
+			state = State.TYPE;
+		}
+		return end;
+	}
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * Writer that takes compressed command output and writes decompressed output to another writer.
+ * The input is sequence of base64-encoded chunks of raw deflate stream (as produced by
+ * DeflateStream in .NET) with UTF-8 text inside. Chunks are separated by line ends,
+ * each chunk may have its own base64 padding.
+ * </p>
+ * <p>
+ * Data are decompressed as they are written, therefore decompressed output is available
+ * before the command ends. Writer must be closed at the end, which checks that the
+ * compressed stream is complete. The target writer is not closed.
+ * </p>
+ *
+ * @author semancik
+ */
+class PowerHellInflatingWriter extends Writer {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int[] BASE64_VALUES = new int[128];
+
+	static {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < BASE64_VALUES.length; i++) {
+			BASE64_VALUES[i] = -1;
+		}
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = i;
+		}
+	}
+
+	private final Writer target;
+	private final Inflater inflater = new Inflater(true);
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final byte[] compressed = new byte[BUFFER_SIZE];
+	private int compressedCount = 0;
+	private final byte[] inflated = new byte[BUFFER_SIZE];
+	private final ByteBuffer decoderInput = ByteBuffer.allocate(BUFFER_SIZE * 2);
+	private final CharBuffer decoderOutput = CharBuffer.allocate(BUFFER_SIZE * 2);
+	private int quadBits = 0;
+	private int quadCount = 0;
+	private boolean closed = false;
+
+	PowerHellInflatingWriter(Writer target) {
+		this.target = target;
+	}
+
+	@Override
+	public void write(char[] buffer, int offset, int length) throws IOException {
+		for (int i = offset; i < offset + length; i++) {
+			decodeBase64(buffer[i]);
+		}
+		inflateCompressed();
+	}
+
+	@Override
+	public void write(String str, int offset, int length) throws IOException {
+		for (int i = offset; i < offset + length; i++) {
+			decodeBase64(str.charAt(i));
+		}
+		inflateCompressed();
+	}
+
+	private void decodeBase64(char c) throws IOException {
+		if (c == '=') {
+			// Padding at the end of a chunk. Flush partial quad, ignore the rest of the padding.
+			if (quadCount == 2) {
+				addCompressed(quadBits >>> 4);
+			} else if (quadCount == 3) {
+				addCompressed(quadBits >>> 10);
+				addCompressed(quadBits >>> 2);
+			}
+			quadBits = 0;
+			quadCount = 0;
+			return;
+		}
+		int value = c < 128 ? BASE64_VALUES[c] : -1;
+		if (value < 0) {
+			// Line ends and other whitespace between chunks
+			return;
+		}
+		quadBits = (quadBits << 6) | value;
+		if (++quadCount == 4) {
+			addCompressed(quadBits >>> 16);
+			addCompressed(quadBits >>> 8);
+			addCompressed(quadBits);
+			quadBits = 0;
+			quadCount = 0;
+		}
+	}
+
+	private void addCompressed(int b) throws IOException {
+		if (compressedCount == compressed.length) {
+			inflateCompressed();
+		}
+		compressed[compressedCount++] = (byte) b;
+	}
+
+	private void inflateCompressed() throws IOException {
+		if (compressedCount == 0) {
+			return;
+		}
+		inflater.setInput(compressed, 0, compressedCount);
+		try {
+			while (!inflater.needsInput() && !inflater.finished()) {
+				int count = inflater.inflate(inflated);
+				if (count == 0 && !inflater.needsInput() && !inflater.finished()) {
+					throw new IOException("Unexpected compressed output, inflater needs dictionary");
+				}
+				decode(count, false);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted compressed output: " + e.getMessage(), e);
+		}
+		compressedCount = 0;
+	}
+
+	private void decode(int count, boolean endOfInput) throws IOException {
+		int offset = 0;
+		while (offset < count || endOfInput) {
+			int chunk = Math.min(count - offset, decoderInput.remaining());
+			decoderInput.put(inflated, offset, chunk);
+			offset += chunk;
+			decoderInput.flip();
+			CoderResult result = decoder.decode(decoderInput, decoderOutput, endOfInput && offset == count);
+			decoderInput.compact();
+			writeDecoded();
+			if (result.isOverflow()) {
+				continue;
+			}
+			if (endOfInput) {
+				break;
+			}
+		}
+	}
+
+	private void writeDecoded() throws IOException {
+		decoderOutput.flip();
+		if (decoderOutput.hasRemaining()) {
+			target.write(decoderOutput.array(), decoderOutput.arrayOffset() + decoderOutput.position(), decoderOutput.remaining());
+		}
+		decoderOutput.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		target.flush();
+	}
+
+	/**
+	 * Finishes decompression. Does not close the target writer.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			inflateCompressed();
+			decode(0, true);
+			decoder.flush(decoderOutput);
+			writeDecoded();
+			if (!inflater.finished() && inflater.getTotalIn() > 0) {
+				throw new IOException("Compressed output is incomplete");
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for the output of PowerShell ConvertTo-Json.
+ * Objects are parsed to Map (keeping the order of properties), arrays to List,
+ * numbers to Long or Double, strings to String, true/false to Boolean.
+ * 
+ * @author semancik
+ */
+class PowerHellJsonParser {
+	
+	private final String text;
+	private int position = 0;
+	
+	private PowerHellJsonParser(String text) {
+		this.text = text;
+	}
+	
+	static Object parse(String text) {
+		PowerHellJsonParser parser = new PowerHellJsonParser(text);
+		Object value = parser.parseValue();
+		parser.skipWhitespace();
+		if (parser.position < text.length()) {
+			throw parser.error("Unexpected data after JSON value");
+		}
+		return value;
+	}
+	
+	private Object parseValue() {
+		skipWhitespace();
+		if (position >= text.length()) {
+			throw error("Unexpected end of JSON");
+		}
+		char c = text.charAt(position);
+		switch (c) {
+			case '{':
+				return parseObject();
+			case '[':
+				return parseArray();
+			case '"':
+				return parseString();
+			case 't':
+				expect("true");
+				return Boolean.TRUE;
+			case 'f':
+				expect("false");
+				return Boolean.FALSE;
+			case 'n':
+				expect("null");
+				return null;
+			default:
+				return parseNumber();
+		}
+	}
+
+	private Map<String,Object> parseObject() {
+		Map<String,Object> object = new LinkedHashMap<>();
+		position++;
+		skipWhitespace();
+		if (peek() == '}') {
+			position++;
+			return object;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"') {
+				throw error("Expected property name");
+			}
+			String name = parseString();
+			skipWhitespace();
+			if (peek() != ':') {
+				throw error("Expected ':'");
+			}
+			position++;
+			object.put(name, parseValue());
+			skipWhitespace();
+			char c = next();
+			if (c == '}') {
+				return object;
+			} else if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	private List<Object> parseArray() {
+		List<Object> array = new ArrayList<>();
+		position++;
+		skipWhitespace();
+		if (peek() == ']') {
+			position++;
+			return array;
+		}
+		while (true) {
+			array.add(parseValue());
+			skipWhitespace();
+			char c = next();
+			if (c == ']') {
+				return array;
+			} else if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private String parseString() {
+		position++;
+		StringBuilder sb = null;
+		int start = position;
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				if (sb == null) {
+					return text.substring(start, position - 1);
+				}
+				return sb.toString();
+			}
+			if (c != '\\') {
+				if (sb != null) {
+					sb.append(c);
+				}
+				continue;
+			}
+			if (sb == null) {
+				sb = new StringBuilder();
+				sb.append(text, start, position - 1);
+			}
+			char escaped = next();
+			switch (escaped) {
+				case '"': sb.append('"'); break;
+				case '\\': sb.append('\\'); break;
+				case '/': sb.append('/'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u':
+					if (position + 4 > text.length()) {
+						throw error("Incomplete unicode escape");
+					}
+					try {
+						sb.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("Wrong unicode escape");
+					}
+					position += 4;
+					break;
+				default:
+					throw error("Wrong escape character '"+escaped+"'");
+			}
+		}
+	}
+
+	private Number parseNumber() {
+		int start = position;
+		boolean integral = true;
+		while (position < text.length()) {
+			char c = text.charAt(position);
+			if (c == '.' || c == 'e' || c == 'E') {
+				integral = false;
+			} else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+				break;
+			}
+			position++;
+		}
+		String number = text.substring(start, position);
+		if (number.isEmpty()) {
+			throw error("Unexpected character '"+peek()+"'");
+		}
+		try {
+			if (integral) {
+				try {
+					return Long.valueOf(number);
+				} catch (NumberFormatException e) {
+					// Too big for long
+				}
+			}
+			return Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw error("Wrong number "+number);
+		}
+	}
+
+	private void expect(String literal) {
+		if (!text.startsWith(literal, position)) {
+			throw error("Expected "+literal);
+		}
+		position += literal.length();
+	}
+
+	private char peek() {
+		if (position >= text.length()) {
+			throw error("Unexpected end of JSON");
+		}
+		return text.charAt(position);
+	}
+
+	private char next() {
+		char c = peek();
+		position++;
+		return c;
+	}
+
+	private void skipWhitespace() {
+		while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+			position++;
+		}
+	}
+	
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + position);
+	}
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Listener that receives timing and other metrics of PowerHell executions.
+ * All the methods are optional. Listeners are invoked synchronously in the thread
+ * that executes the command, therefore they should be fast. Exceptions thrown by
+ * listeners are logged and ignored.
+ * 
+ * Durations are in nanoseconds.
+ * 
+ * @author semancik
+ */
+public interface PowerHellListener {
+	
+	/**
+	 * Client was connected (or re-connected).
+	 */
+	default void onConnect(String implementationName, String endpoint, long durationNanos) {
+	}
+
+	/**
+	 * Loop was started, the duration includes execution of the initialization scriptlet.
+	 */
+	default void onLoopStart(String implementationName, String endpoint, long durationNanos) {
+	}
+
+	/**
+	 * Command has finished, successfully or not.
+	 */
+	default void onCommand(PowerHellCommandMetrics metrics) {
+	}
+	
+	/**
+	 * Client was disconnected and connected again to recover from an error.
+	 */
+	default void onReconnect(String implementationName, String endpoint) {
+	}
+	
+	/**
+	 * Fault was received and the operation is going to be retried.
+	 */
+	default void onFaultRetry(String implementationName, String endpoint, Throwable fault) {
+	}
+	
+	/**
+	 * Command or loop ended with an exit code that is considered to be a failure.
+	 */
+	default void onExitCodeFailure(String implementationName, String endpoint, int exitCode) {
+	}
+}
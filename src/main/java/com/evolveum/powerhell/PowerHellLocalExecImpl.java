@@ -18,10 +18,15 @@ package com.evolveum.powerhell;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -37,7 +42,7 @@ import org.slf4j.LoggerFactory;
 public class PowerHellLocalExecImpl extends AbstractPowerHellImpl {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(PowerHellLocalExecImpl.class);
-	private static final long WAIT_SLEEP_INTERVAL = 50;
+	private static final int READ_BUFFER_SIZE = 8192;
 	private boolean traceReadProgress = true;
 	
 	@Override
@@ -59,116 +64,132 @@ public class PowerHellLocalExecImpl extends AbstractPowerHellImpl {
 
 	
 	@Override
-	public String runCommand(String command, Map<String,Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
-		
-		long tsCommStart = System.currentTimeMillis();
+	protected void executeCommand(String command, Map<String,Object> arguments, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		executeCommand(command, arguments, null, stdout, stderr, metrics);
+	}
+	
+	/**
+	 * True if the commands are executed by PowerShell, which provides the input
+	 * to the command by Read-PowerHellInput function. Other processes get the input
+	 * in their stdin as it is.
+	 */
+	protected boolean isInputFunctionSupported() {
+		return false;
+	}
+	
+	@Override
+	protected void executeCommand(String command, Map<String,Object> arguments, Reader stdin, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
 		
-		List<String> encodedCommandLine = encodeCommand(command, arguments);
+		List<String> encodedCommandLine;
+		if (stdin != null && isInputFunctionSupported()) {
+			// Arguments are made part of the script
+			encodedCommandLine = encodeCommand(createExecInputScript(createPowerShellScripWithArguments(command, arguments)), Collections.emptyMap());
+		} else {
+			encodedCommandLine = encodeCommand(command, arguments);
+		}
 		logData("X>", encodedCommandLine.stream().collect(Collectors.joining(" ")));
 		
-		StringBuffer bufferStdOut = new StringBuffer();
-		StringBuffer bufferStdErr = new StringBuffer();
-		
 		ProcessBuilder processBuilder = new ProcessBuilder(encodedCommandLine);
 		Process process;
 		try {
 			process = processBuilder.start();
+			metrics.markSent(null);
 			LOG.trace("Executed process {}", encodedCommandLine.get(0));
 		} catch (IOException e) {
 			LOG.error("Error executing command: {}", e.getMessage());
 			PowerHellExecutionException pe = new PowerHellExecutionException("Error executing command: " + e.getMessage(), e, (Integer)null);
 			throw pe;
 		}
-		try {
-			// Some processes try to read all input before providing any output.
-			// Especially PowerShell behaves like this. Therefore close the stdin
-			// stream right away. We do not plan to send any input anyway.
-			process.getOutputStream().close();
-		} catch (IOException e) {
-			LOG.trace("Error closing stdin: {}", e.getMessage(), e);
+		Thread threadStdIn = null;
+		if (stdin == null) {
+			try {
+				// Some processes try to read all input before providing any output.
+				// Especially PowerShell behaves like this. Therefore close the stdin
+				// stream right away. We do not plan to send any input anyway.
+				process.getOutputStream().close();
+			} catch (IOException e) {
+				LOG.trace("Error closing stdin: {}", e.getMessage(), e);
+			}
+		} else {
+			// Input is written by separate thread. Writes block when the pipe buffer is full,
+			// therefore the process controls the pace. Stdin is closed at the end of input.
+			threadStdIn = startStdInPump(stdin, new OutputStreamWriter(process.getOutputStream()), encodedCommandLine.get(0), metrics);
 		}
 		
-		InputStreamReader readerStdOut = new InputStreamReader(process.getInputStream());
-		InputStreamReader readerStdErr = new InputStreamReader(process.getErrorStream());
+		// Both streams are drained by dedicated threads, blocking on read.
+		// Otherwise the process may block on full pipe buffer of the stream that we do not read.
+		StreamPump pumpStdOut = new StreamPump("STDOUT", new InputStreamReader(process.getInputStream()), stdout);
+		StreamPump pumpStdErr = new StreamPump("STDERR", new InputStreamReader(process.getErrorStream()), stderr);
+		Thread threadStdOut = pumpStdOut.start(encodedCommandLine.get(0));
+		Thread threadStdErr = pumpStdErr.start(encodedCommandLine.get(0));
 		
-		char[] buffer = new char[2048];
-		
-		Integer exitCode = null;
-		boolean done = false;
-		boolean stdOutOpen = true;
-		boolean stdErrOpen = true;
-		
-		while (!done) {
-
-			// STDOUT
-			try {
-				if (stdOutOpen && readerStdOut.ready()) {
-					int readCount = readerStdOut.read(buffer, 0, buffer.length);
-					traceReadProgress("STDOUT", buffer, readCount);
-					if (readCount < 0){
-	                    stdOutOpen = false;
-	                } else if (readCount > 0) {
-	                	bufferStdOut.append(buffer, 0, readCount);
-	                }
+		int exitCode;
+		long deadline = getCommandDeadline();
+		String processName = encodedCommandLine.get(0);
+		try {
+			if (deadline != 0) {
+				if (!process.waitFor(remainingMillis(deadline), TimeUnit.MILLISECONDS)) {
+					abortProcess(process, processName, "Process did not finish");
 				}
-			} catch (IOException e) {
-				LOG.error("Error reading from stdout of process {}: {}", encodedCommandLine.get(0), e.getMessage(), e);
-				stdOutOpen = false;
+			} else {
+				process.waitFor();
 			}
-			
-			// STDERR
-			try {
-				if (stdErrOpen && readerStdErr.ready()) {
-					int readCount = readerStdErr.read(buffer, 0, buffer.length);
-					traceReadProgress("STDERR", buffer, readCount);
-					if (readCount < 0) {
-	                    stdErrOpen = false;
-	                } else if (readCount > 0) {
-	                	bufferStdErr.append(buffer, 0, readCount);
-	                }
-				}
-			} catch (IOException e) {
-				LOG.error("Error reading from stderr of process {}: {}", encodedCommandLine.get(0), e.getMessage(), e);
-				stdErrOpen = false;
-			}	
-			
-			// exit status
-			try {
-				exitCode = process.exitValue();
-				done = true;
-				LOG.trace("Process {} ended with exit code {}", encodedCommandLine.get(0), exitCode);
-			} catch (IllegalThreadStateException e) {
-				// Trying to read exit code from process that is still running.
-				try {
-                    Thread.sleep(WAIT_SLEEP_INTERVAL);
-                } catch (InterruptedException eIntr) {
-                    process.destroy();
-                    throw new PowerHellExecutionException("Error waiting for command to finish: " + eIntr.getMessage(), eIntr, (Integer)null);
-                }
+			exitCode = process.exitValue();
+			LOG.trace("Process {} ended with exit code {}", processName, exitCode);
+			// The process has ended, but there may still be unread data in the pipes.
+			// The pipes may also be kept open by a child of the process, therefore do not wait longer than the timeout.
+			joinPump(threadStdOut, deadline, process, processName);
+			joinPump(threadStdErr, deadline, process, processName);
+			if (threadStdIn != null) {
+				// Caller may re-use the reader after we return
+				joinPump(threadStdIn, deadline, process, processName);
 			}
-			
+		} catch (InterruptedException eIntr) {
+			LOG.error("Interrupted while waiting for command to finish, destroying process {}", processName);
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			PowerHellExecutionException e = new PowerHellExecutionException("Error waiting for command to finish: " + eIntr.getMessage(), eIntr, (Integer)null);
+			e.setAborted(true);
+			throw e;
 		}
-						
-		String out = bufferStdOut.toString();
-		String err = bufferStdErr.toString();
-		logData("O<", out);
-		logData("E<", err);
-    		
+		
+		pumpStdOut.checkError();
+		pumpStdErr.checkError();
+		
 		if (exitCode != 0) {
 			LOG.error("Exit code received during command execution: {}", exitCode);
-			PowerHellExecutionException e = new PowerHellExecutionException("Exit code "+exitCode+" received during command execution", exitCode);
-			e.setStdout(out);
-			e.setStderr(err);
-			throw e;
+			fireExitCodeFailure(exitCode);
+			throw new PowerHellExecutionException("Exit code "+exitCode+" received during command execution", exitCode);
 		}
 		
-		logExecution(command, tsCommStart);
-		
-		return out;
+		logExecution(command, metrics);
+	}
+
+	private void joinPump(Thread thread, long deadline, Process process, String processName) throws InterruptedException, PowerHellExecutionException {
+		if (deadline == 0) {
+			thread.join();
+			return;
+		}
+		thread.join(Math.max(remainingMillis(deadline), 1L));
+		if (thread.isAlive()) {
+			abortProcess(process, processName, "Thread " + thread.getName() + " did not finish");
+		}
+	}
+	
+	private long remainingMillis(long deadline) {
+		return Math.max(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()), 0L);
+	}
+	
+	private void abortProcess(Process process, String processName, String reason) throws PowerHellExecutionException {
+		LOG.error("{} in {} ms, destroying process {}", reason, getCommandTimeout(), processName);
+		process.destroyForcibly();
+		PowerHellExecutionException e = new PowerHellExecutionException("Command did not finish in "+getCommandTimeout()+" ms");
+		e.setAborted(true);
+		throw e;
 	}
 
 	private void traceReadProgress(String label, char[] buffer, int readCount) {
-		if (!traceReadProgress) {
+		if (!traceReadProgress || !LOG.isTraceEnabled()) {
 			return;
 		}
 		if (readCount < 0) {
@@ -180,7 +201,114 @@ public class PowerHellLocalExecImpl extends AbstractPowerHellImpl {
 		}
 	}
 
+	private Thread startStdInPump(Reader stdin, Writer processStdIn, String processName, PowerHellCommandMetrics metrics) {
+		Thread thread = new Thread(() -> {
+			try {
+				if (isInputFunctionSupported()) {
+					pumpInputChunks(stdin, processStdIn, metrics);
+				} else {
+					pumpInput(stdin, processStdIn, metrics);
+				}
+			} catch (IOException e) {
+				// Process may have ended without reading all the input. Exit code will tell whether that is a problem.
+				LOG.debug("Error writing to STDIN of process {}: {}", processName, e.getMessage(), e);
+			} catch (PowerHellExecutionException e) {
+				// Process gets incomplete input. It cannot tell that, there is no way to report the error.
+				LOG.error("Error reading input of process {}: {}", processName, e.getMessage(), e);
+			} finally {
+				try {
+					processStdIn.close();
+				} catch (IOException e) {
+					LOG.trace("Error closing STDIN: {}", e.getMessage(), e);
+				}
+			}
+		}, "PowerHell STDIN " + processName);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private void pumpInput(Reader stdin, Writer processStdIn, PowerHellCommandMetrics metrics) throws IOException {
+		char[] buffer = new char[Math.max(getInputChunkSize(), 1)];
+		while (true) {
+			int readCount = stdin.read(buffer, 0, buffer.length);
+			if (readCount < 0) {
+				break;
+			}
+			processStdIn.write(buffer, 0, readCount);
+			processStdIn.flush();
+			metrics.markInputSent(readCount);
+		}
+	}
+
+	private void pumpInputChunks(Reader stdin, Writer processStdIn, PowerHellCommandMetrics metrics) throws IOException, PowerHellExecutionException {
+		while (true) {
+			String chunk = createExecInputChunk(stdin);
+			processStdIn.write(chunk);
+			processStdIn.flush();
+			if (isExecInputEnd(chunk)) {
+				break;
+			}
+			metrics.markInputSent(chunk);
+		}
+	}
+
 	protected List<String> encodeCommand(String command, Map<String, Object> arguments) {
 		return encodeCommandExecToList(command, arguments);
 	}
+	
+	/**
+	 * Copies one process output stream to a writer, in a separate thread.
+	 */
+	private class StreamPump implements Runnable {
+		
+		private final String label;
+		private final Reader reader;
+		private final Writer writer;
+		private PowerHellExecutionException error;
+		
+		StreamPump(String label, Reader reader, Writer writer) {
+			this.label = label;
+			this.reader = reader;
+			this.writer = writer;
+		}
+		
+		Thread start(String processName) {
+			Thread thread = new Thread(this, "PowerHell " + label + " " + processName);
+			thread.setDaemon(true);
+			thread.start();
+			return thread;
+		}
+
+		@Override
+		public void run() {
+			char[] buffer = new char[READ_BUFFER_SIZE];
+			try {
+				while (true) {
+					int readCount = reader.read(buffer, 0, buffer.length);
+					traceReadProgress(label, buffer, readCount);
+					if (readCount < 0) {
+						break;
+					}
+					writeOutput(writer, buffer, readCount);
+				}
+			} catch (IOException e) {
+				LOG.error("Error reading from {} of process: {}", label, e.getMessage(), e);
+			} catch (PowerHellExecutionException e) {
+				error = e;
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					LOG.trace("Error closing {}: {}", label, e.getMessage(), e);
+				}
+			}
+		}
+		
+		void checkError() throws PowerHellExecutionException {
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
 }
@@ -43,6 +43,11 @@ public class PowerHellLocalExecPowerShellImpl extends PowerHellLocalExecImpl {
 		return "Local PowerShell Execution";
 	}
 	
+	@Override
+	protected boolean isInputFunctionSupported() {
+		return true;
+	}
+	
 	// We need to wrap execution in powershell command-line.
 	@Override
 	protected List<String> encodeCommand(String command, Map<String, Object> arguments) {
@@ -0,0 +1,446 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Local counterpart of {@link PowerHellWinRmLoopImpl}. Starts one long-lived
+ * PowerShell process and executes the commands in it, using the same loop
+ * script. The commands are sent to stdin of the process and the output is read
+ * from its stdout until the prompt. Therefore PowerShell start-up and
+ * initialization scriptlet are executed only once, not for every command.
+ * </p>
+ * <p>
+ * PowerShell executable can be changed, e.g. to "pwsh" for PowerShell Core on Linux.
+ * </p>
+ * <p>
+ * Stderr of the process is read continuously. Everything that was received
+ * on stderr before the prompt is considered to be stderr of the command.
+ * </p>
+ * <p>
+ * Command that exceeds command timeout (or whose thread is interrupted) is aborted
+ * by destroying the process, as there is no way to interrupt blocking read of its output.
+ * New process is started for next command.
+ * </p>
+ * <p>
+ * Command input is sent to stdin of the process chunk by chunk, as the command reads it
+ * by Read-PowerHellInput function.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellLocalLoopImpl extends AbstractPowerHellImpl {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellLocalLoopImpl.class);
+	public static final String PROMPT = PowerHellWinRmLoopImpl.PROMPT;
+	private static final String POWERSHELL_ENCODED_COMMAND_PARAM = "-EncodedCommand";
+	private static final long EXIT_WAIT_TIMEOUT = 10000L;
+	private static final long WATCHDOG_PERIOD = 100L;
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	// Configuration
+	private String powerShellExecutable = "powershell";
+	private String initScriptlet;
+	private String prompt = PROMPT;
+
+	// State
+	private Process process;
+	private Writer processStdIn;
+	private Reader processStdOut;
+	private final char[] readBuffer = new char[READ_BUFFER_SIZE];
+	private final StringBuffer pendingStdErr = new StringBuffer();
+	private boolean isLoopRunning = false;
+	private ScheduledExecutorService watchdog;
+	private volatile PowerHellExecutionException abortReason;
+
+	public String getPowerShellExecutable() {
+		return powerShellExecutable;
+	}
+
+	public void setPowerShellExecutable(String powerShellExecutable) {
+		this.powerShellExecutable = powerShellExecutable;
+	}
+
+	public String getInitScriptlet() {
+		return initScriptlet;
+	}
+
+	public void setInitScriptlet(String initScriptlet) {
+		this.initScriptlet = initScriptlet;
+	}
+
+	public String getPrompt() {
+		return prompt;
+	}
+
+	public void setPrompt(String prompt) {
+		this.prompt = prompt;
+	}
+
+	@Override
+	public String getImplementationName() {
+		return "Local Loop";
+	}
+
+	@Override
+	public void connect() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		startMainLoop();
+	}
+
+	private void startMainLoop() throws PowerHellExecutionException {
+
+		String psScript = createLoopScript(initScriptlet, prompt);
+		LOG.debug("Executing powershell. Main loop script: {}", psScript);
+
+		long tsStart = System.nanoTime();
+
+		List<String> commandLine = new ArrayList<>();
+		commandLine.add(powerShellExecutable);
+		commandLine.add(POWERSHELL_ENCODED_COMMAND_PARAM);
+		commandLine.add(encodeUtf16Base64(psScript));
+
+		try {
+			process = new ProcessBuilder(commandLine).start();
+		} catch (IOException e) {
+			LOG.error("Error executing powershell: {}", e.getMessage());
+			throw new PowerHellExecutionException("Error executing powershell: " + e.getMessage(), e, (Integer)null);
+		}
+		processStdIn = new OutputStreamWriter(process.getOutputStream());
+		processStdOut = new InputStreamReader(process.getInputStream());
+		pendingStdErr.setLength(0);
+		startStdErrReader(new InputStreamReader(process.getErrorStream()));
+
+		LOG.debug("Powershell running. init time: {} ms", (System.nanoTime()-tsStart)/1000000);
+
+		LoopOutputHandler handler = new LoopOutputHandler(null);
+		PowerHellLoopParser parser = new PowerHellPromptLoopParser(prompt, handler);
+		while (true) {
+			String out = readChunk();
+			logData("O<", out);
+
+			if (out == null) {
+				Integer exitCode = waitForExit();
+				LOG.error("Exit code received before first prompt: {}", exitCode);
+				fireExitCodeFailure(exitCode);
+				PowerHellExecutionException e = new PowerHellExecutionException("Exit code received before first prompt", exitCode);
+				e.setStderr(pendingStdErr.toString());
+				throw e;
+			}
+
+			parser.parse(out);
+			if (handler.ended) {
+				LOG.trace("First prompt detected");
+				break;
+			}
+		}
+
+		pendingStdErr.setLength(0);
+		isLoopRunning = true;
+		fireLoopStart(tsStart);
+	}
+
+	@Override
+	protected void executeCommand(String psScript, Map<String, Object> arguments, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		executeCommand(psScript, arguments, null, stdout, stderr, metrics);
+	}
+
+	@Override
+	protected void executeCommand(String psScript, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (!isLoopRunning) {
+			startMainLoop();
+		}
+
+		String outCommandLine = createPowerShellScripWithArguments(psScript, arguments);
+		String tx = outCommandLine + "\r\n" + prompt + "\r\n";
+		logData("I>", tx);
+
+		try {
+			processStdIn.write(tx);
+			processStdIn.flush();
+			metrics.markSent(tx);
+		} catch (IOException e) {
+			// Process is most likely dead. Start a new one for next command.
+			isLoopRunning = false;
+			destroyProcess();
+			throw new PowerHellExecutionException("Error sending command to powershell: " + e.getMessage(), e);
+		}
+
+		LoopOutputHandler handler = new LoopOutputHandler(stdout);
+		PowerHellLoopParser parser = new PowerHellPromptLoopParser(prompt, handler);
+		ScheduledFuture<?> watch = startWatchdog(getCommandDeadline());
+		try {
+			while (true) {
+				String out = readChunk();
+				logData("O<", out);
+
+				if (out == null) {
+					// Most likely cause is that some script invoked "exit" keyword.
+					isLoopRunning = false;
+					Integer exitCode = waitForExit();
+					flushStdErr(stderr);
+					if (exitCode != null && exitCode == 0) {
+						LOG.debug("Exit code received during command execution: {} (will restart main loop)", exitCode);
+						break;
+					} else {
+						LOG.error("Exit code received during command execution: {}", exitCode);
+						fireExitCodeFailure(exitCode);
+						throw new PowerHellExecutionException("Exit code received during command execution", exitCode);
+					}
+				}
+
+				// Output is passed as it is, only the prompt is removed
+				parser.parse(out);
+				for (int requests = handler.takeInputRequests(); requests > 0; requests--) {
+					sendInput(stdin, metrics);
+				}
+
+				if (handler.ended) {
+					flushStdErr(stderr);
+					String promptMessage = handler.errorMessage;
+					LOG.trace("Prompt detected, msg: {}", promptMessage);
+					if (promptMessage != null) {
+						PowerHellExecutionException e = new PowerHellExecutionException(promptMessage);
+						e.setPromptMessage(promptMessage);
+						throw e;
+					}
+					break;
+				}
+			}
+		} finally {
+			watch.cancel(false);
+			if (abortReason != null) {
+				// Watchdog fired just when the command ended. The process is gone.
+				abortReason = null;
+				isLoopRunning = false;
+			}
+		}
+		
+		logExecution(outCommandLine, metrics);
+	}
+
+	@Override
+	public int disconnect() {
+		stopWatchdog();
+		if (process == null) {
+			return 0;
+		}
+		LOG.debug("Disconnecting, sending exit command");
+
+		String tx = prompt + " exit\r\n";
+		logData("I>", tx);
+		try {
+			processStdIn.write(tx);
+			processStdIn.close();
+		} catch (IOException e) {
+			LOG.debug("Error sending exit command: {}", e.getMessage(), e);
+		}
+
+		Integer exitCode = waitForExit();
+		LOG.debug("Powershell exit code: {}", exitCode);
+		isLoopRunning = false;
+		process = null;
+		return exitCode == null ? -1 : exitCode;
+	}
+
+	/**
+	 * Sends next chunk of input to the command (or end of input).
+	 */
+	private void sendInput(Reader stdin, PowerHellCommandMetrics metrics) throws PowerHellExecutionException {
+		String chunk = createInputChunk(stdin, prompt);
+		logData("I>", chunk);
+		try {
+			processStdIn.write(chunk);
+			processStdIn.flush();
+		} catch (IOException e) {
+			isLoopRunning = false;
+			destroyProcess();
+			checkAborted();
+			throw new PowerHellExecutionException("Error sending command input to powershell: " + e.getMessage(), e);
+		}
+		metrics.markInputSent(chunk);
+	}
+
+	/**
+	 * Reads whatever output is available. Returns null if the output has ended.
+	 */
+	private String readChunk() throws PowerHellExecutionException {
+		int readCount;
+		try {
+			readCount = processStdOut.read(readBuffer, 0, readBuffer.length);
+		} catch (IOException e) {
+			isLoopRunning = false;
+			destroyProcess();
+			checkAborted();
+			throw new PowerHellExecutionException("Error reading output of powershell: " + e.getMessage(), e);
+		}
+		checkAborted();
+		return readCount < 0 ? null : new String(readBuffer, 0, readCount);
+	}
+	
+	private void checkAborted() throws PowerHellExecutionException {
+		PowerHellExecutionException reason = abortReason;
+		if (reason != null) {
+			abortReason = null;
+			isLoopRunning = false;
+			throw reason;
+		}
+	}
+	
+	/**
+	 * Watches the command executed by current thread, destroys the process when the
+	 * command should be aborted. Blocking read of process output ends after that.
+	 */
+	private ScheduledFuture<?> startWatchdog(long deadline) {
+		Thread thread = Thread.currentThread();
+		abortReason = null;
+		return getWatchdog().scheduleWithFixedDelay(() -> {
+			if (abortReason != null) {
+				return;
+			}
+			PowerHellExecutionException reason = getCommandAbortReason(deadline, thread);
+			if (reason != null) {
+				LOG.warn("Aborting command: {}, destroying powershell process", reason.getMessage());
+				abortReason = reason;
+				destroyProcess();
+			}
+		}, WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized ScheduledExecutorService getWatchdog() {
+		if (watchdog == null) {
+			watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "PowerHell local loop watchdog");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return watchdog;
+	}
+	
+	private synchronized void stopWatchdog() {
+		if (watchdog != null) {
+			watchdog.shutdownNow();
+			watchdog = null;
+		}
+	}
+
+	private Integer waitForExit() {
+		try {
+			if (process.waitFor(EXIT_WAIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				return process.exitValue();
+			}
+			LOG.warn("Powershell process did not exit in {} ms, destroying it", EXIT_WAIT_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		destroyProcess();
+		return null;
+	}
+
+	private void destroyProcess() {
+		if (process != null) {
+			process.destroyForcibly();
+		}
+	}
+
+	private void flushStdErr(Writer stderr) throws PowerHellExecutionException {
+		String err;
+		synchronized (pendingStdErr) {
+			err = pendingStdErr.toString();
+			pendingStdErr.setLength(0);
+		}
+		logData("E<", err);
+		writeOutput(stderr, err);
+	}
+
+	private void startStdErrReader(Reader reader) {
+		Thread thread = new Thread(() -> {
+			char[] buffer = new char[2048];
+			try {
+				int readCount;
+				while ((readCount = reader.read(buffer, 0, buffer.length)) >= 0) {
+					synchronized (pendingStdErr) {
+						pendingStdErr.append(buffer, 0, readCount);
+					}
+				}
+			} catch (IOException e) {
+				LOG.trace("Error reading stderr of powershell: {}", e.getMessage(), e);
+			}
+		}, "PowerHell local loop STDERR");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Passes output of the command to stdout (if any) until the prompt.
+	 */
+	private class LoopOutputHandler implements PowerHellLoopParser.Handler {
+
+		private final Writer stdout;
+		private boolean ended = false;
+		private String errorMessage;
+		private int inputRequests = 0;
+
+		LoopOutputHandler(Writer stdout) {
+			this.stdout = stdout;
+		}
+
+		@Override
+		public void output(String data) throws PowerHellExecutionException {
+			if (!ended && stdout != null) {
+				writeOutput(stdout, data);
+			}
+		}
+
+		@Override
+		public void end(String errorMessage) {
+			if (!ended) {
+				this.ended = true;
+				this.errorMessage = errorMessage;
+			}
+		}
+
+		@Override
+		public void inputRequest() {
+			if (!ended) {
+				inputRequests++;
+			}
+		}
+
+		int takeInputRequests() {
+			int requests = inputRequests;
+			inputRequests = 0;
+			return requests;
+		}
+	}
+
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Transport that executes the commands as local processes instead of sending
+ * them to WinRM endpoint. It can be used to test and load-test WinRM PowerHell
+ * implementations without Windows host, e.g. with PowerShell Core ("pwsh")
+ * on Linux:
+ * </p>
+ * <pre>
+ * PowerHellLocalProcessTransport transport = new PowerHellLocalProcessTransport();
+ * transport.setPowerShellExecutable("pwsh");
+ * powerHell.setTransportFactory(ph -&gt; transport);
+ * </pre>
+ * <p>
+ * Command lines are executed by system shell (cmd.exe on Windows, sh otherwise),
+ * similarly to WinRM. Leading "powershell" in the command line is replaced by
+ * configured PowerShell executable. The same transport instance can be shared
+ * by any number of PowerHell instances, each command is a separate process.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellLocalProcessTransport implements PowerHellTransport {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellLocalProcessTransport.class);
+	private static final String POWERSHELL_COMMAND_PREFIX = "powershell ";
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	// Configuration
+	private String powerShellExecutable = "powershell";
+	private List<String> shell = defaultShell();
+	private long receiveTimeout = 1000L;
+
+	public String getPowerShellExecutable() {
+		return powerShellExecutable;
+	}
+
+	public void setPowerShellExecutable(String powerShellExecutable) {
+		this.powerShellExecutable = powerShellExecutable;
+	}
+
+	public List<String> getShell() {
+		return shell;
+	}
+
+	/**
+	 * Shell command that is used to execute command lines, e.g. [ "sh", "-c" ].
+	 * The command line is appended as the last argument.
+	 */
+	public void setShell(List<String> shell) {
+		this.shell = shell;
+	}
+
+	public long getReceiveTimeout() {
+		return receiveTimeout;
+	}
+
+	/**
+	 * Maximum time (in milliseconds) that a single receive waits for output.
+	 * This is similar to operation timeout of WinRM.
+	 */
+	public void setReceiveTimeout(long receiveTimeout) {
+		this.receiveTimeout = receiveTimeout;
+	}
+
+	@Override
+	public int command(String commandLine, Writer stdout, Writer stderr) {
+		LocalProcessCommand command = commandAsync(commandLine);
+		try {
+			command.closeStdIn();
+			while (true) {
+				Integer exitCode = command.receive();
+				write(stdout, command.getLastOut());
+				write(stderr, command.getLastErr());
+				if (exitCode != null) {
+					return exitCode;
+				}
+			}
+		} finally {
+			command.release();
+		}
+	}
+
+	@Override
+	public LocalProcessCommand commandAsync(String commandLine) {
+		List<String> processCommandLine = new ArrayList<>(shell);
+		processCommandLine.add(replaceExecutable(commandLine));
+		LOG.trace("Starting local process {}", processCommandLine);
+		try {
+			return new LocalProcessCommand(new ProcessBuilder(processCommandLine).start());
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error starting local process: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		// Nothing to do, processes are released with the commands.
+	}
+
+	private String replaceExecutable(String commandLine) {
+		if (commandLine.startsWith(POWERSHELL_COMMAND_PREFIX)) {
+			return powerShellExecutable + " " + commandLine.substring(POWERSHELL_COMMAND_PREFIX.length());
+		}
+		return commandLine;
+	}
+
+	private void write(Writer writer, String data) {
+		if (data == null || data.isEmpty()) {
+			return;
+		}
+		try {
+			writer.write(data);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static List<String> defaultShell() {
+		if (System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows")) {
+			return Arrays.asList("cmd.exe", "/c");
+		} else {
+			return Arrays.asList("sh", "-c");
+		}
+	}
+
+	/**
+	 * Running local process. Stdout and stderr are read by background threads,
+	 * receive returns whatever was read since the last receive.
+	 */
+	public class LocalProcessCommand implements PowerHellTransportCommand {
+
+		private final Process process;
+		private final Writer processStdIn;
+		private final StringBuilder pendingOut = new StringBuilder();
+		private final StringBuilder pendingErr = new StringBuilder();
+		private int openStreams = 2;
+		private String lastOut;
+		private String lastErr;
+
+		LocalProcessCommand(Process process) {
+			this.process = process;
+			this.processStdIn = new OutputStreamWriter(process.getOutputStream());
+			startReader(new InputStreamReader(process.getInputStream()), pendingOut, "STDOUT");
+			startReader(new InputStreamReader(process.getErrorStream()), pendingErr, "STDERR");
+		}
+
+		@Override
+		public Integer receive() {
+			long deadline = System.currentTimeMillis() + receiveTimeout;
+			synchronized (this) {
+				try {
+					while (pendingOut.length() == 0 && pendingErr.length() == 0 && openStreams > 0) {
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							break;
+						}
+						wait(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				lastOut = drain(pendingOut);
+				lastErr = drain(pendingErr);
+				if (openStreams > 0) {
+					return null;
+				}
+			}
+			try {
+				process.waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			return process.exitValue();
+		}
+
+		@Override
+		public String getLastOut() {
+			return lastOut;
+		}
+
+		@Override
+		public String getLastErr() {
+			return lastErr;
+		}
+
+		@Override
+		public void send(String input) {
+			try {
+				processStdIn.write(input);
+				processStdIn.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Error sending data to local process: " + e.getMessage(), e);
+			}
+		}
+
+		void closeStdIn() {
+			try {
+				processStdIn.close();
+			} catch (IOException e) {
+				LOG.trace("Error closing stdin of local process: {}", e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public void release() {
+			closeStdIn();
+			process.destroyForcibly();
+			try {
+				process.waitFor(receiveTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private String drain(StringBuilder pending) {
+			if (pending.length() == 0) {
+				return null;
+			}
+			String data = pending.toString();
+			pending.setLength(0);
+			return data;
+		}
+
+		private void startReader(Reader reader, StringBuilder pending, String streamName) {
+			Thread thread = new Thread(() -> {
+				char[] buffer = new char[READ_BUFFER_SIZE];
+				try {
+					int readCount;
+					while ((readCount = reader.read(buffer, 0, buffer.length)) >= 0) {
+						synchronized (this) {
+							pending.append(buffer, 0, readCount);
+							notifyAll();
+						}
+					}
+				} catch (IOException e) {
+					LOG.trace("Error reading {} of local process: {}", streamName, e.getMessage(), e);
+				} finally {
+					synchronized (this) {
+						openStreams--;
+						notifyAll();
+					}
+				}
+			}, "PowerHell local process " + streamName);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+}
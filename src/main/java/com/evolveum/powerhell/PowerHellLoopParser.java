@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Incremental parser of PowerHell loop output. The output is provided in chunks
+ * as they are received, the parser notifies the handler about command output
+ * and about end of each command.
+ * 
+ * @author semancik
+ */
+interface PowerHellLoopParser {
+	
+	/**
+	 * Parses next chunk of the output. Chunks may be split at arbitrary places.
+	 */
+	void parse(String chunk) throws PowerHellExecutionException;
+	
+	interface Handler {
+		
+		void output(String data) throws PowerHellExecutionException;
+		
+		/**
+		 * End of command. Error message is null if the command was successful.
+		 */
+		void end(String errorMessage) throws PowerHellExecutionException;
+		
+		/**
+		 * Command asks for next chunk of input.
+		 */
+		void inputRequest() throws PowerHellExecutionException;
+	}
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.Writer;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writer that receives output of structured command (one JSON value per line)
+ * and passes parsed values to the consumer. Each line is parsed as soon as it is
+ * complete, there is no need to wait for the whole output.
+ * Lines that cannot be parsed are kept, see {@link #checkParseErrors()}.
+ * 
+ * @author semancik
+ */
+class PowerHellObjectWriter extends Writer {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellObjectWriter.class);
+	
+	private final Consumer<Object> consumer;
+	private final StringBuilder line = new StringBuilder();
+	private final StringBuilder unparsedOutput = new StringBuilder();
+	private String parseError;
+	
+	PowerHellObjectWriter(Consumer<Object> consumer) {
+		this.consumer = consumer;
+	}
+
+	@Override
+	public void write(char[] buffer, int offset, int length) {
+		int lineStart = offset;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			if (buffer[i] == '\n') {
+				line.append(buffer, lineStart, i - lineStart);
+				processLine();
+				lineStart = i + 1;
+			}
+		}
+		line.append(buffer, lineStart, end - lineStart);
+	}
+
+	@Override
+	public void write(String str, int offset, int length) {
+		int lineStart = offset;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			if (str.charAt(i) == '\n') {
+				line.append(str, lineStart, i);
+				processLine();
+				lineStart = i + 1;
+			}
+		}
+		line.append(str, lineStart, end);
+	}
+
+	private void processLine() {
+		String json = line.toString().trim();
+		line.setLength(0);
+		if (json.isEmpty()) {
+			return;
+		}
+		Object value;
+		try {
+			value = PowerHellJsonParser.parse(json);
+		} catch (IllegalArgumentException e) {
+			// Most likely something that the command has written directly to the console.
+			// We cannot fail right now, the rest of the output still needs to be read.
+			LOG.debug("Cannot parse command output as JSON: {}: {}", e.getMessage(), json);
+			if (parseError == null) {
+				parseError = e.getMessage();
+			}
+			unparsedOutput.append(json).append('\n');
+			return;
+		}
+		consumer.accept(value);
+	}
+
+	/**
+	 * Fails if there was output that could not be parsed. Should be called after
+	 * the writer is closed. Unparsed output is provided as stdout of the exception.
+	 */
+	void checkParseErrors() throws PowerHellExecutionException {
+		if (parseError == null) {
+			return;
+		}
+		PowerHellExecutionException e = new PowerHellExecutionException("Cannot parse command output as JSON: " + parseError);
+		e.setStdout(unparsedOutput.toString());
+		throw e;
+	}
+
+	@Override
+	public void flush() {
+		// Nothing to do, incomplete line is kept until it is complete
+	}
+
+	/**
+	 * Processes last line, even if it is not terminated by end of line.
+	 */
+	@Override
+	public void close() {
+		processLine();
+	}
+
+}
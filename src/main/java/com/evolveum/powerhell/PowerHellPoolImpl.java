@@ -0,0 +1,440 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * PowerHell implementation that keeps a bounded pool of connected PowerHell
+ * sessions (usually {@link PowerHellWinRmLoopImpl}) and dispatches each command
+ * to one of them. The individual sessions are not thread-safe, but the pool is.
+ * Each command borrows a session for the duration of the command and returns
+ * it afterwards. Therefore several threads can run commands at the same time,
+ * up to the maximum size of the pool.
+ * </p>
+ * <p>
+ * The sessions are created by the session factory. The factory is supposed to
+ * return fully configured, but not yet connected, PowerHell instance. The pool
+ * connects the sessions as needed. Minimum number of sessions is started when
+ * the pool is connected. Sessions above the minimum are disconnected after they
+ * are idle for longer than maximum idle time. Threads that wait for a session
+ * are served in the order in which they came.
+ * </p>
+ * <p>
+ * Sessions that fail with communication or security error, or that received
+ * an exit code, are not returned to the pool. They are disconnected and
+ * a fresh session is created when needed.
+ * </p>
+ * <p>
+ * Asynchronous commands are queued and executed by at most as many threads as
+ * the maximum size of the pool. Pending commands do not occupy any thread.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellPoolImpl implements PowerHell {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PowerHellPoolImpl.class);
+
+	// Configuration
+	private Supplier<PowerHell> sessionFactory;
+	private int minSize = 1;
+	private int maxSize = 8;
+	private long maxIdleTime = 0;
+	private long borrowTimeout = 0;
+
+	// State
+	private final Deque<PooledSession> idleSessions = new ArrayDeque<>();
+	private Semaphore permits;
+	private int generation = 0;
+	private int numSessions = 0;
+	private boolean closed = true;
+	private ScheduledExecutorService evictor;
+	private ThreadPoolExecutor asyncExecutor;
+
+	public Supplier<PowerHell> getSessionFactory() {
+		return sessionFactory;
+	}
+
+	/**
+	 * Factory for pooled sessions. It should return configured PowerHell instance.
+	 * There is no need to connect the instance, pool will do that.
+	 */
+	public void setSessionFactory(Supplier<PowerHell> sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Number of sessions that are started when the pool is connected.
+	 * Idle eviction never goes below this number.
+	 */
+	public void setMinSize(int minSize) {
+		this.minSize = minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Maximum number of sessions. This is also the maximum number of commands
+	 * that can be executed at the same time.
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	/**
+	 * Time (in milliseconds) after which an idle session is disconnected.
+	 * Zero means that idle sessions are never disconnected.
+	 */
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public long getBorrowTimeout() {
+		return borrowTimeout;
+	}
+
+	/**
+	 * Maximum time (in milliseconds) that a command waits for a free session.
+	 * Zero means wait forever.
+	 */
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	@Override
+	public String getImplementationName() {
+		return "Session Pool";
+	}
+
+	public synchronized int getNumSessions() {
+		return numSessions;
+	}
+
+	public synchronized int getNumIdleSessions() {
+		return idleSessions.size();
+	}
+
+	@Override
+	public void connect() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (sessionFactory == null) {
+			throw new IllegalStateException("No session factory");
+		}
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+			throw new IllegalStateException("Wrong pool size, min="+minSize+", max="+maxSize);
+		}
+		LOG.debug("Starting PowerHell pool, min={}, max={}", minSize, maxSize);
+		int sessionGeneration;
+		synchronized (this) {
+			if (!closed) {
+				throw new IllegalStateException("PowerHell pool is already connected");
+			}
+			permits = new Semaphore(maxSize, true);
+			generation++;
+			closed = false;
+			sessionGeneration = generation;
+		}
+		try {
+			for (int i = 0; i < minSize; i++) {
+				PooledSession session = createSession(sessionGeneration);
+				synchronized (this) {
+					idleSessions.addLast(session);
+				}
+			}
+		} catch (PowerHellExecutionException | PowerHellSecurityException | PowerHellCommunicationException | RuntimeException e) {
+			// Do not leave half-started pool behind, sessions that were already created are disconnected
+			LOG.debug("Starting PowerHell pool failed: {}", e.getMessage());
+			disconnect();
+			throw e;
+		}
+		if (maxIdleTime > 0) {
+			evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "PowerHell pool evictor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long period = Math.max(maxIdleTime / 2, 1000L);
+			evictor.scheduleWithFixedDelay(this::evictIdleSessions, period, period, TimeUnit.MILLISECONDS);
+		}
+		synchronized (this) {
+			asyncExecutor = new ThreadPoolExecutor(maxSize, maxSize, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), runnable -> {
+						Thread thread = new Thread(runnable, "PowerHell pool worker");
+						thread.setDaemon(true);
+						return thread;
+					});
+			asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	@Override
+	public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		PooledSession session = borrowSession();
+		boolean healthy = false;
+		try {
+			String out = session.powerHell.runCommand(command, arguments);
+			healthy = true;
+			return out;
+		} catch (PowerHellExecutionException e) {
+			// Error reported by the command itself does not harm the session.
+			// But exit code means that the session was terminated.
+			healthy = e.getExitCode() == null;
+			throw e;
+		} finally {
+			returnSession(session, healthy);
+		}
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		PooledSession session = borrowSession();
+		boolean healthy = false;
+		try {
+			session.powerHell.runCommand(command, arguments, stdout, stderr);
+			healthy = true;
+		} catch (PowerHellExecutionException e) {
+			healthy = e.getExitCode() == null;
+			throw e;
+		} finally {
+			returnSession(session, healthy);
+		}
+	}
+
+	@Override
+	public void runCommand(String command, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		PooledSession session = borrowSession();
+		boolean healthy = false;
+		try {
+			session.powerHell.runCommand(command, arguments, stdin, stdout, stderr);
+			healthy = true;
+		} catch (PowerHellExecutionException e) {
+			healthy = e.getExitCode() == null;
+			throw e;
+		} finally {
+			returnSession(session, healthy);
+		}
+	}
+
+	@Override
+	public void runCommandForObjects(String command, Map<String, Object> arguments, Consumer<Object> consumer) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		PooledSession session = borrowSession();
+		boolean healthy = false;
+		try {
+			session.powerHell.runCommandForObjects(command, arguments, consumer);
+			healthy = true;
+		} catch (PowerHellExecutionException e) {
+			healthy = e.getExitCode() == null;
+			throw e;
+		} finally {
+			returnSession(session, healthy);
+		}
+	}
+
+	@Override
+	public CompletableFuture<String> runCommandAsync(String command, Map<String, Object> arguments) {
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("PowerHell pool is not connected");
+			}
+			executor = asyncExecutor;
+		}
+		return runCommandAsync(command, arguments, executor);
+	}
+
+	@Override
+	public int disconnect() {
+		LOG.debug("Stopping PowerHell pool");
+		List<PooledSession> toDisconnect;
+		synchronized (this) {
+			closed = true;
+			toDisconnect = new ArrayList<>(idleSessions);
+			idleSessions.clear();
+			numSessions -= toDisconnect.size();
+			if (asyncExecutor != null) {
+				// Commands that are still queued will fail, pool is closed.
+				asyncExecutor.shutdown();
+				asyncExecutor = null;
+			}
+		}
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+		for (PooledSession session : toDisconnect) {
+			disconnectSession(session);
+		}
+		return 0;
+	}
+
+	private PooledSession borrowSession() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		Semaphore permits;
+		int sessionGeneration;
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("PowerHell pool is not connected");
+			}
+			permits = this.permits;
+			sessionGeneration = generation;
+		}
+		try {
+			if (borrowTimeout > 0) {
+				if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+					throw new PowerHellCommunicationException("Timeout waiting for free PowerHell session ("+borrowTimeout+" ms)");
+				}
+			} else {
+				permits.acquire();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PowerHellExecutionException("Interrupted while waiting for free PowerHell session", e);
+		}
+		synchronized (this) {
+			// Most recently used session first. Sessions that are not used
+			// will stay at the end of the queue and they will be evicted.
+			PooledSession session = idleSessions.pollFirst();
+			if (session != null) {
+				return session;
+			}
+		}
+		try {
+			return createSession(sessionGeneration);
+		} catch (PowerHellExecutionException | PowerHellSecurityException | PowerHellCommunicationException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void returnSession(PooledSession session, boolean healthy) {
+		boolean discard;
+		boolean stale;
+		Semaphore permits;
+		synchronized (this) {
+			// Session borrowed before the pool was re-connected. Its permit belongs
+			// to the old semaphore, releasing it on the new one would inflate the pool.
+			stale = session.generation != generation;
+			discard = !healthy || closed || stale;
+			if (discard) {
+				numSessions--;
+			} else {
+				session.lastUsed = System.currentTimeMillis();
+				idleSessions.addFirst(session);
+			}
+			permits = this.permits;
+		}
+		if (discard) {
+			LOG.debug("Discarding PowerHell session {}", session.powerHell.getImplementationName());
+			disconnectSession(session);
+		}
+		if (!stale) {
+			permits.release();
+		}
+	}
+
+	private PooledSession createSession(int sessionGeneration) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		PowerHell powerHell = sessionFactory.get();
+		LOG.debug("Creating new PowerHell session {}", powerHell.getImplementationName());
+		try {
+			powerHell.connect();
+		} catch (PowerHellExecutionException | PowerHellSecurityException | PowerHellCommunicationException | RuntimeException e) {
+			// Connect may fail half-way, e.g. after the loop process was started
+			LOG.debug("Connecting PowerHell session {} failed: {}", powerHell.getImplementationName(), e.getMessage());
+			try {
+				powerHell.disconnect();
+			} catch (RuntimeException de) {
+				LOG.warn("Error disconnecting PowerHell session: {}", de.getMessage(), de);
+			}
+			throw e;
+		}
+		PooledSession session = new PooledSession(powerHell, sessionGeneration);
+		synchronized (this) {
+			numSessions++;
+		}
+		return session;
+	}
+
+	private void disconnectSession(PooledSession session) {
+		try {
+			session.powerHell.disconnect();
+		} catch (RuntimeException e) {
+			LOG.warn("Error disconnecting PowerHell session: {}", e.getMessage(), e);
+		}
+	}
+
+	private void evictIdleSessions() {
+		List<PooledSession> toDisconnect = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Iterator<PooledSession> iterator = idleSessions.descendingIterator();
+			while (iterator.hasNext() && numSessions > minSize) {
+				PooledSession session = iterator.next();
+				if (now - session.lastUsed < maxIdleTime) {
+					// Sessions are ordered by last use, the rest is used more recently
+					break;
+				}
+				iterator.remove();
+				numSessions--;
+				toDisconnect.add(session);
+			}
+		}
+		for (PooledSession session : toDisconnect) {
+			LOG.debug("Evicting idle PowerHell session {}", session.powerHell.getImplementationName());
+			disconnectSession(session);
+		}
+	}
+
+	private static class PooledSession {
+		private final PowerHell powerHell;
+		private final int generation;
+		private long lastUsed;
+
+		PooledSession(PowerHell powerHell, int generation) {
+			this.powerHell = powerHell;
+			this.generation = generation;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Parser for {@link LoopProtocol#PROMPT}. Looks for the prompt in the output.
+ * Prompt (or its part) at the end of the chunk is kept until the next chunk,
+ * so the prompt is detected even if it is split between two chunks.
+ * 
+ * @author semancik
+ */
+class PowerHellPromptLoopParser implements PowerHellLoopParser {
+	
+	private final String prompt;
+	private final Handler handler;
+	private final StringBuilder pending = new StringBuilder();
+	
+	PowerHellPromptLoopParser(String prompt, Handler handler) {
+		this.prompt = prompt;
+		this.handler = handler;
+	}
+
+	@Override
+	public void parse(String chunk) throws PowerHellExecutionException {
+		if (chunk == null || chunk.isEmpty()) {
+			return;
+		}
+		String data;
+		if (pending.length() > 0) {
+			data = pending.append(chunk).toString();
+			pending.setLength(0);
+		} else {
+			data = chunk;
+		}
+		int position = 0;
+		while (true) {
+			int indexOfPrompt = data.indexOf(prompt, position);
+			if (indexOfPrompt < 0) {
+				int keep = partialPromptLength(data, position);
+				output(data, position, data.length() - keep);
+				pending.append(data, data.length() - keep, data.length());
+				return;
+			}
+			output(data, position, indexOfPrompt);
+			int indexOfEol = data.indexOf('\n', indexOfPrompt + prompt.length());
+			if (indexOfEol < 0) {
+				// Error message is not complete yet
+				pending.append(data, indexOfPrompt, data.length());
+				return;
+			}
+			String promptMessage = data.substring(indexOfPrompt + prompt.length(), indexOfEol);
+			if (promptMessage.trim().equals(AbstractPowerHellImpl.INPUT_REQUEST_MESSAGE)) {
+				handler.inputRequest();
+			} else if (isBlank(promptMessage)) {
+				handler.end(null);
+			} else {
+				handler.end(promptMessage);
+			}
+			position = indexOfEol + 1;
+		}
+	}
+	
+	private void output(String data, int start, int end) throws PowerHellExecutionException {
+		if (end > start) {
+			handler.output(data.substring(start, end));
+		}
+	}
+
+	/**
+	 * Returns length of the longest suffix of data that is a beginning of the prompt.
+	 */
+	private int partialPromptLength(String data, int position) {
+		int max = Math.min(prompt.length() - 1, data.length() - position);
+		for (int length = max; length > 0; length--) {
+			if (data.regionMatches(data.length() - length, prompt, 0, length)) {
+				return length;
+			}
+		}
+		return 0;
+	}
+
+	private boolean isBlank(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (!Character.isWhitespace(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiPredicate;
+
+/**
+ * <p>
+ * Decides whether a command that failed with a WinRM fault should be re-tried,
+ * and how long to wait before that. The faults are classified by looking at
+ * the messages and types of the fault and its causes, as winrm4j and CXF do not
+ * provide anything more specific.
+ * </p>
+ * <p>
+ * Stale shell (invalid selectors, e.g. after WinRM service restart) and exceeded
+ * quota mean that the command was rejected before it was executed. Such faults are
+ * always re-tried. Timeouts and unknown faults are re-tried only for idempotent
+ * commands, as the command may have been executed already. Authentication faults
+ * are never re-tried, they will not go away by themselves.
+ * </p>
+ * <p>
+ * Wait time grows exponentially with every attempt, up to maximum backoff.
+ * Jitter randomly shortens the wait, so the clients that failed at the same time
+ * do not re-try at the same time.
+ * </p>
+ *
+ * @author semancik
+ */
+public class PowerHellRetryPolicy {
+
+	private static final int MAX_CAUSE_DEPTH = 10;
+
+	public enum FaultType {
+		STALE_SHELL, QUOTA_EXCEEDED, TIMEOUT, AUTHENTICATION, UNKNOWN
+	}
+
+	// Configuration
+	private int maxAttempts = 3;
+	private long initialBackoff = 100L;
+	private long maxBackoff = 10000L;
+	private double backoffMultiplier = 2.0;
+	private double jitter = 0.5;
+	private BiPredicate<String, Map<String,Object>> idempotentPredicate;
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Maximum number of attempts, including the first one. One means no re-try.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	/**
+	 * Time (in milliseconds) to wait before the first re-try.
+	 */
+	public void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Maximum time (in milliseconds) to wait before a re-try.
+	 */
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	public double getBackoffMultiplier() {
+		return backoffMultiplier;
+	}
+
+	/**
+	 * Factor by which the wait time grows with every re-try.
+	 */
+	public void setBackoffMultiplier(double backoffMultiplier) {
+		this.backoffMultiplier = backoffMultiplier;
+	}
+
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Fraction of the wait time that is randomized (0.0 - 1.0).
+	 * Zero means that the wait time is exactly the computed backoff.
+	 */
+	public void setJitter(double jitter) {
+		this.jitter = jitter;
+	}
+
+	public BiPredicate<String, Map<String, Object>> getIdempotentPredicate() {
+		return idempotentPredicate;
+	}
+
+	/**
+	 * Decides whether the command (with the arguments) can be safely executed more than once.
+	 * The command is the script as it is sent to the endpoint, it may be wrapped
+	 * (e.g. by output compression). For registered scripts the command is the script name.
+	 * If not set, no command is considered idempotent. Idempotency has to be explicitly
+	 * allowed for the commands that are safe to execute again, e.g. read-only queries.
+	 */
+	public void setIdempotentPredicate(BiPredicate<String, Map<String, Object>> idempotentPredicate) {
+		this.idempotentPredicate = idempotentPredicate;
+	}
+
+	public boolean isIdempotent(String command, Map<String, Object> arguments) {
+		return idempotentPredicate != null && idempotentPredicate.test(command, arguments);
+	}
+
+	/**
+	 * Returns true if a command should be re-tried after specified attempt failed with the fault.
+	 */
+	public boolean shouldRetry(FaultType faultType, int attempt, boolean idempotent) {
+		if (attempt >= maxAttempts) {
+			return false;
+		}
+		switch (faultType) {
+			case STALE_SHELL:
+			case QUOTA_EXCEEDED:
+				return true;
+			case TIMEOUT:
+			case UNKNOWN:
+				return idempotent;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Returns time (in milliseconds) to wait after specified attempt failed.
+	 */
+	public long getBackoff(int attempt) {
+		double backoff = initialBackoff * Math.pow(backoffMultiplier, Math.max(attempt - 1, 0));
+		backoff = Math.min(backoff, maxBackoff);
+		if (jitter > 0) {
+			backoff -= backoff * jitter * ThreadLocalRandom.current().nextDouble();
+		}
+		return Math.max((long) backoff, 0L);
+	}
+
+	public FaultType classify(Throwable fault) {
+		Throwable cause = fault;
+		for (int depth = 0; cause != null && depth < MAX_CAUSE_DEPTH; depth++) {
+			FaultType faultType = classifySingle(cause);
+			if (faultType != FaultType.UNKNOWN) {
+				return faultType;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+			cause = cause.getCause();
+		}
+		return FaultType.UNKNOWN;
+	}
+
+	private FaultType classifySingle(Throwable e) {
+		if (e instanceof SocketTimeoutException || e instanceof TimeoutException || e instanceof ConnectException) {
+			return FaultType.TIMEOUT;
+		}
+		String message = e.getMessage();
+		if (message == null) {
+			return FaultType.UNKNOWN;
+		}
+		message = message.toLowerCase(Locale.ROOT);
+		if (message.contains("authorization loop detected") || message.contains("unauthorized") || message.contains("access is denied")) {
+			return FaultType.AUTHENTICATION;
+		}
+		if (message.contains("invalid selectors") || message.contains("invalidselectors")) {
+			return FaultType.STALE_SHELL;
+		}
+		if (message.contains("quota") || (message.contains("maximum number of") && message.contains("exceeded"))) {
+			return FaultType.QUOTA_EXCEEDED;
+		}
+		if (message.contains("timed out") || message.contains("timeout")) {
+			return FaultType.TIMEOUT;
+		}
+		return FaultType.UNKNOWN;
+	}
+}
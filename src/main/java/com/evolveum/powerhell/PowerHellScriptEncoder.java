@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Low-level encoding routines used to build command lines and scripts.
+ * Avoids regular expressions, charset lookups and intermediary byte arrays.
+ * Scripts are built in per-thread buffers that are reused for subsequent commands.
+ * 
+ * @author semancik
+ */
+final class PowerHellScriptEncoder {
+	
+	private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+	private static final int INITIAL_BUFFER_CAPACITY = 1024;
+	
+	/**
+	 * Buffers larger than this are not kept for reuse, so one huge command does not
+	 * keep the memory allocated forever.
+	 */
+	private static final int MAX_RETAINED_BUFFER_CAPACITY = 256 * 1024;
+	
+	private static final ThreadLocal<StringBuilder> SCRIPT_BUFFER = new ThreadLocal<>();
+	private static final ThreadLocal<StringBuilder> OUTPUT_BUFFER = new ThreadLocal<>();
+	
+	private PowerHellScriptEncoder() {
+	}
+	
+	/**
+	 * Returns empty buffer for building scripts. The buffer is reused by next call in the same thread,
+	 * therefore the content must be converted to string before that.
+	 */
+	static StringBuilder scriptBuffer() {
+		return buffer(SCRIPT_BUFFER);
+	}
+
+	/**
+	 * Returns empty buffer for building encoded output (e.g. command line with encoded script).
+	 * Independent of script buffer.
+	 */
+	static StringBuilder outputBuffer() {
+		return buffer(OUTPUT_BUFFER);
+	}
+	
+	private static StringBuilder buffer(ThreadLocal<StringBuilder> threadLocal) {
+		StringBuilder buffer = threadLocal.get();
+		if (buffer == null || buffer.capacity() > MAX_RETAINED_BUFFER_CAPACITY) {
+			buffer = new StringBuilder(INITIAL_BUFFER_CAPACITY);
+			threadLocal.set(buffer);
+		} else {
+			buffer.setLength(0);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Appends value in PowerShell single quotes, single quotes in the value are doubled.
+	 */
+	static void appendQuotedSingle(StringBuilder sb, String value) {
+		sb.append('\'');
+		int start = 0;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			if (value.charAt(i) == '\'') {
+				sb.append(value, start, i + 1).append('\'');
+				start = i + 1;
+			}
+		}
+		sb.append(value, start, length);
+		sb.append('\'');
+	}
+
+	/**
+	 * Appends base64 encoding of UTF-16LE representation of the text.
+	 * This is the same as base64 of text.getBytes("UTF-16LE"), including replacement
+	 * of unpaired surrogates, but it is done in one pass without the byte array.
+	 */
+	static void appendUtf16LeBase64(StringBuilder out, CharSequence text) {
+		int length = text.length();
+		out.ensureCapacity(out.length() + ((length * 2 + 2) / 3) * 4);
+		int bits = 0;
+		int byteCount = 0;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (Character.isHighSurrogate(c)) {
+				if (i + 1 >= length || !Character.isLowSurrogate(text.charAt(i + 1))) {
+					c = REPLACEMENT_CHARACTER;
+				}
+			} else if (Character.isLowSurrogate(c)) {
+				if (i == 0 || !Character.isHighSurrogate(text.charAt(i - 1))) {
+					c = REPLACEMENT_CHARACTER;
+				}
+			}
+			// Little endian: low byte first
+			bits = (bits << 8) | (c & 0xFF);
+			if (++byteCount == 3) {
+				appendBase64Group(out, bits);
+				bits = 0;
+				byteCount = 0;
+			}
+			bits = (bits << 8) | (c >>> 8);
+			if (++byteCount == 3) {
+				appendBase64Group(out, bits);
+				bits = 0;
+				byteCount = 0;
+			}
+		}
+		appendBase64Tail(out, bits, byteCount);
+	}
+
+	/**
+	 * Appends base64 encoding of UTF-8 representation of the text.
+	 * Unpaired surrogates are replaced by replacement character. There is no intermediary byte array.
+	 */
+	static void appendUtf8Base64(StringBuilder out, CharSequence text) {
+		int length = text.length();
+		out.ensureCapacity(out.length() + ((length + 2) / 3) * 4);
+		int bits = 0;
+		int byteCount = 0;
+		for (int i = 0; i < length; i++) {
+			int codePoint = text.charAt(i);
+			if (Character.isHighSurrogate((char) codePoint) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				codePoint = Character.toCodePoint((char) codePoint, text.charAt(++i));
+			} else if (Character.isSurrogate((char) codePoint)) {
+				codePoint = REPLACEMENT_CHARACTER;
+			}
+			int continuationBytes;
+			int leadByte;
+			if (codePoint < 0x80) {
+				continuationBytes = 0;
+				leadByte = codePoint;
+			} else if (codePoint < 0x800) {
+				continuationBytes = 1;
+				leadByte = 0xC0 | (codePoint >>> 6);
+			} else if (codePoint < 0x10000) {
+				continuationBytes = 2;
+				leadByte = 0xE0 | (codePoint >>> 12);
+			} else {
+				continuationBytes = 3;
+				leadByte = 0xF0 | (codePoint >>> 18);
+			}
+			bits = (bits << 8) | leadByte;
+			if (++byteCount == 3) {
+				appendBase64Group(out, bits);
+				bits = 0;
+				byteCount = 0;
+			}
+			for (int shift = 6 * (continuationBytes - 1); shift >= 0; shift -= 6) {
+				bits = (bits << 8) | 0x80 | ((codePoint >>> shift) & 0x3F);
+				if (++byteCount == 3) {
+					appendBase64Group(out, bits);
+					bits = 0;
+					byteCount = 0;
+				}
+			}
+		}
+		appendBase64Tail(out, bits, byteCount);
+	}
+
+	/**
+	 * Returns hex-encoded hash of the text (first 128 bits of SHA-256).
+	 */
+	static String hash(String text) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not supported", e);
+		}
+		StringBuilder sb = new StringBuilder(32);
+		for (int i = 0; i < 16; i++) {
+			sb.append(HEX_DIGITS[(digest[i] >>> 4) & 0x0F]);
+			sb.append(HEX_DIGITS[digest[i] & 0x0F]);
+		}
+		return sb.toString();
+	}
+
+	private static void appendBase64Tail(StringBuilder out, int bits, int byteCount) {
+		if (byteCount == 1) {
+			out.append(BASE64_ALPHABET[(bits >>> 2) & 0x3F]);
+			out.append(BASE64_ALPHABET[(bits << 4) & 0x3F]);
+			out.append("==");
+		} else if (byteCount == 2) {
+			out.append(BASE64_ALPHABET[(bits >>> 10) & 0x3F]);
+			out.append(BASE64_ALPHABET[(bits >>> 4) & 0x3F]);
+			out.append(BASE64_ALPHABET[(bits << 2) & 0x3F]);
+			out.append('=');
+		}
+	}
+
+	private static void appendBase64Group(StringBuilder out, int bits) {
+		out.append(BASE64_ALPHABET[(bits >>> 18) & 0x3F]);
+		out.append(BASE64_ALPHABET[(bits >>> 12) & 0x3F]);
+		out.append(BASE64_ALPHABET[(bits >>> 6) & 0x3F]);
+		out.append(BASE64_ALPHABET[bits & 0x3F]);
+	}
+
+}
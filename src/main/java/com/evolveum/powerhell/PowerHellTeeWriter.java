@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Writes to the caller and captures the output at the same time.
+ * Used by decorators that need to keep the output (cache, coalescing).
+ *
+ * @author semancik
+ */
+class PowerHellTeeWriter extends Writer {
+
+	private final Writer writer;
+	private final StringWriter capture;
+
+	PowerHellTeeWriter(Writer writer, StringWriter capture) {
+		this.writer = writer;
+		this.capture = capture;
+	}
+
+	@Override
+	public void write(char[] buffer, int offset, int length) throws IOException {
+		writer.write(buffer, offset, length);
+		capture.write(buffer, offset, length);
+	}
+
+	@Override
+	public void write(String str, int offset, int length) throws IOException {
+		writer.write(str, offset, length);
+		capture.write(str, offset, length);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.Writer;
+
+/**
+ * <p>
+ * Transport that is used by WinRM PowerHell implementations to execute commands
+ * on the remote host. Default transport is based on winrm4j client.
+ * Alternative transports can be plugged in by setting transport factory
+ * in {@link AbstractPowerHellWinRmImpl}, e.g. {@link PowerHellLocalProcessTransport}
+ * for testing without Windows host or {@link PowerHellFakeTransport} for testing
+ * without any PowerShell.
+ * </p>
+ * <p>
+ * Transport methods may throw runtime exceptions of the underlying communication
+ * library (e.g. CXF Fault or SOAPFaultException). PowerHell implementations
+ * know how to deal with them.
+ * </p>
+ *
+ * @author semancik
+ */
+public interface PowerHellTransport {
+
+	/**
+	 * Executes command and waits for it to finish. Output is written to the writers
+	 * as it is received.
+	 * @return exit code of the command
+	 */
+	int command(String commandLine, Writer stdout, Writer stderr);
+
+	/**
+	 * Starts the command and returns immediately. Interaction with the running command
+	 * is done using the returned object.
+	 */
+	PowerHellTransportCommand commandAsync(String commandLine);
+
+	/**
+	 * Closes the transport and releases all its resources.
+	 */
+	void disconnect();
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Command that is running on the other side of {@link PowerHellTransport}.
+ *
+ * @author semancik
+ */
+public interface PowerHellTransportCommand {
+
+	/**
+	 * Waits for output of the command. Returns when some output is available,
+	 * or when the command ends, or when transport-specific timeout expires.
+	 * Received output is available using {@link #getLastOut()} and {@link #getLastErr()}.
+	 * @return exit code if the command ended, null if the command is still running
+	 */
+	Integer receive();
+
+	/**
+	 * Stdout received by last invocation of {@link #receive()}. May be null.
+	 */
+	String getLastOut();
+
+	/**
+	 * Stderr received by last invocation of {@link #receive()}. May be null.
+	 */
+	String getLastErr();
+
+	/**
+	 * Sends data to stdin of the command.
+	 */
+	void send(String input);
+
+	/**
+	 * Releases the resources of the command. The command is terminated if it is still running.
+	 */
+	void release();
+
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Creates (connected) transport for WinRM PowerHell implementation.
+ * The factory is invoked every time the implementation connects or re-connects.
+ * Connection parameters are taken from the PowerHell instance.
+ *
+ * @author semancik
+ */
+@FunctionalInterface
+public interface PowerHellTransportFactory {
+
+	PowerHellTransport createTransport(AbstractPowerHellWinRmImpl powerHell);
+
+}
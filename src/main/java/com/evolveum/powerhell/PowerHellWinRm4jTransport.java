@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import java.io.Writer;
+
+import io.cloudsoft.winrm4j.client.Command;
+import io.cloudsoft.winrm4j.client.WinRmClient;
+
+/**
+ * Default transport, based on winrm4j client. All the commands of the transport
+ * share the same client, so the transport is as thread-safe as the winrm4j client is.
+ *
+ * @author semancik
+ */
+class PowerHellWinRm4jTransport implements PowerHellTransport {
+
+	private final WinRmClient client;
+
+	PowerHellWinRm4jTransport(WinRmClient client) {
+		this.client = client;
+	}
+
+	static PowerHellTransport create(AbstractPowerHellWinRmImpl powerHell) {
+		WinRmClient.Builder builder = WinRmClient.builder(powerHell.getEndpointUrl(), powerHell.getAuthenticationScheme());
+		builder.credentials(powerHell.getDomainName(), powerHell.getUserName(), powerHell.getPassword());
+		builder.disableCertificateChecks(powerHell.isDisableCertificateChecks());
+		builder.hostnameVerifier(powerHell.getHostnameVerifier());
+		builder.retriesForConnectionFailures(1);
+		return new PowerHellWinRm4jTransport(builder.build());
+	}
+
+	WinRmClient getClient() {
+		return client;
+	}
+
+	@Override
+	public int command(String commandLine, Writer stdout, Writer stderr) {
+		return client.command(commandLine, stdout, stderr);
+	}
+
+	@Override
+	public PowerHellTransportCommand commandAsync(String commandLine) {
+		return new WinRm4jCommand(client.commandAsync(commandLine));
+	}
+
+	@Override
+	public void disconnect() {
+		client.disconnect();
+	}
+
+	private static class WinRm4jCommand implements PowerHellTransportCommand {
+
+		private final Command command;
+
+		WinRm4jCommand(Command command) {
+			this.command = command;
+		}
+
+		@Override
+		public Integer receive() {
+			return command.receive();
+		}
+
+		@Override
+		public String getLastOut() {
+			return command.getLastOut();
+		}
+
+		@Override
+		public String getLastErr() {
+			return command.getLastErr();
+		}
+
+		@Override
+		public void send(String input) {
+			command.send(input);
+		}
+
+		@Override
+		public void release() {
+			command.release();
+		}
+	}
+}
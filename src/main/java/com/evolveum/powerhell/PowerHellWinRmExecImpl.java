@@ -15,15 +15,64 @@
  */
 package com.evolveum.powerhell;
 
-import java.io.StringWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
+import javax.xml.ws.WebServiceException;
+
+import org.apache.cxf.interceptor.Fault;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * <p>
  * PowerHell implementation that executes the commands by using plain WinRM.
+ * </p>
+ * <p>
+ * The WinRM client is kept connected between the commands, therefore only
+ * the first command pays for connection setup and authentication. Client that
+ * was idle for too long is re-created before the next command, as the server
+ * has probably forgotten about it already. If a command fails with a fault
+ * on a re-used client, the client is re-created and the command is tried once again.
+ * But only if the fault happened before the command was created (e.g. the shell
+ * was gone or the request was rejected), or if the command is idempotent according
+ * to the retry policy. Even a command that has not produced any output may have done
+ * its job already.
+ * </p>
+ * <p>
+ * Several commands can be executed in parallel on a single client (and therefore
+ * single WinRM shell) if maximum number of concurrent commands is set to a value
+ * larger than one. Each command gets its own WinRM command and output stream.
+ * This gives concurrency without opening more shells, which are usually limited
+ * by MaxShellsPerUser quota. In that case the instance is thread-safe and
+ * runCommandAsync() runs the commands in parallel. Client that has failed is not used
+ * for new commands, but it is disconnected only after all the commands that are running
+ * on it have ended.
+ * </p>
+ * <p>
+ * Multiplexing relies on the transport being safe for concurrent use, i.e. commandAsync()
+ * and receive() of different commands may be invoked by different threads at the same time.
+ * Default transport passes these calls to a single winrm4j client. Thread safety of winrm4j
+ * client is assumed, it is not guaranteed by winrm4j documentation and it was not verified
+ * for all winrm4j versions. Use multiplexing with care, or with a transport that is known
+ * to be thread-safe.
+ * </p>
+ * <p>
+ * Command that does not finish in time (if command timeout is set) or whose thread
+ * is interrupted is terminated. The client is kept.
+ * Timeout is checked between receive operations, therefore it is effectively
+ * rounded up to WinRM operation timeout.
+ * </p>
+ * <p>
+ * PowerShell implementation provides command input by Read-PowerHellInput function,
+ * in the same way as the loop implementations. The whole input is sent to the command
+ * before its output is received, the command is never re-tried if there is any input.
  * </p> 
  * 
  * @author semancik
@@ -32,53 +81,364 @@ public class PowerHellWinRmExecImpl extends AbstractPowerHellWinRmImpl {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(PowerHellWinRmExecImpl.class);
 	
+	// Configuration
+	private boolean clientReuse = true;
+	private long maxClientIdleTime = 60000L;
+	private int maxConcurrentCommands = 1;
+	
+	// State
+	private long lastClientUse;
+	private final Map<PowerHellTransport, Integer> transportUsers = new HashMap<>();
+	private final Set<PowerHellTransport> detachedTransports = new HashSet<>();
+	private Semaphore commandPermits;
+	
+	public boolean isClientReuse() {
+		return clientReuse;
+	}
+
+	/**
+	 * If set to false, new client is connected for every command and it is
+	 * disconnected after the command. This is the old behavior.
+	 */
+	public void setClientReuse(boolean clientReuse) {
+		this.clientReuse = clientReuse;
+	}
+
+	public long getMaxClientIdleTime() {
+		return maxClientIdleTime;
+	}
+
+	/**
+	 * Time (in milliseconds) after which an idle client is not re-used any more.
+	 * It should be shorter than shell idle timeout of the WinRM service.
+	 * Zero means that the client is re-used regardless of idle time.
+	 */
+	public void setMaxClientIdleTime(long maxClientIdleTime) {
+		this.maxClientIdleTime = maxClientIdleTime;
+	}
+	
+	public int getMaxConcurrentCommands() {
+		return maxConcurrentCommands;
+	}
+
+	/**
+	 * Maximum number of commands that are executed at the same time in one shell.
+	 * Default is one, which means that the commands are executed one after another.
+	 * Callers above the limit wait until a running command ends.
+	 * This should not exceed MaxConcurrentOperationsPerUser quota of the WinRM service.
+	 */
+	public synchronized void setMaxConcurrentCommands(int maxConcurrentCommands) {
+		this.maxConcurrentCommands = maxConcurrentCommands;
+		this.commandPermits = null;
+	}
+	
+	private boolean isMultiplexed() {
+		return maxConcurrentCommands > 1;
+	}
+	
+	@Override
+	protected int getAsyncThreads() {
+		return maxConcurrentCommands;
+	}
+	
 	@Override
 	public String getImplementationName() {
 		return "WinRM Execution";
 	}
 	
 	@Override
-	public String runCommand(String command, Map<String,Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+	protected void executeCommand(String command, Map<String,Object> arguments, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		executeCommand(command, arguments, null, stdout, stderr, metrics);
+	}
+	
+	/**
+	 * True if the commands are executed by PowerShell, which provides the input
+	 * to the command by Read-PowerHellInput function.
+	 */
+	protected boolean isInputFunctionSupported() {
+		return false;
+	}
+	
+	@Override
+	protected void executeCommand(String command, Map<String,Object> arguments, Reader stdin, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
 		
-		// winrm4j seems not to be fully ready for client reuse
-		if (!isClientConnected()) {
-			connectClient();
+		String encodedCommandLine;
+		if (stdin == null) {
+			encodedCommandLine = encodeCommand(command, arguments);
+		} else if (isInputFunctionSupported()) {
+			// Arguments are made part of the script
+			encodedCommandLine = encodeCommand(createExecInputScript(createPowerShellScripWithArguments(command, arguments)), Collections.emptyMap());
+		} else {
+			throw new PowerHellExecutionException(getImplementationName() + " does not support command input");
 		}
-		
-		long tsCommStart = System.currentTimeMillis();
-				
-		StringWriter writerStdOut = new StringWriter();
-		StringWriter writerStdErr = new StringWriter();
-		
-		String encodedCommandLine = encodeCommand(command, arguments);
 		logData("X>", encodedCommandLine);
 		
-		int exitCode = getClient().command(encodedCommandLine, writerStdOut, writerStdErr);
-		
-		String out = writerStdOut.toString();
-		String err = writerStdErr.toString();
-		logData("O<", out);
-		logData("E<", err);
+		Semaphore permits = getCommandPermits();
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PowerHellExecutionException("Interrupted while waiting for command slot", e);
+		}
+		// Input cannot be read again
+		boolean idempotent = stdin == null && getRetryPolicy().isIdempotent(command, arguments);
+		int exitCode;
+		try {
+			exitCode = executeWithClientRetry(encodedCommandLine, idempotent, stdin, stdout, stderr, metrics);
+		} finally {
+			permits.release();
+		}
     		
 		if (exitCode != 0) {
 			LOG.error("Exit code received during command execution: {}", exitCode);
-			disconnectClient();
+			fireExitCodeFailure(exitCode);
+			if (!isMultiplexed()) {
+				// Other commands may be running in the shell when multiplexed.
+				// Exit code of one command is no reason to interrupt them.
+				disconnectClient();
+			}
 			PowerHellExecutionException e = new PowerHellExecutionException("Exit code "+exitCode+" received during command execution", exitCode);
-			e.setStdout(out);
-			e.setStderr(err);
 			throw e;
 		}
 		
-		logExecution(command, tsCommStart);
-		
-		// winrm4j seems not to be fully ready for client reuse
-		disconnectClient();
+		logExecution(command, metrics);
 		
-		return out;
+		if (!clientReuse) {
+			disconnectClient();
+		}
+	}
+	
+	private synchronized Semaphore getCommandPermits() {
+		if (commandPermits == null) {
+			commandPermits = new Semaphore(Math.max(maxConcurrentCommands, 1), true);
+		}
+		return commandPermits;
+	}
+	
+	@Override
+	protected synchronized void connectClient() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		super.connectClient();
+		lastClientUse = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Client that is still used by other commands is not disconnected right now.
+	 * It is disconnected when the last of the commands ends.
+	 */
+	@Override
+	protected synchronized void disconnectClient() {
+		PowerHellTransport transport = getTransport();
+		if (transport != null && transportUsers.containsKey(transport)) {
+			LOG.debug("Client is used by {} running commands, it will be disconnected later", transportUsers.get(transport));
+			detachedTransports.add(transport);
+			detachClient();
+			return;
+		}
+		super.disconnectClient();
+	}
+	
+	/**
+	 * Makes sure that there is a usable client.
+	 * Returns true if existing client is re-used.
+	 */
+	private synchronized boolean prepareClient() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		if (isClientConnected()) {
+			long idleTime = System.currentTimeMillis() - lastClientUse;
+			if (!clientReuse || (!transportUsers.containsKey(getTransport()) && maxClientIdleTime > 0 && idleTime > maxClientIdleTime)) {
+				LOG.debug("Client idle for {} ms, re-connecting", idleTime);
+				disconnectClient();
+			} else {
+				return true;
+			}
+		}
+		connectClient();
+		return false;
+	}
+	
+	private int executeWithClientRetry(String encodedCommandLine, boolean idempotent, Reader stdin, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		boolean reused;
+		PowerHellTransport transport;
+		synchronized (this) {
+			reused = prepareClient();
+			transport = getTransport();
+			transportUsers.merge(transport, 1, Integer::sum);
+		}
+		ExecAttempt attempt = new ExecAttempt();
+		try {
+			
+			attempt.transportCommand = startCommand(transport, encodedCommandLine, metrics, false);
+			return receiveOutput(attempt, stdin, stdout, stderr, metrics);
+			
+		} catch (Fault | WebServiceException e) {
+			releaseTransport(transport);
+			transport = null;
+			// Re-try only if we may have been using stale client. And only if the command
+			// was not created yet, otherwise we cannot be sure that the command did not run.
+			// Idempotent commands can be executed again anyway, but only if the caller
+			// has not got any of their output yet. It would get the output twice.
+			boolean created = attempt.transportCommand != null;
+			if (!reused || attempt.dataExchanged || (created && !idempotent) || !getRetryPolicy().shouldRetry(getRetryPolicy().classify(e), 1, idempotent)) {
+				throw processCommandFault(e);
+			}
+			LOG.debug("Fault on re-used client, re-connecting and re-trying: {}", e.getMessage(), e);
+			fireFaultRetry(e);
+			waitBeforeRetry(1);
+		} finally {
+			if (transport != null) {
+				releaseTransport(transport, false);
+			}
+		}
+		synchronized (this) {
+			reused = prepareClient();
+			transport = getTransport();
+			transportUsers.merge(transport, 1, Integer::sum);
+		}
+		if (!reused) {
+			fireReconnect();
+		}
+		try {
+			
+			attempt = new ExecAttempt();
+			attempt.transportCommand = startCommand(transport, encodedCommandLine, metrics, true);
+			return receiveOutput(attempt, stdin, stdout, stderr, metrics);
+			
+		} catch (Fault | WebServiceException e) {
+			releaseTransport(transport);
+			transport = null;
+			throw processCommandFault(e);
+		} finally {
+			if (transport != null) {
+				releaseTransport(transport, false);
+			}
+		}
+	}
+	
+	/**
+	 * Creates the command. Fault thrown from here means that the command did not run.
+	 * Command that is sent again (re-try) is not counted in the metrics again.
+	 */
+	private PowerHellTransportCommand startCommand(PowerHellTransport transport, String encodedCommandLine, PowerHellCommandMetrics metrics, boolean resend) {
+		if (resend) {
+			metrics.markResent();
+		} else {
+			metrics.markSent(encodedCommandLine);
+		}
+		return transport.commandAsync(encodedCommandLine);
+	}
+	
+	/**
+	 * Each command has its own output stream, other commands may run in the same shell.
+	 * We are in control of the receive loop, therefore we can abort the command.
+	 * The command is released at the end.
+	 * Input (if any) is sent before the output is received.
+	 */
+	private int receiveOutput(ExecAttempt attempt, Reader stdin, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException {
+		PowerHellTransportCommand transportCommand = attempt.transportCommand;
+		long deadline = getCommandDeadline();
+		try {
+			if (stdin != null) {
+				attempt.dataExchanged = true;
+				sendInput(transportCommand, stdin, metrics);
+			}
+			while (true) {
+				PowerHellExecutionException abortReason = getCommandAbortReason(deadline);
+				if (abortReason != null) {
+					// Releasing the command terminates it. The client (and shell) stays.
+					LOG.warn("Aborting command: {}", abortReason.getMessage());
+					throw abortReason;
+				}
+				Integer exitCode = transportCommand.receive();
+				String out = transportCommand.getLastOut();
+				String err = transportCommand.getLastErr();
+				logData("O<", out);
+				logData("E<", err);
+				if ((out != null && !out.isEmpty()) || (err != null && !err.isEmpty())) {
+					attempt.dataExchanged = true;
+				}
+				writeOutput(stdout, out);
+				writeOutput(stderr, err);
+				if (exitCode != null) {
+					return exitCode;
+				}
+			}
+		} finally {
+			releaseCommand(transportCommand);
+		}
+	}
+	
+	/**
+	 * Fault while releasing the command must not replace the result of the command.
+	 * The command has ended already, successfully or not. It must not be re-tried because of this.
+	 */
+	private void releaseCommand(PowerHellTransportCommand transportCommand) {
+		try {
+			transportCommand.release();
+		} catch (Fault | WebServiceException e) {
+			LOG.warn("WinRM fault while releasing command: {}", e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Command may end without reading all the input. Sending the rest fails then,
+	 * but the exit code received afterwards tells whether that is a problem.
+	 * Other faults will show up during receive.
+	 */
+	private void sendInput(PowerHellTransportCommand transportCommand, Reader stdin, PowerHellCommandMetrics metrics) throws PowerHellExecutionException {
+		while (true) {
+			String chunk = createExecInputChunk(stdin);
+			logData("I>", chunk);
+			try {
+				transportCommand.send(chunk);
+			} catch (Fault | WebServiceException e) {
+				LOG.debug("Fault while sending command input, command has probably ended: {}", e.getMessage(), e);
+				return;
+			}
+			if (isExecInputEnd(chunk)) {
+				return;
+			}
+			metrics.markInputSent(chunk);
+		}
+	}
+	
+	private void releaseTransport(PowerHellTransport transport) {
+		releaseTransport(transport, true);
+	}
+	
+	private synchronized void releaseTransport(PowerHellTransport transport, boolean failed) {
+		lastClientUse = System.currentTimeMillis();
+		boolean lastUser = transportUsers.merge(transport, -1, Integer::sum) <= 0;
+		if (lastUser) {
+			transportUsers.remove(transport);
+		}
+		if (failed && transport == getTransport()) {
+			// Client failed, it needs to be re-created. But only if nobody else has re-created it already.
+			disconnectClient();
+		}
+		if (lastUser && detachedTransports.remove(transport)) {
+			LOG.debug("Last command on detached client has ended, disconnecting it");
+			transport.disconnect();
+		}
+	}
+	
+	private RuntimeException processCommandFault(RuntimeException e) throws PowerHellSecurityException, PowerHellCommunicationException {
+		if (e instanceof Fault) {
+			processFault("Executing command failed", (Fault)e);
+		}
+		return e;
 	}
 
 	protected String encodeCommand(String command, Map<String,Object> arguments) {
 		return encodeCommandExecToString(command, arguments);
 	}
 	
+	/**
+	 * State of one attempt to execute the command.
+	 * Command can be re-tried only if nothing was exchanged with the caller,
+	 * i.e. no output was written and no input was read.
+	 */
+	private static class ExecAttempt {
+		private PowerHellTransportCommand transportCommand;
+		private boolean dataExchanged = false;
+	}
+	
 }
@@ -36,6 +36,11 @@ public class PowerHellWinRmExecPowerShellImpl extends PowerHellWinRmExecImpl {
 		return "WinRM PowerShell Execution";
 	}
 	
+	@Override
+	protected boolean isInputFunctionSupported() {
+		return true;
+	}
+	
 	@Override
 	protected String encodeCommand(String command, Map<String,Object> arguments) {
 		return encodePowerShellToString(command, arguments);
@@ -15,17 +15,26 @@
  */
 package com.evolveum.powerhell;
 
+import java.io.Reader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
-import javax.xml.ws.soap.SOAPFaultException;
+import javax.xml.ws.WebServiceException;
 
 import org.apache.cxf.interceptor.Fault;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.cloudsoft.winrm4j.client.Command;
-
 /**
  * <p>
  * Simplistic shell emulation written in PowerShell and executed remotely
@@ -54,6 +63,30 @@ import io.cloudsoft.winrm4j.client.Command;
  * and executes it. The executions are separated by prompt, so that the client
  * side can determine when a command execution ends and next command can be
  * sent.
+ * </p>
+ * <p>
+ * WinRM service terminates shells that are idle for too long. Optional keepalive
+ * sends a no-op command through the loop when it is idle, so the shell does not expire.
+ * If the loop is found dead (or it was ended by previous command), it is re-started
+ * by the keepalive thread, so the next command does not have to wait for loop initialization.
+ * </p>
+ * <p>
+ * Command that exceeds command timeout (or whose thread is interrupted) is aborted by
+ * terminating the loop. The WinRM client is kept and the loop is re-started
+ * for the next command. WinRM Signal (Ctrl-C) is not attempted, therefore every
+ * timeout means that the loop (including its initialization) has to be started again.
+ * Timeout is checked between receive operations, therefore
+ * it is effectively rounded up to WinRM operation timeout.
+ * </p>
+ * <p>
+ * If sending a command to the loop fails with a fault, the client is re-connected,
+ * the loop is re-started and the command is sent again. Which faults are re-tried
+ * and how long to wait is decided by {@link PowerHellRetryPolicy}.
+ * </p>
+ * <p>
+ * Command input is sent to the loop in chunks of limited size. Next chunk is sent only
+ * when the command asks for it by Read-PowerHellInput function. Therefore the whole input is never
+ * held in memory and the command is not flooded with data that it cannot process yet.
  * </p> 
  * 
  * @author semancik
@@ -62,14 +95,25 @@ public class PowerHellWinRmLoopImpl extends AbstractPowerHellWinRmImpl {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(PowerHellWinRmLoopImpl.class);
 	public static final String PROMPT = ":::P0w3Rh3llPr0mPt:::";
+	private static final String KEEPALIVE_COMMAND = "$null";
+	private static final int KEEPALIVE_MAX_BACKOFF_PERIODS = 32;
 	
 	// Configuration
 	private String initScriptlet;
 	private String prompt = PROMPT;
+	private LoopProtocol loopProtocol = LoopProtocol.PROMPT;
+	private long keepAliveInterval = 0;
+	private final Map<String,String> registeredScripts = new LinkedHashMap<>();
 	
 	// State
 	private boolean isLoopRunning = false;
-	private Command command;
+	private PowerHellTransportCommand command;
+	private final ReentrantLock loopLock = new ReentrantLock();
+	private volatile long lastLoopActivity;
+	private ScheduledExecutorService keepAliveScheduler;
+	private int keepAliveFailures = 0;
+	private long keepAliveSuspendedUntil = 0;
+	private final Map<String,String> definedFunctions = new HashMap<>();
 	
 	public String getInitScriptlet() {
 		return initScriptlet;
@@ -86,6 +130,56 @@ public class PowerHellWinRmLoopImpl extends AbstractPowerHellWinRmImpl {
 	public void setPrompt(String prompt) {
 		this.prompt = prompt;
 	}
+
+	public LoopProtocol getLoopProtocol() {
+		return loopProtocol;
+	}
+
+	public void setLoopProtocol(LoopProtocol loopProtocol) {
+		this.loopProtocol = loopProtocol;
+	}
+	
+	public long getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	/**
+	 * Time (in milliseconds) of loop inactivity after which keepalive is sent.
+	 * It should be shorter than shell idle timeout of the WinRM service.
+	 * Zero means no keepalive.
+	 * Keepalive also re-starts the loop in advance if it is not running. If that fails
+	 * (e.g. the host is down), next attempts are made after exponentially increasing delay.
+	 */
+	public void setKeepAliveInterval(long keepAliveInterval) {
+		this.keepAliveInterval = keepAliveInterval;
+	}
+	
+	/**
+	 * Registers script under specified name. The name must be valid PowerShell function name.
+	 * Registered script can be executed by runScript(). Re-registration replaces the script.
+	 * The script is not part of the loop command line, which is limited in size.
+	 * It is defined as a function in the loop (sent through stdin) when it is
+	 * executed for the first time.
+	 */
+	public void registerScript(String name, String script) {
+		loopLock.lock();
+		try {
+			registeredScripts.put(name, script);
+		} finally {
+			loopLock.unlock();
+		}
+	}
+	
+	/**
+	 * Registers script under a name that is derived from the script content.
+	 * Registering the same script several times is harmless.
+	 * @return name of the registered script, to be used with runScript()
+	 */
+	public String registerScript(String script) {
+		String name = createScriptFunctionName(script);
+		registerScript(name, script);
+		return name;
+	}
 	
 	@Override
 	public String getImplementationName() {
@@ -94,28 +188,43 @@ public class PowerHellWinRmLoopImpl extends AbstractPowerHellWinRmImpl {
 
 	@Override
 	public void connect() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
-		super.connect();
-		startMainLoop();
+		loopLock.lock();
+		try {
+			super.connect();
+			startMainLoop();
+		} finally {
+			loopLock.unlock();
+		}
+		startKeepAlive();
 	}
 	
 	private void startMainLoop() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
 		
-		String psScript = createScript(initScriptlet);
+		if (!isClientConnected()) {
+			// Client is disconnected after failures
+			connectClient();
+		}
+		
+		definedFunctions.clear();
+		String psScript = createLoopScript(initScriptlet, prompt, loopProtocol);
 		LOG.debug("Executing powershell. Main loop script: {}", psScript);
 		
-		long tsStart = System.currentTimeMillis();
+		long tsStart = System.nanoTime();
 		
 		try {
 			
-			command = getClient().commandAsync(encodePowerShellToString(psScript, null));
+			command = getTransport().commandAsync(encodePowerShellToString(psScript, null));
 			
 		} catch (Fault e) {
 			processFault("Executing command failed", e);
 		}
 		
-		long tsAfterInit = System.currentTimeMillis();
-		LOG.debug("Powershell running. init time: {} ms", tsAfterInit-tsStart);
+		LOG.debug("Powershell running. init time: {} ms", (System.nanoTime()-tsStart)/1000000);
 		
+		// First prompt is written by write-host in both protocols.
+		// It may be split between two receives, as any other output.
+		CommandOutputHandler handler = new CommandOutputHandler(null);
+		PowerHellLoopParser parser = new PowerHellPromptLoopParser(prompt, handler);
 		while (true) {
 			Integer exitCode = command.receive();
 			
@@ -124,13 +233,15 @@ public class PowerHellWinRmLoopImpl extends AbstractPowerHellWinRmImpl {
     		logData("O<", out);
     		logData("E<", err);
     		
-    		if (out != null && out.contains(prompt)) {
+    		parser.parse(out);
+    		if (handler.ended) {
     			LOG.trace("First prompt detected");
     			break;
     		}
     		
     		if (exitCode != null) {
     			LOG.error("Exit code received before first prompt: {}", exitCode);
+    			fireExitCodeFailure(exitCode);
     			disconnectClient();
     			PowerHellExecutionException e = new PowerHellExecutionException("Exit code received before first prompt", exitCode);
     			e.setStdout(out);
@@ -140,78 +251,128 @@ public class PowerHellWinRmLoopImpl extends AbstractPowerHellWinRmImpl {
     	}
 		
 		isLoopRunning = true;
+		keepAliveFailures = 0;
+		keepAliveSuspendedUntil = 0;
+		lastLoopActivity = System.currentTimeMillis();
+		fireLoopStart(tsStart);
 	}
-
-	@Override
-	public String runCommand(String psScript, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {		
-		long tsCommStart = System.currentTimeMillis();
-		
-		int attempt = 1;
-		
-		StringWriter writerStdOut = null;
-		StringWriter writerStdErr = null;
-		String promptMessage = null;
-		String outCommandLine = null;
-		
-		int maxLoopStartAttempts;
-		if (isLoopRunning) {
-			// First "start" may reuse existing connection.
-			// We need another attempt that starts fresh with new connection.
-			maxLoopStartAttempts = 2;
-		} else {
-			// Even the first attempt is create new connection.
-			// No re-connect necessary.
-			maxLoopStartAttempts = 1;
+	
+	private synchronized void startKeepAlive() {
+		if (keepAliveInterval <= 0 || keepAliveScheduler != null) {
+			return;
 		}
-		
-		while (true) {
-			
-			if (!isLoopRunning) {
-				startMainLoop();
+		keepAliveScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "PowerHell loop keepalive");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = getKeepAlivePeriod();
+		keepAliveScheduler.scheduleWithFixedDelay(this::keepAlive, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	private long getKeepAlivePeriod() {
+		return Math.max(keepAliveInterval / 2, 1000L);
+	}
+	
+	/**
+	 * One period after the first failure, doubled after each consecutive failure,
+	 * up to KEEPALIVE_MAX_BACKOFF_PERIODS periods.
+	 */
+	private long getKeepAliveBackoff() {
+		long periods = 1;
+		for (int i = 1; i < keepAliveFailures && periods < KEEPALIVE_MAX_BACKOFF_PERIODS; i++) {
+			periods *= 2;
+		}
+		return getKeepAlivePeriod() * periods;
+	}
+	
+	private synchronized void stopKeepAlive() {
+		if (keepAliveScheduler != null) {
+			keepAliveScheduler.shutdownNow();
+			keepAliveScheduler = null;
+		}
+	}
+	
+	private void keepAlive() {
+		if (!loopLock.tryLock()) {
+			// Command is running, the loop is obviously alive.
+			return;
+		}
+		try {
+			if (System.currentTimeMillis() < keepAliveSuspendedUntil) {
+				// Recent keepalive failed, do not hammer the host
+				return;
 			}
-			
-			writerStdOut = new StringWriter();
-			writerStdErr = new StringWriter();
-			promptMessage = null;
-			
-			outCommandLine = createPowerShellScripWithArguments(psScript, arguments);
-			String tx = outCommandLine + "\r\n" + prompt + "\r\n";
-			logData("I>", tx);
-			
-			try {
-				
-				command.send(tx);
-				
-				// success
-				break;
-				
-			} catch (SOAPFaultException e) {
-				// We do not get any error that is more specific than SOAPFault.
-				// Therefore it is difficult to decide whether to re-start loop and re-try the command
-				// (e.g. case of "invalid selectors" after WinRM service restart.
-				// Or whether there is no point and just throw the error up.
-				// So let's be conservative, try to re-start the loop couple of times
-				// and then throw the error up.
-				LOG.error("SOAP fault (attempt {}/{}): {}", attempt, maxLoopStartAttempts, e.getMessage(), e);
-				
-				if (attempt >= maxLoopStartAttempts) {
-					throw e;
+			if (isLoopRunning) {
+				if (System.currentTimeMillis() - lastLoopActivity < keepAliveInterval) {
+					return;
+				}
+				LOG.trace("Sending keepalive");
+				// Dead loop is re-started by the re-try logic when the keepalive is sent.
+				// Keepalive is reported to the listener as any other command.
+				StringWriter discard = new StringWriter();
+				PowerHellCommandMetrics metrics = startCommandMetrics();
+				try {
+					executeCommand(KEEPALIVE_COMMAND, null, discard, discard, metrics);
+					metrics.markEnd(true);
+				} finally {
+					finishCommandMetrics(metrics);
 				}
-				attempt++;
-				isLoopRunning = false;
-				disconnectClient();
-				connectClient();
-				continue;
-				
-			} catch (Throwable e) {
-				// Avoid any looping for other errors
-				throw e;
 			}
-			
-			// not reached
+			if (!isLoopRunning) {
+				LOG.debug("Loop is not running, re-starting it in advance");
+				startMainLoop();
+			}
+			keepAliveFailures = 0;
+			keepAliveSuspendedUntil = 0;
+		} catch (Throwable e) {
+			// Next command will try to start the loop again
+			keepAliveFailures++;
+			long backoff = getKeepAliveBackoff();
+			keepAliveSuspendedUntil = System.currentTimeMillis() + backoff;
+			LOG.warn("Keepalive failed ({} consecutive failures, next attempt in {} ms): {}", keepAliveFailures, backoff, e.getMessage(), e);
+			isLoopRunning = false;
+			releaseLoopCommand();
+			disconnectClient();
+		} finally {
+			loopLock.unlock();
+		}
+	}
+
+	@Override
+	protected void executeCommand(String psScript, Map<String, Object> arguments, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		executeCommand(psScript, arguments, null, stdout, stderr, metrics);
+	}
+	
+	@Override
+	protected void executeCommand(String psScript, Map<String, Object> arguments, Reader stdin, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		loopLock.lock();
+		try {
+			String outCommandLine = createPowerShellScripWithArguments(psScript, arguments);
+			boolean idempotent = getRetryPolicy().isIdempotent(psScript, arguments);
+			executeLoopCommand(() -> outCommandLine, outCommandLine, idempotent, stdin, stdout, stderr, metrics);
+		} finally {
+			lastLoopActivity = System.currentTimeMillis();
+			loopLock.unlock();
 		}
+	}
+	
+	/**
+	 * Command line is provided by supplier, because it may depend on the state of the loop.
+	 * The supplier is invoked after the loop is (re)started.
+	 */
+	private void executeLoopCommand(Supplier<String> commandLineSupplier, String outCommandLine, boolean idempotent, Reader stdin, Writer stdout, Writer stderr, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {		
+		String promptMessage = null;
 		
-		while (true) {
+		String tx = sendToLoop(() -> commandLineSupplier.get() + "\r\n" + prompt + "\r\n", idempotent);
+		metrics.markSent(tx);
+		long deadline = getCommandDeadline();
+		
+		CommandOutputHandler handler = new CommandOutputHandler(stdout);
+		PowerHellLoopParser parser = createLoopParser(handler);
+		
+		while (!handler.ended) {
+			checkCommandAbort(deadline);
 			Integer exitCode = command.receive();
 			
 			String out = command.getLastOut();
@@ -219,28 +380,19 @@ public class PowerHellWinRmLoopImpl extends AbstractPowerHellWinRmImpl {
     		logData("O<", out);
     		logData("E<", err);
 
-    		if (err != null) {
-    			writerStdErr.write(err);
-    		}
+    		writeOutput(stderr, err);
+    		parseLoopOutput(parser, out);
+    		sendInput(handler.takeInputRequests(), stdin, metrics);
     		
-    		if (out != null) {
-    			int indexOfPrompt = out.indexOf(prompt);
-    			if (indexOfPrompt >=0 ) {
-    				writerStdOut.write(out.substring(0,indexOfPrompt));
-    				int indexOfEol = out.indexOf("\n", indexOfPrompt);
-    				promptMessage = out.substring(indexOfPrompt+prompt.length(), indexOfEol);
-    				LOG.trace("Prompt detected, msg: {}", promptMessage);
-    				if (promptMessage != null && !promptMessage.matches("\\s*")) {
-    					PowerHellExecutionException e = new PowerHellExecutionException(promptMessage, exitCode);
-    	    			e.setStdout(writerStdOut.toString());
-    	    			e.setStderr(writerStdErr.toString());
-    	    			e.setPromptMessage(promptMessage);
-    	    			throw e;
-    				}
-    				break;
-    			} else {
-    				writerStdOut.write(out);
+    		if (handler.ended) {
+    			promptMessage = handler.errorMessage;
+    			LOG.trace("End of command detected, msg: {}", promptMessage);
+    			if (promptMessage != null) {
+    				PowerHellExecutionException e = new PowerHellExecutionException(promptMessage, exitCode);
+    	    		e.setPromptMessage(promptMessage);
+    	    		throw e;
     			}
+    			break;
     		}
     		
     		if (exitCode != null) {
@@ -253,33 +405,334 @@ public class PowerHellWinRmLoopImpl extends AbstractPowerHellWinRmImpl {
     				break;
     			} else {
 	    			LOG.error("Exit code received during command execution: {}", exitCode);
+	    			fireExitCodeFailure(exitCode);
+	    			isLoopRunning = false;
 	    			disconnectClient();
 	    			PowerHellExecutionException e = new PowerHellExecutionException("Exit code received during command execution", exitCode);
-	    			e.setStdout(writerStdOut.toString());
-	    			e.setStderr(writerStdErr.toString());
 	    			e.setPromptMessage(promptMessage);
 	    			throw e;
     			}
     		}
 		}		
 		
-		logExecution(outCommandLine, tsCommStart);
+		logExecution(outCommandLine, metrics);
+	}
+	
+	/**
+	 * Sends commands in a single batch. All the commands are sent in one
+	 * WinRM request, the output is then split into individual results.
+	 * Failure of one command does not stop execution of the following commands,
+	 * the error is recorded in the result of the failed command.
+	 * If the loop exits during the batch, results are provided only for the
+	 * commands that were executed. The command that exited the loop gets
+	 * the output that it produced before exit.
+	 * If the batch fails, results of the commands executed before the failure
+	 * are provided in the exception (see {@link PowerHellExecutionException#getCommandResults()}).
+	 */
+	public List<PowerHellCommandResult> runCommands(List<PowerHellCommand> commands) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		List<PowerHellCommandResult> results = new ArrayList<>(commands.size());
+		if (commands.isEmpty()) {
+			return results;
+		}
+		PowerHellCommandMetrics metrics = startCommandMetrics();
+		loopLock.lock();
+		try {
+			executeBatch(commands, results, metrics);
+			metrics.markEnd(true);
+		} catch (PowerHellExecutionException e) {
+			if (e.getCommandResults() == null) {
+				e.setCommandResults(results);
+			}
+			throw e;
+		} finally {
+			lastLoopActivity = System.currentTimeMillis();
+			loopLock.unlock();
+			finishCommandMetrics(metrics);
+		}
+		return results;
+	}
+	
+	private void executeBatch(List<PowerHellCommand> commands, List<PowerHellCommandResult> results, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		
+		StringBuilder txBuilder = new StringBuilder();
+		for (PowerHellCommand psCommand : commands) {
+			txBuilder.append(createPowerShellScripWithArguments(psCommand.getCommand(), psCommand.getArguments()));
+			txBuilder.append("\r\n").append(prompt).append("\r\n");
+		}
+		
+		// Batch can be sent again only if all the commands can be executed again
+		boolean idempotent = true;
+		for (PowerHellCommand psCommand : commands) {
+			idempotent = idempotent && getRetryPolicy().isIdempotent(psCommand.getCommand(), psCommand.getArguments());
+		}
+		
+		String tx = txBuilder.toString();
+		sendToLoop(() -> tx, idempotent);
+		metrics.markSent(tx);
+		long deadline = getCommandDeadline();
+		
+		BatchOutputHandler handler = new BatchOutputHandler(results);
+		PowerHellLoopParser parser = createLoopParser(handler);
+		
+		while (results.size() < commands.size()) {
+			checkCommandAbort(deadline);
+			Integer exitCode = command.receive();
+			
+			String out = command.getLastOut();
+			String err = command.getLastErr();
+			logData("O<", out);
+			logData("E<", err);
+			metrics.markReceived(out);
+			metrics.markReceived(err);
+			
+			if (err != null) {
+				handler.currentStdErr.append(err);
+			}
+			parseLoopOutput(parser, out);
+			// There is no input for batch commands
+			sendInput(handler.takeInputRequests(), null, metrics);
+			
+			if (exitCode != null) {
+				if (exitCode == 0) {
+					LOG.debug("Exit code received during batch execution after {}/{} commands: {} (will restart main loop)", 
+							results.size(), commands.size(), exitCode);
+					isLoopRunning = false;
+					if (results.size() < commands.size()) {
+						// Current command has exited the loop, it was not followed by a prompt
+						handler.end(null);
+					}
+					break;
+				} else {
+					LOG.error("Exit code received during batch execution: {}", exitCode);
+					fireExitCodeFailure(exitCode);
+					isLoopRunning = false;
+					disconnectClient();
+					PowerHellExecutionException e = new PowerHellExecutionException("Exit code received during batch execution", exitCode);
+					e.setStdout(handler.currentStdOut.toString());
+					e.setStderr(handler.currentStdErr.toString());
+					throw e;
+				}
+			}
+		}
 		
+		logExecution("batch of " + commands.size() + " commands", metrics);
+	}
+	
+	/**
+	 * Executes registered script. Only the name and the arguments are sent, the script
+	 * itself is sent only if it was not yet defined in current loop.
+	 */
+	public String runScript(String name, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		StringWriter writerStdOut = new StringWriter();
+		StringWriter writerStdErr = new StringWriter();
+		try {
+			runScript(name, arguments, writerStdOut, writerStdErr);
+		} catch (PowerHellExecutionException e) {
+			if (e.getStdout() == null) {
+				e.setStdout(writerStdOut.toString());
+			}
+			if (e.getStderr() == null) {
+				e.setStderr(writerStdErr.toString());
+			}
+			throw e;
+		}
 		return writerStdOut.toString();
 	}
 	
+	public void runScript(String name, Map<String, Object> arguments, Writer stdout, Writer stderr) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		PowerHellCommandMetrics metrics = startCommandMetrics();
+		loopLock.lock();
+		try {
+			String script = registeredScripts.get(name);
+			if (script == null) {
+				throw new IllegalArgumentException("No registered script "+name);
+			}
+			String invocation = createPowerShellScripWithArguments(name, arguments);
+			executeLoopCommand(() -> {
+				if (script.equals(definedFunctions.get(name))) {
+					return invocation;
+				}
+				LOG.trace("Defining function {}", name);
+				return createFunctionDefinition(name, script) + "\r\n" + invocation;
+			}, invocation, getRetryPolicy().isIdempotent(name, arguments), null, metrics.countingWriter(stdout), metrics.countingWriter(stderr), metrics);
+			// Definition is remembered only after success. In case of failure
+			// we cannot be sure whether the function was defined.
+			definedFunctions.put(name, script);
+			metrics.markEnd(true);
+		} finally {
+			lastLoopActivity = System.currentTimeMillis();
+			loopLock.unlock();
+			finishCommandMetrics(metrics);
+		}
+	}
+	
+	private void checkCommandAbort(long deadline) throws PowerHellExecutionException {
+		PowerHellExecutionException abortReason = getCommandAbortReason(deadline);
+		if (abortReason == null) {
+			return;
+		}
+		// There is no way to stop the command and keep the loop. Terminate the loop,
+		// but keep the client. The loop will be re-started for next command.
+		LOG.warn("Aborting command: {}, terminating the loop", abortReason.getMessage());
+		isLoopRunning = false;
+		releaseLoopCommand();
+		throw abortReason;
+	}
+	
+	/**
+	 * Sends a chunk of input for each input request of the command.
+	 * The command gets end of input if there is no (more) input.
+	 */
+	private void sendInput(int inputRequests, Reader stdin, PowerHellCommandMetrics metrics) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		for (int i = 0; i < inputRequests; i++) {
+			String chunk = createInputChunk(stdin, prompt);
+			logData("I>", chunk);
+			try {
+				command.send(chunk);
+			} catch (Fault | WebServiceException e) {
+				// Command cannot continue with part of the input missing. And it cannot be re-tried.
+				LOG.error("WinRM fault while sending command input: {}", e.getMessage(), e);
+				isLoopRunning = false;
+				disconnectClient();
+				if (e instanceof Fault) {
+					processFault("Sending command input failed", (Fault)e);
+				}
+				throw e;
+			}
+			metrics.markInputSent(chunk);
+		}
+	}
+	
+	/**
+	 * The loop cannot be used after parse error, as we do not know where the output
+	 * of the command ends. Terminate the loop, it will be re-started for next command.
+	 */
+	private void parseLoopOutput(PowerHellLoopParser parser, String out) throws PowerHellExecutionException {
+		try {
+			parser.parse(out);
+		} catch (PowerHellExecutionException e) {
+			LOG.error("Error processing output of the loop: {}, terminating the loop", e.getMessage());
+			isLoopRunning = false;
+			releaseLoopCommand();
+			throw e;
+		}
+	}
+	
+	private void releaseLoopCommand() {
+		if (command == null) {
+			return;
+		}
+		try {
+			command.release();
+		} catch (RuntimeException e) {
+			LOG.debug("Error releasing loop command: {}", e.getMessage(), e);
+		}
+	}
+	
+	private PowerHellLoopParser createLoopParser(PowerHellLoopParser.Handler handler) {
+		if (loopProtocol == LoopProtocol.FRAMED) {
+			return new PowerHellFramedLoopParser(handler);
+		} else {
+			return new PowerHellPromptLoopParser(prompt, handler);
+		}
+	}
+	
+	/**
+	 * Sends data to the loop. If sending fails with a fault, the loop is re-started
+	 * and the data are sent again, as far as retry policy allows.
+	 */
+	private String sendToLoop(Supplier<String> txSupplier, boolean idempotent) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+		PowerHellRetryPolicy retryPolicy = getRetryPolicy();
+		int attempt = 1;
+		
+		while (true) {
+			
+			if (!isLoopRunning) {
+				startMainLoop();
+			}
+			
+			String tx = txSupplier.get();
+			logData("I>", tx);
+			
+			try {
+				
+				command.send(tx);
+				
+				// success
+				return tx;
+				
+			} catch (Fault | WebServiceException e) {
+				PowerHellRetryPolicy.FaultType faultType = retryPolicy.classify(e);
+				LOG.error("WinRM fault {} (attempt {}/{}): {}", faultType, attempt, retryPolicy.getMaxAttempts(), e.getMessage(), e);
+				
+				// The loop (or the whole shell) is most likely gone. Start fresh next time.
+				isLoopRunning = false;
+				disconnectClient();
+				
+				if (!retryPolicy.shouldRetry(faultType, attempt, idempotent)) {
+					if (e instanceof Fault) {
+						processFault("Sending command failed", (Fault)e);
+					}
+					throw e;
+				}
+				fireFaultRetry(e);
+				waitBeforeRetry(attempt);
+				attempt++;
+				connectClient();
+				fireReconnect();
+			}
+		}
+	}
+	
 	@Override
 	public int disconnect() {
+		stopKeepAlive();
+		loopLock.lock();
+		try {
+			return disconnectLoop();
+		} finally {
+			loopLock.unlock();
+		}
+	}
+	
+	/**
+	 * Exit handshake is attempted only if the loop is running. The client is
+	 * disconnected in any case, even if the handshake fails.
+	 */
+	private int disconnectLoop() {
+		Integer exitCode = null;
+		try {
+			if (isLoopRunning && command != null) {
+				exitCode = exitLoop();
+			} else {
+				LOG.debug("Disconnecting, loop is not running");
+			}
+		} catch (Fault | WebServiceException e) {
+			LOG.warn("WinRM fault while exiting the loop: {}", e.getMessage(), e);
+		} finally {
+			isLoopRunning = false;
+			releaseLoopCommand();
+			command = null;
+			super.disconnect();
+		}
+		return exitCode == null ? -1 : exitCode;
+	}
+	
+	private Integer exitLoop() {
 		LOG.debug("Disconnecting, sending exit command");
 		
 		String tx = prompt + " exit\r\n";
 		logData("I>", tx);
 		
 		command.send(tx);
+		long deadline = getCommandDeadline();
 	
-		Integer exitCode = null;
 		while (true) {
-			exitCode = command.receive();
+			if (getCommandAbortReason(deadline) != null) {
+				LOG.warn("Loop did not exit in time, terminating it");
+				return null;
+			}
+			Integer exitCode = command.receive();
 			
 			String out = command.getLastOut();
     		String err = command.getLastErr();
@@ -288,36 +741,88 @@ public class PowerHellWinRmLoopImpl extends AbstractPowerHellWinRmImpl {
 
     		if (exitCode != null) {    			
     			LOG.debug("Powershell exit code: {}", exitCode);
-    			break;
+    			return exitCode;
     		}
 		}
+	}
+	
+	/**
+	 * Passes output of the command to stdout (if any) until the end of the command.
+	 */
+	private class CommandOutputHandler implements PowerHellLoopParser.Handler {
+		
+		private final Writer stdout;
+		private boolean ended = false;
+		private String errorMessage;
+		private int inputRequests = 0;
+		
+		CommandOutputHandler(Writer stdout) {
+			this.stdout = stdout;
+		}
+
+		@Override
+		public void output(String data) throws PowerHellExecutionException {
+			if (!ended && stdout != null) {
+				writeOutput(stdout, data);
+			}
+		}
+
+		@Override
+		public void end(String errorMessage) {
+			if (!ended) {
+				this.ended = true;
+				this.errorMessage = errorMessage;
+			}
+		}
+
+		@Override
+		public void inputRequest() {
+			if (!ended) {
+				inputRequests++;
+			}
+		}
 		
-		command.release();
+		int takeInputRequests() {
+			int requests = inputRequests;
+			inputRequests = 0;
+			return requests;
+		}
+	}
+	
+	private static class BatchOutputHandler implements PowerHellLoopParser.Handler {
+		
+		private final List<PowerHellCommandResult> results;
+		private final StringBuilder currentStdOut = new StringBuilder();
+		private final StringBuilder currentStdErr = new StringBuilder();
+		private int inputRequests = 0;
 		
-		super.disconnect();
+		BatchOutputHandler(List<PowerHellCommandResult> results) {
+			this.results = results;
+		}
+
+		@Override
+		public void output(String data) {
+			currentStdOut.append(data);
+		}
+
+		@Override
+		public void end(String errorMessage) {
+			LOG.trace("End of command {} in batch, msg: {}", results.size()+1, errorMessage);
+			results.add(new PowerHellCommandResult(currentStdOut.toString(), currentStdErr.toString(), errorMessage));
+			currentStdOut.setLength(0);
+			currentStdErr.setLength(0);
+		}
+
+		@Override
+		public void inputRequest() {
+			inputRequests++;
+		}
 		
-		return exitCode;
-	}
-	
-	private String createScript(String initScriptlet) {
-		StringBuilder sb = new StringBuilder();
-		if (initScriptlet != null) {
-			sb.append(initScriptlet);
-			sb.append("\n");
-		}
-		sb.append("write-host '").append(prompt).append("'\r\n");
-		sb.append("while($true) {\r\n");
-		sb.append("  $powerhellCommand = ''\r\n");
-		sb.append("  while($powerhellLine = [Console]::In.ReadLine()) {\r\n");
-		sb.append("    if($powerhellLine -eq \"").append(prompt).append(" exit\") { exit }\r\n");
-		sb.append("    if($powerhellLine -eq \"").append(prompt).append("\") { break }\r\n");
-		sb.append("    $powerhellCommand = $powerhellCommand + $powerhellLine + \"`n\"\r\n");
-		sb.append("  }\r\n");
-		sb.append("  Invoke-Expression -ErrorVariable powerhellError $powerhellCommand\r\n");
-		sb.append("  write-host '").append(prompt).append("'$powerhellError\r\n");
-		sb.append("  $powerhellError = \"\"\r\n");
-		sb.append("}\r\n");
-		return sb.toString();
+		int takeInputRequests() {
+			int requests = inputRequests;
+			inputRequests = 0;
+			return requests;
+		}
 	}
 	
 }
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+/**
+ * Loop parser handler that records everything as a single transcript,
+ * e.g. "hello\n[END]output[END:error message][INPUT]".
+ *
+ * @author semancik
+ */
+class RecordingLoopHandler implements PowerHellLoopParser.Handler {
+
+	private final StringBuilder transcript = new StringBuilder();
+
+	@Override
+	public void output(String data) {
+		transcript.append(data);
+	}
+
+	@Override
+	public void end(String errorMessage) {
+		if (errorMessage == null) {
+			transcript.append("[END]");
+		} else {
+			transcript.append("[END:").append(errorMessage).append("]");
+		}
+	}
+
+	@Override
+	public void inputRequest() {
+		transcript.append("[INPUT]");
+	}
+
+	String getTranscript() {
+		return transcript.toString();
+	}
+}
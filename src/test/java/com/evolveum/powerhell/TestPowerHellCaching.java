@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.evolveum.powerhell.PowerHellFakeTransport.Response;
+
+/**
+ * Tests of {@link PowerHellCachingImpl} decorating {@link PowerHellWinRmExecImpl} with {@link PowerHellFakeTransport}.
+ *
+ * @author semancik
+ */
+public class TestPowerHellCaching {
+
+	private PowerHellFakeTransport transport;
+	private PowerHellCachingImpl powerHell;
+	private final AtomicReference<String> data = new AtomicReference<>();
+	private final AtomicInteger reads = new AtomicInteger();
+	private volatile CountDownLatch readStarted;
+	private volatile CountDownLatch readReleased;
+
+	@AfterMethod
+	public void tearDown() {
+		if (powerHell != null) {
+			powerHell.disconnect();
+			powerHell = null;
+		}
+	}
+
+	@Test
+	public void test010Cached() throws Exception {
+		connect();
+		data.set("one");
+
+		assertEquals(powerHell.runCommand("Get-Data", null), "one\r\n");
+		data.set("two");
+		assertEquals(powerHell.runCommand("Get-Data", null), "one\r\n");
+
+		assertEquals(reads.get(), 1);
+		assertEquals(powerHell.getHits(), 1);
+
+		powerHell.invalidate("Get-Data", null);
+		assertEquals(powerHell.runCommand("Get-Data", null), "two\r\n");
+	}
+
+	@Test
+	public void test020InvalidateDuringRead() throws Exception {
+		connect();
+		data.set("old");
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch released = new CountDownLatch(1);
+		readReleased = released;
+		readStarted = started;
+
+		CompletableFuture<String> staleRead = CompletableFuture.supplyAsync(() -> {
+			try {
+				return powerHell.runCommand("Get-Data", null);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS), "Read did not start");
+
+		// Data are changed while the read is running
+		data.set("new");
+		powerHell.invalidateAll();
+		released.countDown();
+		assertEquals(staleRead.get(5, TimeUnit.SECONDS), "old\r\n");
+
+		assertEquals(powerHell.getSize(), 0, "Stale output was stored");
+		assertEquals(powerHell.runCommand("Get-Data", null), "new\r\n");
+	}
+
+	private void connect() throws Exception {
+		transport = new PowerHellFakeTransport();
+		transport.setResponder(script -> {
+			if (!script.trim().equals("Get-Data")) {
+				return TestPowerHellWinRmLoop.respond(script);
+			}
+			reads.incrementAndGet();
+			String value = data.get();
+			CountDownLatch started = readStarted;
+			if (started != null) {
+				readStarted = null;
+				started.countDown();
+				try {
+					readReleased.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return Response.output(value + "\r\n");
+		});
+		PowerHellWinRmExecImpl exec = new PowerHellWinRmExecImpl();
+		exec.setTransportFactory(ph -> transport);
+		powerHell = new PowerHellCachingImpl(exec);
+		powerHell.setCacheablePredicate((command, arguments) -> command.startsWith("Get-"));
+		powerHell.connect();
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.evolveum.powerhell.PowerHellCircuitBreaker.State;
+
+/**
+ * Tests of {@link PowerHellCircuitBreaker} and {@link PowerHellCircuitBreakingImpl}.
+ *
+ * @author semancik
+ */
+public class TestPowerHellCircuitBreaker {
+
+	private static final long OPEN_DURATION = 100L;
+
+	private PowerHellCircuitBreakingImpl powerHell;
+
+	@AfterMethod
+	public void tearDown() {
+		if (powerHell != null) {
+			powerHell.disconnect();
+			powerHell = null;
+		}
+	}
+
+	@Test
+	public void test010Open() throws Exception {
+		PowerHellCircuitBreaker breaker = createBreaker();
+
+		reportFailures(breaker, 2);
+		assertEquals(breaker.getState(), State.CLOSED);
+		reportFailures(breaker, 1);
+		assertEquals(breaker.getState(), State.OPEN);
+		assertRejected(breaker);
+	}
+
+	@Test
+	public void test020ProbeClosesBreaker() throws Exception {
+		PowerHellCircuitBreaker breaker = createBreaker();
+		reportFailures(breaker, 3);
+
+		Thread.sleep(OPEN_DURATION * 2);
+		long probe = breaker.acquirePermission();
+		assertEquals(breaker.getState(), State.HALF_OPEN);
+		assertRejected(breaker);
+		breaker.onSuccess(probe);
+
+		assertEquals(breaker.getState(), State.CLOSED);
+	}
+
+	@Test
+	public void test030FailedProbeOpensBreaker() throws Exception {
+		PowerHellCircuitBreaker breaker = createBreaker();
+		reportFailures(breaker, 3);
+
+		Thread.sleep(OPEN_DURATION * 2);
+		long probe = breaker.acquirePermission();
+		breaker.onFailure(probe, new PowerHellCommunicationException("probe failed"));
+
+		assertEquals(breaker.getState(), State.OPEN);
+	}
+
+	/**
+	 * Commands that started before the breaker opened must not close it when they finish.
+	 */
+	@Test
+	public void test040StragglerSuccess() throws Exception {
+		PowerHellCircuitBreaker breaker = createBreaker();
+		long straggler1 = breaker.acquirePermission();
+		long straggler2 = breaker.acquirePermission();
+		reportFailures(breaker, 3);
+
+		breaker.onSuccess(straggler1);
+		assertEquals(breaker.getState(), State.OPEN);
+
+		Thread.sleep(OPEN_DURATION * 2);
+		long probe = breaker.acquirePermission();
+		breaker.onSuccess(straggler2);
+		assertEquals(breaker.getState(), State.HALF_OPEN);
+		breaker.onFailure(straggler2, new PowerHellCommunicationException("late failure"));
+		assertEquals(breaker.getState(), State.HALF_OPEN);
+
+		breaker.onSuccess(probe);
+		assertEquals(breaker.getState(), State.CLOSED);
+	}
+
+	/**
+	 * Error reported by the command means that the endpoint is alive. But command that
+	 * did not finish in time did not get any response, that is a failure.
+	 */
+	@Test
+	public void test050Timeout() throws Exception {
+		PowerHellFakeTransport transport = new PowerHellFakeTransport();
+		transport.setResponder(TestPowerHellWinRmLoop::respond);
+		PowerHellWinRmExecImpl exec = new PowerHellWinRmExecImpl();
+		exec.setTransportFactory(ph -> transport);
+		exec.setCommandTimeout(200L);
+		PowerHellCircuitBreaker breaker = createBreaker();
+		breaker.setFailureThreshold(1);
+		powerHell = new PowerHellCircuitBreakingImpl(exec, breaker);
+		powerHell.connect();
+
+		try {
+			powerHell.runCommand("Exit 3", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			// expected
+		}
+		assertEquals(breaker.getState(), State.CLOSED);
+
+		try {
+			powerHell.runCommand("Sleep 5000", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertEquals(e.isAborted(), true);
+		}
+		assertEquals(breaker.getState(), State.OPEN);
+	}
+
+	/**
+	 * Interrupted command says nothing about the endpoint, the caller has given up.
+	 */
+	@Test
+	public void test060InterruptionIgnored() throws Exception {
+		PowerHellFakeTransport transport = new PowerHellFakeTransport();
+		transport.setResponder(TestPowerHellWinRmLoop::respond);
+		PowerHellWinRmExecImpl exec = new PowerHellWinRmExecImpl();
+		exec.setTransportFactory(ph -> transport);
+		PowerHellCircuitBreaker breaker = createBreaker();
+		breaker.setFailureThreshold(1);
+		powerHell = new PowerHellCircuitBreakingImpl(exec, breaker);
+		powerHell.connect();
+
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread thread = new Thread(() -> {
+			try {
+				powerHell.runCommand("Sleep 5000", null);
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		thread.start();
+		long waitUntil = System.currentTimeMillis() + 5000;
+		while (transport.getActiveCommands() == 0 && System.currentTimeMillis() < waitUntil) {
+			Thread.sleep(10);
+		}
+		thread.interrupt();
+		thread.join(5000);
+
+		assertTrue(failure.get() instanceof PowerHellExecutionException, "Unexpected failure: " + failure.get());
+		assertEquals(breaker.getState(), State.CLOSED);
+	}
+
+	@Test
+	public void test070IgnoredProbeFreesPlace() throws Exception {
+		PowerHellCircuitBreaker breaker = createBreaker();
+		reportFailures(breaker, 3);
+		Thread.sleep(OPEN_DURATION * 2);
+
+		long probe = breaker.acquirePermission();
+		assertRejected(breaker);
+		breaker.onIgnored(probe);
+		assertEquals(breaker.getState(), State.HALF_OPEN);
+
+		breaker.onSuccess(breaker.acquirePermission());
+		assertEquals(breaker.getState(), State.CLOSED);
+	}
+
+	private PowerHellCircuitBreaker createBreaker() {
+		PowerHellCircuitBreaker breaker = new PowerHellCircuitBreaker();
+		breaker.setName("test");
+		breaker.setFailureThreshold(3);
+		breaker.setOpenDuration(OPEN_DURATION);
+		return breaker;
+	}
+
+	private void reportFailures(PowerHellCircuitBreaker breaker, int failures) throws Exception {
+		for (int i = 0; i < failures; i++) {
+			long permit = breaker.acquirePermission();
+			breaker.onFailure(permit, new PowerHellCommunicationException("Connection refused"));
+		}
+	}
+
+	private void assertRejected(PowerHellCircuitBreaker breaker) {
+		try {
+			breaker.acquirePermission();
+			fail("Breaker did not reject the command");
+		} catch (PowerHellCommunicationException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.evolveum.powerhell.PowerHellFakeTransport.Response;
+
+/**
+ * Tests of {@link PowerHellCoalescingImpl} decorating {@link PowerHellWinRmExecImpl} with {@link PowerHellFakeTransport}.
+ *
+ * @author semancik
+ */
+public class TestPowerHellCoalescing {
+
+	private static final long SLOW_READ_DELAY = 1000L;
+	// Time for the second request to join the running execution
+	private static final long JOIN_DELAY = 300L;
+
+	private PowerHellFakeTransport transport;
+	private PowerHellCoalescingImpl powerHell;
+	private final AtomicInteger reads = new AtomicInteger();
+
+	@AfterMethod
+	public void tearDown() {
+		if (powerHell != null) {
+			powerHell.disconnect();
+			powerHell = null;
+		}
+	}
+
+	@Test
+	public void test010Coalesced() throws Exception {
+		connect();
+
+		CompletableFuture<String> first = runInThread("Get-Data");
+		Thread.sleep(JOIN_DELAY);
+		CompletableFuture<String> second = runInThread("Get-Data");
+
+		assertEquals(first.get(5, TimeUnit.SECONDS), "data\r\n");
+		assertEquals(second.get(5, TimeUnit.SECONDS), "data\r\n");
+		assertEquals(reads.get(), 1);
+		assertEquals(powerHell.getCoalescedCount(), 1);
+	}
+
+	@Test
+	public void test020FailureShared() throws Exception {
+		connect();
+
+		CompletableFuture<String> first = runInThread("Get-Failure");
+		Thread.sleep(JOIN_DELAY);
+		CompletableFuture<String> second = runInThread("Get-Failure");
+
+		PowerHellExecutionException firstException = assertFailed(first);
+		PowerHellExecutionException secondException = assertFailed(second);
+		assertEquals(reads.get(), 1);
+		// Waiting request gets its own copy of the exception
+		assertTrue(secondException != firstException, "Exception instance is shared");
+		assertTrue(secondException.getCause() == firstException, "Unexpected cause " + secondException.getCause());
+		assertEquals(secondException.getExitCode(), firstException.getExitCode());
+		assertEquals(secondException.getExitCode(), Integer.valueOf(1));
+	}
+
+	@Test
+	public void test025AsyncFailureShared() throws Exception {
+		connect();
+
+		CompletableFuture<String> first = powerHell.runCommandAsync("Get-Failure", null);
+		Thread.sleep(JOIN_DELAY);
+		CompletableFuture<String> second = powerHell.runCommandAsync("Get-Failure", null);
+
+		PowerHellExecutionException firstException = assertFailed(first);
+		PowerHellExecutionException secondException = assertFailed(second);
+		assertEquals(reads.get(), 1);
+		assertTrue(secondException != firstException, "Exception instance is shared");
+		assertTrue(secondException.getCause() == firstException, "Unexpected cause " + secondException.getCause());
+		assertEquals(secondException.getExitCode(), Integer.valueOf(1));
+	}
+
+	@Test
+	public void test030InterruptNotShared() throws Exception {
+		connect();
+
+		CompletableFuture<String> first = new CompletableFuture<>();
+		Thread leader = new Thread(() -> {
+			try {
+				first.complete(powerHell.runCommand("Get-Data", null));
+			} catch (Throwable e) {
+				first.completeExceptionally(e);
+			}
+		});
+		leader.start();
+		Thread.sleep(JOIN_DELAY);
+		CompletableFuture<String> second = runInThread("Get-Data");
+		Thread.sleep(JOIN_DELAY);
+		leader.interrupt();
+
+		assertFailed(first);
+		assertEquals(second.get(5, TimeUnit.SECONDS), "data\r\n");
+		assertEquals(reads.get(), 2, "Command was not executed again");
+	}
+
+	@Test
+	public void test040CancelNotShared() throws Exception {
+		connect();
+
+		CompletableFuture<String> first = powerHell.runCommandAsync("Get-Data", null);
+		Thread.sleep(JOIN_DELAY);
+		CompletableFuture<String> second = powerHell.runCommandAsync("Get-Data", null);
+		first.cancel(true);
+
+		assertEquals(second.get(5, TimeUnit.SECONDS), "data\r\n");
+		assertEquals(reads.get(), 2, "Command was not executed again");
+	}
+
+	private CompletableFuture<String> runInThread(String command) {
+		CompletableFuture<String> future = new CompletableFuture<>();
+		new Thread(() -> {
+			try {
+				future.complete(powerHell.runCommand(command, null));
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}).start();
+		return future;
+	}
+
+	private PowerHellExecutionException assertFailed(CompletableFuture<String> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Unexpected success");
+			return null;
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof PowerHellExecutionException, "Unexpected exception " + e.getCause());
+			return (PowerHellExecutionException) e.getCause();
+		}
+	}
+
+	private void connect() throws Exception {
+		transport = new PowerHellFakeTransport();
+		transport.setResponder(script -> {
+			String command = script.trim();
+			if (!command.startsWith("Get-")) {
+				return TestPowerHellWinRmLoop.respond(script);
+			}
+			// Only the first read is slow
+			long delay = reads.incrementAndGet() == 1 ? SLOW_READ_DELAY : 0L;
+			if (command.equals("Get-Failure")) {
+				return Response.exit(1).delay(delay);
+			}
+			return Response.output("data\r\n").delay(delay);
+		});
+		reads.set(0);
+		PowerHellWinRmExecImpl exec = new PowerHellWinRmExecImpl();
+		exec.setTransportFactory(ph -> transport);
+		powerHell = new PowerHellCoalescingImpl(exec);
+		powerHell.setCoalescablePredicate((command, arguments) -> command.startsWith("Get-"));
+		powerHell.connect();
+	}
+}
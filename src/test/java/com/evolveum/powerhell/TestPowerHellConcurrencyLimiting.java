@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests of {@link PowerHellConcurrencyLimitingImpl} with simulated endpoint.
+ *
+ * @author semancik
+ */
+public class TestPowerHellConcurrencyLimiting {
+
+	private static final String QUOTA_MESSAGE = "The WS-Management service cannot process the request. This user has exceeded the maximum number of concurrent operations.";
+	private static final int ENDPOINT_CAPACITY = 5;
+	private static final int THREADS = 20;
+	private static final int COMMANDS_PER_THREAD = 50;
+
+	/**
+	 * Endpoint that fails with quota fault above ENDPOINT_CAPACITY concurrent commands.
+	 * The limit has to settle near the capacity and most of the commands have to succeed.
+	 */
+	@Test
+	public void test010SettleAtCapacity() throws Exception {
+		SimulatedEndpoint endpoint = new SimulatedEndpoint(ENDPOINT_CAPACITY, QUOTA_MESSAGE);
+		PowerHellConcurrencyLimiter limiter = new PowerHellConcurrencyLimiter();
+		limiter.setName("simulated");
+		limiter.setInitialLimit(16);
+		PowerHellConcurrencyLimitingImpl powerHell = new PowerHellConcurrencyLimitingImpl(endpoint, limiter);
+
+		AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < COMMANDS_PER_THREAD; j++) {
+					try {
+						powerHell.runCommand("Get-Something", null);
+					} catch (PowerHellCommunicationException e) {
+						failures.incrementAndGet();
+					} catch (PowerHellException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(limiter.getLimit() <= ENDPOINT_CAPACITY + 1, "Limit did not settle: " + limiter);
+		assertTrue(limiter.getLimit() >= 2, "Limit collapsed: " + limiter);
+		assertTrue(failures.get() < THREADS * COMMANDS_PER_THREAD / 10, "Too many failures: " + failures.get());
+		assertEquals(limiter.getInFlight(), 0);
+	}
+
+	@Test
+	public void test020TimeoutCutsLimit() throws Exception {
+		PowerHellConcurrencyLimiter limiter = new PowerHellConcurrencyLimiter();
+		PowerHellConcurrencyLimitingImpl powerHell = new PowerHellConcurrencyLimitingImpl(new SimulatedEndpoint(0, "Read timed out"), limiter);
+
+		runFailing(powerHell);
+
+		assertEquals(limiter.getLimit(), 2);
+	}
+
+	/**
+	 * Authentication failure is not caused by load, it must not cut the limit.
+	 */
+	@Test
+	public void test030AuthenticationFailureKeepsLimit() throws Exception {
+		PowerHellConcurrencyLimiter limiter = new PowerHellConcurrencyLimiter();
+		PowerHellConcurrencyLimitingImpl powerHell = new PowerHellConcurrencyLimitingImpl(new SimulatedEndpoint(0, "Access is denied."), limiter);
+
+		runFailing(powerHell);
+
+		assertEquals(limiter.getLimit(), 4);
+	}
+
+	/**
+	 * Simulated endpoint does not support input, the default of {@link PowerHell} interface applies.
+	 */
+	@Test
+	public void test040InputNotSupported() throws Exception {
+		PowerHellConcurrencyLimiter limiter = new PowerHellConcurrencyLimiter();
+		PowerHellConcurrencyLimitingImpl powerHell = new PowerHellConcurrencyLimitingImpl(new SimulatedEndpoint(ENDPOINT_CAPACITY, QUOTA_MESSAGE), limiter);
+		int limit = limiter.getLimit();
+
+		try {
+			powerHell.runCommand("Get-Something", null, new StringReader("input"), new StringWriter(), new StringWriter());
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			// expected
+		}
+
+		assertEquals(limiter.getLimit(), limit);
+		StringWriter stdout = new StringWriter();
+		powerHell.runCommand("Get-Something", null, null, stdout, new StringWriter());
+		assertEquals(stdout.toString(), "ok");
+	}
+
+	private void runFailing(PowerHell powerHell) throws Exception {
+		try {
+			powerHell.runCommand("Get-Something", null);
+			fail("Unexpected success");
+		} catch (PowerHellCommunicationException e) {
+			// expected
+		}
+	}
+
+	private static class SimulatedEndpoint implements PowerHell {
+
+		private final int capacity;
+		private final String faultMessage;
+		private final AtomicInteger active = new AtomicInteger();
+
+		SimulatedEndpoint(int capacity, String faultMessage) {
+			this.capacity = capacity;
+			this.faultMessage = faultMessage;
+		}
+
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellCommunicationException {
+			try {
+				if (active.incrementAndGet() > capacity) {
+					throw new PowerHellCommunicationException(faultMessage);
+				}
+				Thread.sleep(2L);
+				return "ok";
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new PowerHellExecutionException("Interrupted", e);
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+
+		@Override
+		public int disconnect() {
+			return 0;
+		}
+
+		@Override
+		public String getImplementationName() {
+			return "Simulated endpoint";
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * @author semancik
+ */
+public class TestPowerHellFramedLoopParser {
+
+	@Test
+	public void test010Frames() throws Exception {
+		assertParsed("O6:hello\nZ0:", "hello\n[END]");
+		assertParsed("O2:a\nO2:b\nZ5:error", "a\nb\n[END:error]");
+		assertParsed("Z0:O2:x\nZ0:", "[END]x\n[END]");
+	}
+
+	@Test
+	public void test020InputRequest() throws Exception {
+		assertParsed("O2:a\nI0:I0:Z0:", "a\n[INPUT][INPUT][END]");
+	}
+
+	@Test
+	public void test030PayloadWithFrameCharacters() throws Exception {
+		assertParsed("O9:O5:xZ0:I\nZ0:", "O5:xZ0:I\n[END]");
+	}
+
+	@Test
+	public void test040LineEndsBetweenFramesIgnored() throws Exception {
+		assertParsed("O2:a\n\r\nZ0:", "a\n[END]");
+	}
+
+	@Test
+	public void test050UnframedOutput() throws Exception {
+		assertParsed("hello world\nZ0:", "hello world\n[END]");
+		assertParsed("O2:a\nunframed\nZ0:", "a\nunframed\n[END]");
+	}
+
+	@Test
+	public void test060UnframedOutputWithFrameCharacters() throws Exception {
+		// Frame characters inside unframed line are not frame headers
+		assertParsed("hello ZORRO I0: O2:\nZ0:", "hello ZORRO I0: O2:\n[END]");
+	}
+
+	@Test
+	public void test070UnframedOutputLooksLikeHeader() throws Exception {
+		// Unframed line that starts with frame character
+		assertParsed("OK then\nZ0:", "OK then\n[END]");
+		assertParsed("Output: 42\nZ0:", "Output: 42\n[END]");
+		assertParsed("Zero\nO2:a\nZ0:", "Zero\na\n[END]");
+		assertParsed("I12\nZ0:", "I12\n[END]");
+		assertParsed("O1234567890123:x\nZ0:", "O1234567890123:x\n[END]");
+	}
+
+	@Test
+	public void test080UnframedOutputWithoutLineEnd() throws Exception {
+		// Next frame is not recognized until the end of line
+		assertParsed("xO2:a\nZ0:", "xO2:a\n[END]");
+	}
+
+	@Test
+	public void test090Empty() throws Exception {
+		RecordingLoopHandler handler = new RecordingLoopHandler();
+		PowerHellFramedLoopParser parser = new PowerHellFramedLoopParser(handler);
+		parser.parse(null);
+		parser.parse("");
+		assertEquals(handler.getTranscript(), "");
+	}
+
+	/**
+	 * Parses the data in one piece, split into two chunks at every position and char by char.
+	 * The result must always be the same.
+	 */
+	private void assertParsed(String data, String expectedTranscript) throws Exception {
+		assertEquals(parse(data), expectedTranscript, "Whole data");
+		for (int split = 1; split < data.length(); split++) {
+			assertEquals(parse(data.substring(0, split), data.substring(split)), expectedTranscript, "Split at " + split);
+		}
+		String[] chars = new String[data.length()];
+		for (int i = 0; i < data.length(); i++) {
+			chars[i] = data.substring(i, i + 1);
+		}
+		assertEquals(parse(chars), expectedTranscript, "Char by char");
+	}
+
+	private String parse(String... chunks) throws Exception {
+		RecordingLoopHandler handler = new RecordingLoopHandler();
+		PowerHellFramedLoopParser parser = new PowerHellFramedLoopParser(handler);
+		for (String chunk : chunks) {
+			parser.parse(chunk);
+		}
+		return handler.getTranscript();
+	}
+}
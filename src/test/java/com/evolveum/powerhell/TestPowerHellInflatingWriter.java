@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.testng.annotations.Test;
+
+/**
+ * Round-trip tests of {@link PowerHellInflatingWriter}. Compressed output is created
+ * the same way as the compressed output script does it: raw deflate stream of UTF-8 text,
+ * emitted in base64-encoded chunks (each with its own padding), one chunk per line.
+ *
+ * @author semancik
+ */
+public class TestPowerHellInflatingWriter {
+
+	// Two-byte, three-byte and four-byte (surrogate pair) UTF-8 sequences
+	private static final String TEXT = "Hello \u017Dlu\u0165ou\u010Dk\u00FD k\u016F\u0148 \u20AC \uD83D\uDE00 world\r\n";
+
+	@Test
+	public void test010Whole() throws Exception {
+		assertRoundTrip(TEXT, 1000);
+	}
+
+	/**
+	 * Chunk sizes that are not multiples of three produce padding in the middle of the stream.
+	 */
+	@Test
+	public void test020ChunkPadding() throws Exception {
+		for (int chunkSize = 1; chunkSize <= 7; chunkSize++) {
+			assertRoundTrip(TEXT, chunkSize);
+		}
+	}
+
+	/**
+	 * Compressed output is written in pieces of every size, so it is split at every
+	 * position of base64 quads and chunk separators.
+	 */
+	@Test
+	public void test030WriteSplit() throws Exception {
+		String compressed = compress(TEXT, 5);
+		for (int pieceSize = 1; pieceSize <= compressed.length(); pieceSize++) {
+			assertEquals(inflate(compressed, pieceSize), TEXT, "Piece size " + pieceSize);
+		}
+	}
+
+	/**
+	 * Multi-byte characters are split between inflated blocks. Stored (not compressed)
+	 * deflate blocks keep the byte positions, therefore small chunks split the characters
+	 * at every possible position.
+	 */
+	@Test
+	public void test040SplitUtf8() throws Exception {
+		String compressed = compress(TEXT, 1, Deflater.NO_COMPRESSION);
+		for (int pieceSize = 1; pieceSize <= 8; pieceSize++) {
+			assertEquals(inflate(compressed, pieceSize), TEXT, "Piece size " + pieceSize);
+		}
+	}
+
+	@Test
+	public void test050Large() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			sb.append(i).append(' ').append(TEXT);
+		}
+		String text = sb.toString();
+		assertRoundTrip(text, 49152);
+		assertRoundTrip(text, 1001);
+	}
+
+	@Test
+	public void test060Empty() throws Exception {
+		assertEquals(inflate("", 1), "");
+		assertRoundTrip("", 10);
+	}
+
+	@Test
+	public void test070Incomplete() throws Exception {
+		String compressed = compress(TEXT, 1000);
+		PowerHellInflatingWriter writer = new PowerHellInflatingWriter(new StringWriter());
+		writer.write(compressed.substring(0, compressed.length() / 2));
+		try {
+			writer.close();
+			fail("Unexpected success");
+		} catch (IOException e) {
+			// expected
+		}
+		// Second close does nothing, inflater was already released
+		writer.close();
+	}
+
+	private void assertRoundTrip(String text, int chunkSize) throws Exception {
+		assertEquals(inflate(compress(text, chunkSize), Integer.MAX_VALUE), text, "Chunk size " + chunkSize);
+	}
+
+	private String inflate(String compressed, int pieceSize) throws IOException {
+		StringWriter output = new StringWriter();
+		PowerHellInflatingWriter writer = new PowerHellInflatingWriter(output);
+		for (int offset = 0; offset < compressed.length(); offset += pieceSize) {
+			writer.write(compressed, offset, Math.min(pieceSize, compressed.length() - offset));
+		}
+		writer.close();
+		return output.toString();
+	}
+
+	private String compress(String text, int chunkSize) {
+		return compress(text, chunkSize, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	private String compress(String text, int chunkSize, int level) {
+		Deflater deflater = new Deflater(level, true);
+		deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+		deflater.finish();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		while (!deflater.finished()) {
+			int count = deflater.deflate(buffer);
+			bytes.write(buffer, 0, count);
+		}
+		deflater.end();
+		byte[] deflated = bytes.toByteArray();
+
+		List<String> chunks = new ArrayList<>();
+		for (int offset = 0; offset < deflated.length; offset += chunkSize) {
+			byte[] chunk = Arrays.copyOfRange(deflated, offset, Math.min(deflated.length, offset + chunkSize));
+			chunks.add(Base64.getEncoder().encodeToString(chunk));
+		}
+		return String.join("\r\n", chunks) + "\r\n";
+	}
+}
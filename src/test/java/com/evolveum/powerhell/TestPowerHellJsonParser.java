@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * @author semancik
+ */
+public class TestPowerHellJsonParser {
+
+	@Test
+	public void test010Primitives() {
+		assertEquals(PowerHellJsonParser.parse("\"foo\""), "foo");
+		assertEquals(PowerHellJsonParser.parse("42"), 42L);
+		assertEquals(PowerHellJsonParser.parse("-7"), -7L);
+		assertEquals(PowerHellJsonParser.parse("1.5"), 1.5d);
+		assertEquals(PowerHellJsonParser.parse("1e3"), 1000d);
+		assertEquals(PowerHellJsonParser.parse("true"), Boolean.TRUE);
+		assertEquals(PowerHellJsonParser.parse("false"), Boolean.FALSE);
+		assertNull(PowerHellJsonParser.parse("null"));
+		assertEquals(PowerHellJsonParser.parse("  \"padded\"  "), "padded");
+	}
+
+	@Test
+	public void test020BigNumber() {
+		assertEquals(PowerHellJsonParser.parse("12345678901234567890"), 12345678901234567890d);
+	}
+
+	@Test
+	public void test030StringEscapes() {
+		assertEquals(PowerHellJsonParser.parse("\"a\\\"b\\\\c\\/d\\n\\r\\t\\b\\f\""), "a\"b\\c/d\n\r\t\b\f");
+		assertEquals(PowerHellJsonParser.parse("\"\\u010d\\u00E1\""), "\u010d\u00e1");
+		// Surrogate pair escaped by ConvertTo-Json
+		assertEquals(PowerHellJsonParser.parse("\"\\ud83d\\ude00\""), "\ud83d\ude00");
+	}
+
+	@Test
+	public void test040Object() {
+		Object value = PowerHellJsonParser.parse("{\"Name\":\"svc\",\"Status\":4,\"Tags\":[\"a\",\"b\"],\"Empty\":{},\"None\":null}");
+		assertTrue(value instanceof Map, "Not a map: " + value);
+		Map<?, ?> map = (Map<?, ?>) value;
+		assertEquals(map.get("Name"), "svc");
+		assertEquals(map.get("Status"), 4L);
+		assertEquals(map.get("Tags"), Arrays.asList("a", "b"));
+		assertEquals(map.get("Empty"), Collections.emptyMap());
+		assertTrue(map.containsKey("None"));
+		assertNull(map.get("None"));
+		// Order of properties is kept
+		assertEquals(new ArrayList<>(map.keySet()), Arrays.asList("Name", "Status", "Tags", "Empty", "None"));
+	}
+
+	@Test
+	public void test050Array() {
+		Object value = PowerHellJsonParser.parse("[ 1 , [ ] , { \"a\" : [ true ] } ]");
+		assertTrue(value instanceof List, "Not a list: " + value);
+		List<?> list = (List<?>) value;
+		assertEquals(list.size(), 3);
+		assertEquals(list.get(0), 1L);
+		assertEquals(list.get(1), Collections.emptyList());
+		assertEquals(list.get(2), Collections.singletonMap("a", Collections.singletonList(Boolean.TRUE)));
+	}
+
+	@Test
+	public void test100Malformed() {
+		assertMalformed("");
+		assertMalformed("   ");
+		assertMalformed("WARNING: something");
+		assertMalformed("{");
+		assertMalformed("{\"a\" 1}");
+		assertMalformed("{\"a\":1,}");
+		assertMalformed("{a:1}");
+		assertMalformed("[1 2]");
+		assertMalformed("[1,");
+		assertMalformed("\"unterminated");
+		assertMalformed("\"bad escape \\x\"");
+		assertMalformed("\"\\u12\"");
+		assertMalformed("\"\\uzzzz\"");
+		assertMalformed("tru");
+		assertMalformed("-");
+		assertMalformed("1-2");
+		assertMalformed("{} trailing");
+	}
+
+	private void assertMalformed(String json) {
+		try {
+			Object value = PowerHellJsonParser.parse(json);
+			fail("Unexpected success for '" + json + "': " + value);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
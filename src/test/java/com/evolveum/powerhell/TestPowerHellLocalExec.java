@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * <p>
+ * Tests of {@link PowerHellLocalExecImpl} with ordinary Unix commands.
+ * The tests are skipped if the commands are not available.
+ * </p>
+ *
+ * @author semancik
+ */
+public class TestPowerHellLocalExec {
+
+	private static final String CAT = "/bin/cat";
+
+	@BeforeClass
+	public void setUp() {
+		if (!new File(CAT).canExecute()) {
+			throw new SkipException(CAT + " is not available, skipping local execution tests");
+		}
+	}
+
+	/**
+	 * Interrupted command is killed. It is reported as aborted, not as a failure of the command.
+	 */
+	@Test
+	public void test010Interrupted() throws Exception {
+		PowerHellLocalExecImpl powerHell = new PowerHellLocalExecImpl();
+		powerHell.connect();
+		// Input that never ends, cat waits for it forever
+		PipedWriter input = new PipedWriter();
+		PipedReader stdin = new PipedReader(input);
+
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread thread = new Thread(() -> {
+			try {
+				powerHell.runCommand(CAT, null, stdin, new StringWriter(), new StringWriter());
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		thread.start();
+		Thread.sleep(500L);
+		thread.interrupt();
+		thread.join(5000L);
+		input.close();
+		powerHell.disconnect();
+
+		assertTrue(failure.get() instanceof PowerHellExecutionException, "Unexpected failure: " + failure.get());
+		assertTrue(((PowerHellExecutionException) failure.get()).isAborted(), "Command was not reported as aborted");
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * <p>
+ * Tests of {@link PowerHellLocalLoopImpl} with PowerShell Core ("pwsh").
+ * The tests are skipped if pwsh is not available.
+ * </p>
+ *
+ * @author semancik
+ */
+public class TestPowerHellLocalLoop {
+
+	private static final String PWSH = "pwsh";
+
+	private PowerHellLocalLoopImpl powerHell;
+
+	@BeforeClass
+	public void setUp() throws Exception {
+		if (!isPwshAvailable()) {
+			throw new SkipException("PowerShell Core (" + PWSH + ") is not available, skipping local loop tests");
+		}
+		powerHell = new PowerHellLocalLoopImpl();
+		powerHell.setPowerShellExecutable(PWSH);
+		powerHell.setCommandTimeout(60000L);
+		powerHell.connect();
+	}
+
+	@AfterClass
+	public void tearDown() {
+		if (powerHell != null) {
+			powerHell.disconnect();
+		}
+	}
+
+	@Test
+	public void test010Output() throws Exception {
+		String out = powerHell.runCommand("Write-Output 'hello'", null);
+		assertEquals(out.trim(), "hello");
+	}
+
+	/**
+	 * Output is passed as the command wrote it. Line endings are not changed,
+	 * no line ending is added.
+	 */
+	@Test
+	public void test012RawOutput() throws Exception {
+		assertEquals(powerHell.runCommand("[Console]::Out.Write('no newline')", null), "no newline");
+		assertEquals(powerHell.runCommand("[Console]::Out.Write(\"a`r`nb`n\")", null), "a\r\nb\n");
+	}
+
+	@Test
+	public void test020StateKeptBetweenCommands() throws Exception {
+		powerHell.runCommand("$global:powerhellTest = 42", null);
+		String out = powerHell.runCommand("Write-Output $global:powerhellTest", null);
+		assertEquals(out.trim(), "42", "Variable lost, the commands were not executed in the same process");
+	}
+
+	@Test
+	public void test030Error() throws Exception {
+		try {
+			powerHell.runCommand("Write-Error 'powerhell test error'", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertNotNull(e.getPromptMessage(), "No prompt message");
+			assertTrue(e.getPromptMessage().contains("powerhell test error"), "Unexpected prompt message: " + e.getPromptMessage());
+		}
+
+		// The loop must survive the error
+		String out = powerHell.runCommand("Write-Output 'still alive'", null);
+		assertEquals(out.trim(), "still alive");
+	}
+
+	@Test
+	public void test040ExitRestartsLoop() throws Exception {
+		powerHell.runCommand("exit 0", null);
+
+		String out = powerHell.runCommand("Write-Output 'restarted'", null);
+		assertEquals(out.trim(), "restarted");
+	}
+
+	private boolean isPwshAvailable() {
+		try {
+			Process process = new ProcessBuilder(PWSH, "-NoProfile", "-Command", "exit 0").start();
+			if (!process.waitFor(60, TimeUnit.SECONDS)) {
+				process.destroyForcibly();
+				return false;
+			}
+			return process.exitValue() == 0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * @author semancik
+ */
+public class TestPowerHellObjectWriter {
+
+	@Test
+	public void test010Lines() throws Exception {
+		List<Object> objects = new ArrayList<>();
+		PowerHellObjectWriter writer = new PowerHellObjectWriter(objects::add);
+		writer.write("1\r\n\"a");
+		assertEquals(objects, Arrays.asList(1L));
+		writer.write("b\"\n\n[true]");
+		assertEquals(objects, Arrays.asList(1L, "ab"));
+		writer.close();
+		writer.checkParseErrors();
+		assertEquals(objects, Arrays.asList(1L, "ab", Arrays.asList(Boolean.TRUE)));
+	}
+
+	@Test
+	public void test020UnparsedOutput() throws Exception {
+		List<Object> objects = new ArrayList<>();
+		PowerHellObjectWriter writer = new PowerHellObjectWriter(objects::add);
+		writer.write("1\nHello from console\n2\n");
+		writer.close();
+		assertEquals(objects, Arrays.asList(1L, 2L));
+		try {
+			writer.checkParseErrors();
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertTrue(e.getMessage().contains("JSON"), "Unexpected message: " + e.getMessage());
+			assertEquals(e.getStdout(), "Hello from console\n");
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of {@link PowerHellPoolImpl} with simulated sessions.
+ *
+ * @author semancik
+ */
+public class TestPowerHellPool {
+
+	private final List<SimulatedSession> sessions = new ArrayList<>();
+	private PowerHellPoolImpl pool;
+
+	@AfterMethod
+	public void tearDown() {
+		if (pool != null) {
+			pool.disconnect();
+			pool = null;
+		}
+		sessions.clear();
+	}
+
+	/**
+	 * Session that fails to connect has to be disconnected, it may be connected half-way.
+	 */
+	@Test
+	public void test010ConnectFailureDisconnects() throws Exception {
+		pool = createPool(0, 1, true);
+		pool.connect();
+
+		try {
+			pool.runCommand("Get-Something", null);
+			fail("Unexpected success");
+		} catch (PowerHellCommunicationException e) {
+			// expected
+		}
+
+		assertEquals(sessions.size(), 1);
+		assertTrue(sessions.get(0).disconnected, "Failed session was not disconnected");
+		assertEquals(pool.getNumSessions(), 0);
+	}
+
+	/**
+	 * Session borrowed before the pool was re-connected must not release
+	 * its permit to the new pool. The pool would grow above maximum size.
+	 */
+	@Test
+	public void test020StaleReturnDropped() throws Exception {
+		pool = createPool(0, 1, false);
+		pool.setBorrowTimeout(200L);
+		pool.connect();
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread thread = new Thread(() -> {
+			try {
+				pool.runCommand("Block", null);
+			} catch (PowerHellException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		SimulatedSession.started = started;
+		SimulatedSession.release = release;
+		thread.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		pool.disconnect();
+		pool.connect();
+		release.countDown();
+		thread.join();
+		assertTrue(sessions.get(0).disconnected, "Stale session was not disconnected");
+
+		// Occupy the only place in the new pool, next command has to time out
+		CountDownLatch started2 = new CountDownLatch(1);
+		CountDownLatch release2 = new CountDownLatch(1);
+		SimulatedSession.started = started2;
+		SimulatedSession.release = release2;
+		Thread thread2 = new Thread(() -> {
+			try {
+				pool.runCommand("Block", null);
+			} catch (PowerHellException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		thread2.start();
+		assertTrue(started2.await(5, TimeUnit.SECONDS));
+		try {
+			pool.runCommand("Get-Something", null);
+			fail("Unexpected success, pool is larger than maximum size");
+		} catch (PowerHellCommunicationException e) {
+			// expected, timeout
+		} finally {
+			release2.countDown();
+			thread2.join();
+		}
+	}
+
+	private PowerHellPoolImpl createPool(int minSize, int maxSize, boolean connectFailure) {
+		PowerHellPoolImpl pool = new PowerHellPoolImpl();
+		pool.setMinSize(minSize);
+		pool.setMaxSize(maxSize);
+		pool.setSessionFactory(() -> {
+			SimulatedSession session = new SimulatedSession(connectFailure);
+			synchronized (sessions) {
+				sessions.add(session);
+			}
+			return session;
+		});
+		return pool;
+	}
+
+	private static class SimulatedSession implements PowerHell {
+
+		private static volatile CountDownLatch started;
+		private static volatile CountDownLatch release;
+
+		private final boolean connectFailure;
+		private volatile boolean disconnected = false;
+
+		SimulatedSession(boolean connectFailure) {
+			this.connectFailure = connectFailure;
+		}
+
+		@Override
+		public void connect() throws PowerHellCommunicationException {
+			if (connectFailure) {
+				throw new PowerHellCommunicationException("Connection refused");
+			}
+		}
+
+		@Override
+		public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException {
+			if ("Block".equals(command)) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new PowerHellExecutionException("Interrupted", e);
+				}
+			}
+			return "ok";
+		}
+
+		@Override
+		public int disconnect() {
+			disconnected = true;
+			return 0;
+		}
+
+		@Override
+		public String getImplementationName() {
+			return "Simulated session";
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * @author semancik
+ */
+public class TestPowerHellPromptLoopParser {
+
+	private static final String PROMPT = PowerHellWinRmLoopImpl.PROMPT;
+
+	@Test
+	public void test010Prompt() throws Exception {
+		assertParsed("hello\n" + PROMPT + "\n", "hello\n[END]");
+		assertParsed("a\n" + PROMPT + "\nb\n" + PROMPT + "\n", "a\n[END]b\n[END]");
+	}
+
+	@Test
+	public void test020PromptMessage() throws Exception {
+		assertParsed("out\n" + PROMPT + "something failed\n", "out\n[END:something failed]");
+	}
+
+	@Test
+	public void test030InputRequest() throws Exception {
+		assertParsed(PROMPT + " input\n" + PROMPT + " input\nok\n" + PROMPT + "\n", "[INPUT][INPUT]ok\n[END]");
+	}
+
+	@Test
+	public void test040PromptMessageNotComplete() throws Exception {
+		RecordingLoopHandler handler = new RecordingLoopHandler();
+		PowerHellPromptLoopParser parser = new PowerHellPromptLoopParser(PROMPT, handler);
+		parser.parse("out\n" + PROMPT + "err");
+		assertEquals(handler.getTranscript(), "out\n");
+		parser.parse("or\n");
+		assertEquals(handler.getTranscript(), "out\n[END:error]");
+	}
+
+	@Test
+	public void test050PartialPromptInOutput() throws Exception {
+		String partial = PROMPT.substring(0, 5);
+		assertParsed(partial + "x\n" + PROMPT + "\n", partial + "x\n[END]");
+	}
+
+	@Test
+	public void test060Empty() throws Exception {
+		RecordingLoopHandler handler = new RecordingLoopHandler();
+		PowerHellPromptLoopParser parser = new PowerHellPromptLoopParser(PROMPT, handler);
+		parser.parse(null);
+		parser.parse("");
+		assertEquals(handler.getTranscript(), "");
+	}
+
+	/**
+	 * Parses the data in one piece, split into two chunks at every position and char by char.
+	 * The result must always be the same.
+	 */
+	private void assertParsed(String data, String expectedTranscript) throws Exception {
+		assertEquals(parse(data), expectedTranscript, "Whole data");
+		for (int split = 1; split < data.length(); split++) {
+			assertEquals(parse(data.substring(0, split), data.substring(split)), expectedTranscript, "Split at " + split);
+		}
+		String[] chars = new String[data.length()];
+		for (int i = 0; i < data.length(); i++) {
+			chars[i] = data.substring(i, i + 1);
+		}
+		assertEquals(parse(chars), expectedTranscript, "Char by char");
+	}
+
+	private String parse(String... chunks) throws Exception {
+		RecordingLoopHandler handler = new RecordingLoopHandler();
+		PowerHellPromptLoopParser parser = new PowerHellPromptLoopParser(PROMPT, handler);
+		for (String chunk : chunks) {
+			parser.parse(chunk);
+		}
+		return handler.getTranscript();
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests of {@link PowerHellScriptEncoder}. The results are compared with the JDK
+ * encoders that were used before.
+ *
+ * @author semancik
+ */
+public class TestPowerHellScriptEncoder {
+
+	private static final List<String> SAMPLES = Arrays.asList(
+			"",
+			"a", "ab", "abc", "abcd", "abcde", "abcdef", "abcdefg",
+			"Get-User -Identity 'jack'",
+			"\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148",
+			"\u65e5\u672c\u8a9e",
+			// surrogate pairs
+			"\ud83d\ude00", "x\ud83d\ude00y", "\ud83d\ude00\ud83d\ude01",
+			// lone surrogates
+			"\ud83d", "\ude00", "x\ud83dy", "x\ude00y", "\ude00\ud83d", "\ud83d\ud83d\ude00",
+			"ends with high \ud83d",
+			// quotes
+			"'", "''", "it's", "'quoted'", "\"double\"", "\u2018smart\u2019");
+
+	@Test
+	public void test010Utf16LeBase64() throws Exception {
+		for (String sample : SAMPLES) {
+			assertEquals(utf16LeBase64(sample), Base64.getEncoder().encodeToString(sample.getBytes(StandardCharsets.UTF_16LE)), "Wrong encoding of " + escape(sample));
+		}
+	}
+
+	@Test
+	public void test012Utf16LeBase64Random() throws Exception {
+		Random random = new Random(42L);
+		for (int i = 0; i < 1000; i++) {
+			char[] chars = new char[random.nextInt(40)];
+			for (int j = 0; j < chars.length; j++) {
+				// Plenty of surrogates, paired and unpaired
+				chars[j] = random.nextBoolean() ? (char) (0xD800 + random.nextInt(0x800)) : (char) random.nextInt(0x10000);
+			}
+			String sample = new String(chars);
+			assertEquals(utf16LeBase64(sample), Base64.getEncoder().encodeToString(sample.getBytes(StandardCharsets.UTF_16LE)), "Wrong encoding of " + escape(sample));
+		}
+	}
+
+	@Test
+	public void test014Utf16LeBase64Appends() throws Exception {
+		StringBuilder sb = new StringBuilder("prefix ");
+		PowerHellScriptEncoder.appendUtf16LeBase64(sb, "abc");
+		assertEquals(sb.toString(), "prefix " + Base64.getEncoder().encodeToString("abc".getBytes(StandardCharsets.UTF_16LE)));
+	}
+
+	/**
+	 * JDK replaces unpaired surrogates by '?' in UTF-8, the encoder uses replacement character.
+	 */
+	@Test
+	public void test020Utf8Base64() throws Exception {
+		for (String sample : SAMPLES) {
+			String expected = sample.replaceAll("[\ud800-\udbff](?![\udc00-\udfff])|(?<![\ud800-\udbff])[\udc00-\udfff]", "\ufffd");
+			StringBuilder sb = new StringBuilder();
+			PowerHellScriptEncoder.appendUtf8Base64(sb, sample);
+			assertEquals(sb.toString(), Base64.getEncoder().encodeToString(expected.getBytes(StandardCharsets.UTF_8)), "Wrong encoding of " + escape(sample));
+		}
+	}
+
+	@Test
+	public void test030QuotedSingle() throws Exception {
+		for (String sample : SAMPLES) {
+			StringBuilder sb = new StringBuilder();
+			PowerHellScriptEncoder.appendQuotedSingle(sb, sample);
+			assertEquals(sb.toString(), "'" + sample.replaceAll("'", "''") + "'", "Wrong quoting of " + escape(sample));
+		}
+	}
+
+	@Test
+	public void test040NoArguments() throws Exception {
+		PowerHellLocalExecPowerShellImpl powerHell = new PowerHellLocalExecPowerShellImpl();
+		String command = "Get-User 'jack'";
+
+		assertEquals(powerHell.createPowerShellScripWithArguments(command, null), command);
+		assertEquals(powerHell.createPowerShellScripWithArguments(command, Collections.emptyMap()), command);
+		powerHell.setArgumentStyle(ArgumentStyle.VARIABLES);
+		assertEquals(powerHell.createPowerShellScripWithArguments(command, Collections.emptyMap()), command);
+
+		String encoded = Base64.getEncoder().encodeToString(command.getBytes(StandardCharsets.UTF_16LE));
+		assertEquals(powerHell.encodePowerShellToString(command, null), "powershell -EncodedCommand " + encoded);
+		assertEquals(powerHell.encodePowerShellToList(command, null), Arrays.asList("powershell", "-EncodedCommand", encoded));
+		assertEquals(powerHell.encodePowerShellToList(command, Collections.emptyMap()), Arrays.asList("powershell", "-EncodedCommand", encoded));
+	}
+
+	@Test
+	public void test042NullArgumentValues() throws Exception {
+		PowerHellLocalExecPowerShellImpl powerHell = new PowerHellLocalExecPowerShellImpl();
+		Map<String, Object> arguments = new LinkedHashMap<>();
+		arguments.put("Identity", "o'hara");
+		arguments.put("Force", null);
+
+		assertEquals(powerHell.createPowerShellScripWithArguments("Get-User", arguments), "Get-User -Identity o'hara -Force");
+		powerHell.setArgumentStyle(ArgumentStyle.VARIABLES);
+		assertEquals(powerHell.createPowerShellScripWithArguments("Get-User", arguments), "$Identity = 'o''hara'; $Force = $null; Get-User");
+		assertEquals(powerHell.quoteSingle(null), "");
+		assertEquals(powerHell.quoteSingle("o'hara"), "'o''hara'");
+	}
+
+	private String utf16LeBase64(String text) {
+		StringBuilder sb = new StringBuilder();
+		PowerHellScriptEncoder.appendUtf16LeBase64(sb, text);
+		return sb.toString();
+	}
+
+	private String escape(String text) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : text.toCharArray()) {
+			if (c < 0x20 || c > 0x7E) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
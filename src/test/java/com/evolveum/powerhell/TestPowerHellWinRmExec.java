@@ -0,0 +1,428 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.ws.WebServiceException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.evolveum.powerhell.PowerHellFakeTransport.Response;
+
+/**
+ * Tests of {@link PowerHellWinRmExecImpl} with {@link PowerHellFakeTransport}.
+ *
+ * @author semancik
+ */
+public class TestPowerHellWinRmExec {
+
+	private static final String STALE_SHELL_MESSAGE = "The WS-Management service cannot process the request because the request contained invalid selectors for the resource.";
+
+	private PowerHellFakeTransport transport;
+	private PowerHellWinRmExecImpl powerHell;
+	private final AtomicInteger transports = new AtomicInteger();
+
+	@AfterMethod
+	public void tearDown() {
+		if (powerHell != null) {
+			powerHell.disconnect();
+			powerHell = null;
+		}
+	}
+
+	@Test
+	public void test010Output() throws Exception {
+		connect();
+
+		assertEquals(powerHell.runCommand("Write-Output hello", null), "hello\r\n");
+		assertEquals(powerHell.runCommand("Write-Output world", null), "world\r\n");
+
+		assertEquals(transports.get(), 1, "Client was not re-used");
+	}
+
+	@Test
+	public void test020ExitCode() throws Exception {
+		connect();
+
+		try {
+			powerHell.runCommand("Exit 3", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertEquals(e.getExitCode(), Integer.valueOf(3));
+		}
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+	}
+
+	@Test
+	public void test030RetryStaleClient() throws Exception {
+		connect();
+		assertEquals(powerHell.runCommand("Write-Output first", null), "first\r\n");
+		powerHell.getRetryPolicy().setIdempotentPredicate((command, arguments) -> false);
+		// Fault before the command was created, e.g. the shell is gone
+		AtomicInteger faults = new AtomicInteger(1);
+		transport.setResponder(script -> {
+			if (faults.getAndDecrement() > 0) {
+				throw new WebServiceException(STALE_SHELL_MESSAGE);
+			}
+			return TestPowerHellWinRmLoop.respond(script);
+		});
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+
+		assertEquals(transports.get(), 2, "Client was not re-connected");
+	}
+
+	@Test
+	public void test032NoRetryOfCreatedCommand() throws Exception {
+		connect();
+		powerHell.getRetryPolicy().setIdempotentPredicate((command, arguments) -> !command.startsWith("Set-"));
+		assertEquals(powerHell.runCommand("Write-Output first", null), "first\r\n");
+		// Fault after the command was created, it may have done its job already
+		transport.setResponder(script -> Response.fault(new WebServiceException(STALE_SHELL_MESSAGE)));
+
+		try {
+			powerHell.runCommand("Set-Something", null);
+			fail("Unexpected success");
+		} catch (WebServiceException e) {
+			// expected
+		}
+		assertEquals(transport.getScripts().size(), 2, "Command was executed again");
+	}
+
+	@Test
+	public void test034RetryOfCreatedIdempotentCommand() throws Exception {
+		connect();
+		powerHell.getRetryPolicy().setIdempotentPredicate((command, arguments) -> !command.startsWith("Set-"));
+		assertEquals(powerHell.runCommand("Write-Output first", null), "first\r\n");
+		AtomicInteger faults = new AtomicInteger(1);
+		transport.setResponder(script -> {
+			if (faults.getAndDecrement() > 0) {
+				return Response.fault(new WebServiceException(STALE_SHELL_MESSAGE));
+			}
+			return TestPowerHellWinRmLoop.respond(script);
+		});
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+		assertEquals(transports.get(), 2, "Client was not re-connected");
+	}
+
+	/**
+	 * Timeout before the command was created does not mean that the command did not run,
+	 * the request may have reached the server.
+	 */
+	/**
+	 * Caller has already got part of the output, it would get it twice if the command was executed again.
+	 */
+	@Test
+	public void test035NoRetryAfterPartialOutput() throws Exception {
+		connect();
+		powerHell.getRetryPolicy().setIdempotentPredicate((command, arguments) -> true);
+		assertEquals(powerHell.runCommand("Write-Output first", null), "first\r\n");
+		AtomicInteger faults = new AtomicInteger(1);
+		transport.setResponder(script -> {
+			if (faults.getAndDecrement() > 0) {
+				return Response.faultAfterOutput("partial\r\n", new WebServiceException(STALE_SHELL_MESSAGE));
+			}
+			return TestPowerHellWinRmLoop.respond(script);
+		});
+
+		StringWriter stdout = new StringWriter();
+		try {
+			powerHell.runCommand("Write-Output ok", null, stdout, new StringWriter());
+			fail("Unexpected success");
+		} catch (WebServiceException e) {
+			// expected
+		}
+		assertEquals(stdout.toString(), "partial\r\n");
+		assertEquals(transport.getScripts().size(), 2, "Command was executed again");
+	}
+
+	@Test
+	public void test036NoRetryOfNonIdempotentCommandAfterTimeout() throws Exception {
+		connect();
+		powerHell.getRetryPolicy().setIdempotentPredicate((command, arguments) -> !command.startsWith("Set-"));
+		assertEquals(powerHell.runCommand("Write-Output first", null), "first\r\n");
+		transport.setResponder(script -> {
+			throw new WebServiceException("Read timed out");
+		});
+
+		try {
+			powerHell.runCommand("Set-Something", null);
+			fail("Unexpected success");
+		} catch (WebServiceException e) {
+			// expected
+		}
+		assertEquals(transport.getScripts().size(), 2, "Command was executed again");
+	}
+
+	@Test
+	public void test038RetryBackoff() throws Exception {
+		connect();
+		powerHell.getRetryPolicy().setInitialBackoff(300L);
+		powerHell.getRetryPolicy().setJitter(0);
+		assertEquals(powerHell.runCommand("Write-Output first", null), "first\r\n");
+		AtomicInteger faults = new AtomicInteger(1);
+		transport.setResponder(script -> {
+			if (faults.getAndDecrement() > 0) {
+				throw new WebServiceException(STALE_SHELL_MESSAGE);
+			}
+			return TestPowerHellWinRmLoop.respond(script);
+		});
+
+		long start = System.currentTimeMillis();
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+		assertTrue(System.currentTimeMillis() - start >= 300L, "Command was re-tried without waiting");
+	}
+
+	/**
+	 * Command has ended successfully, fault while releasing it does not change that.
+	 */
+	@Test
+	public void test039ReleaseFault() throws Exception {
+		transport = new PowerHellFakeTransport();
+		transport.setResponder(TestPowerHellWinRmLoop::respond);
+		powerHell = new PowerHellWinRmExecImpl();
+		powerHell.getRetryPolicy().setIdempotentPredicate((command, arguments) -> true);
+		powerHell.setTransportFactory(ph -> new RecordingTransport(new ArrayList<>(), true));
+		powerHell.connect();
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+		assertEquals(transport.getScripts().size(), 2, "Command was executed again");
+	}
+
+	@Test
+	public void test040NoRetryOfAuthenticationFault() throws Exception {
+		connect();
+		transport.setResponder(script -> {
+			throw new WebServiceException("Access is denied.");
+		});
+
+		try {
+			powerHell.runCommand("Write-Output ok", null);
+			fail("Unexpected success");
+		} catch (WebServiceException e) {
+			// expected
+		}
+		assertEquals(transport.getScripts().size(), 1, "Command was sent again");
+	}
+
+	@Test
+	public void test050Timeout() throws Exception {
+		connect();
+		powerHell.setCommandTimeout(300L);
+
+		long start = System.currentTimeMillis();
+		try {
+			powerHell.runCommand("Sleep 5000", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertTrue(e.getMessage().contains("did not finish"), "Unexpected message: " + e.getMessage());
+		}
+		assertTrue(System.currentTimeMillis() - start < 3000, "Command was not aborted in time");
+		assertEquals(transport.getActiveCommands(), 0, "Aborted command was not released");
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+		assertEquals(transports.get(), 1, "Client was not kept after timeout");
+	}
+
+	@Test
+	public void test060Multiplexing() throws Exception {
+		connect();
+		powerHell.setMaxConcurrentCommands(4);
+
+		List<CompletableFuture<String>> futures = new ArrayList<>();
+		for (int i = 0; i < 12; i++) {
+			futures.add(powerHell.runCommandAsync("Sleep 200", null));
+		}
+		for (CompletableFuture<String> future : futures) {
+			assertEquals(future.get(10, TimeUnit.SECONDS), "");
+		}
+
+		assertEquals(transport.getMaxActiveCommands(), 4, "Unexpected number of concurrent commands");
+		assertEquals(transports.get(), 1, "Commands were not multiplexed on one client");
+	}
+
+	@Test
+	public void test070FailedClientKeptForRunningCommands() throws Exception {
+		List<PowerHellFakeTransport> clients = new ArrayList<>();
+		AtomicInteger faults = new AtomicInteger(1);
+		powerHell = new PowerHellWinRmExecImpl();
+		powerHell.setMaxConcurrentCommands(4);
+		powerHell.setTransportFactory(ph -> {
+			PowerHellFakeTransport client = new PowerHellFakeTransport();
+			client.setResponder(script -> {
+				if (script.equals("Fault") && faults.getAndDecrement() > 0) {
+					throw new WebServiceException(STALE_SHELL_MESSAGE);
+				}
+				return TestPowerHellWinRmLoop.respond(script);
+			});
+			synchronized (clients) {
+				clients.add(client);
+			}
+			return client;
+		});
+		powerHell.connect();
+		PowerHellFakeTransport firstClient = clients.get(0);
+
+		List<CompletableFuture<String>> futures = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			futures.add(powerHell.runCommandAsync("Sleep 1000", null));
+		}
+		long waitUntil = System.currentTimeMillis() + 5000;
+		while (firstClient.getActiveCommands() < 3 && System.currentTimeMillis() < waitUntil) {
+			Thread.sleep(10);
+		}
+
+		// Fails on the first client, re-tried on a new one
+		assertEquals(powerHell.runCommand("Fault", null), "");
+		assertEquals(clients.size(), 2, "Client was not re-connected");
+		assertEquals(firstClient.getDisconnects(), 0, "Failed client was disconnected while other commands were running on it");
+
+		for (CompletableFuture<String> future : futures) {
+			assertEquals(future.get(10, TimeUnit.SECONDS), "");
+		}
+		assertEquals(firstClient.getDisconnects(), 1, "Failed client was not disconnected after the last command");
+		assertEquals(clients.get(1).getDisconnects(), 0, "Current client was disconnected");
+	}
+
+	@Test
+	public void test080Input() throws Exception {
+		transport = new PowerHellFakeTransport();
+		transport.setResponder(script -> script.contains("Read-PowerHellInput") ? Response.output("ok\r\n") : Response.exit(1));
+		List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		powerHell = new PowerHellWinRmExecPowerShellImpl();
+		powerHell.setInputChunkSize(4);
+		powerHell.setTransportFactory(ph -> new RecordingTransport(sent, false));
+		powerHell.connect();
+
+		StringWriter stdout = new StringWriter();
+		powerHell.runCommand("Read-PowerHellInput | Write-Output", null, new StringReader("one\ntwo"), stdout, new StringWriter());
+
+		assertEquals(stdout.toString(), "ok\r\n");
+		assertEquals(sent.size(), 3, "Unexpected input chunks: " + sent);
+		assertEquals(decodeChunk(sent.get(0)), "one\n");
+		assertEquals(decodeChunk(sent.get(1)), "two");
+		assertEquals(sent.get(2), PowerHellWinRmLoopImpl.PROMPT + " eof\r\n");
+		assertTrue(transport.getScripts().get(0).contains("function global:Read-PowerHellInput"), "Input function was not defined");
+	}
+
+	@Test
+	public void test082InputNotSupported() throws Exception {
+		connect();
+
+		try {
+			powerHell.runCommand("Write-Output ok", null, new StringReader("input"), new StringWriter(), new StringWriter());
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			// expected
+		}
+		assertTrue(transport.getScripts().isEmpty(), "Command was executed");
+	}
+
+	private String decodeChunk(String chunk) {
+		return new String(Base64.getDecoder().decode(chunk.trim()), StandardCharsets.UTF_8);
+	}
+
+	private void connect() throws Exception {
+		transport = new PowerHellFakeTransport();
+		transport.setResponder(TestPowerHellWinRmLoop::respond);
+		transports.set(0);
+		powerHell = new PowerHellWinRmExecImpl();
+		powerHell.setTransportFactory(ph -> {
+			transports.incrementAndGet();
+			return transport;
+		});
+		powerHell.connect();
+	}
+
+	/**
+	 * Passes everything to the fake transport, records input sent to the commands.
+	 * Release of the commands may be set to fail with a fault.
+	 */
+	private class RecordingTransport implements PowerHellTransport {
+
+		private final List<String> sent;
+		private final boolean releaseFault;
+
+		RecordingTransport(List<String> sent, boolean releaseFault) {
+			this.sent = sent;
+			this.releaseFault = releaseFault;
+		}
+
+		@Override
+		public int command(String commandLine, Writer stdout, Writer stderr) {
+			return transport.command(commandLine, stdout, stderr);
+		}
+
+		@Override
+		public PowerHellTransportCommand commandAsync(String commandLine) {
+			PowerHellTransportCommand command = transport.commandAsync(commandLine);
+			return new PowerHellTransportCommand() {
+				@Override
+				public Integer receive() {
+					return command.receive();
+				}
+
+				@Override
+				public String getLastOut() {
+					return command.getLastOut();
+				}
+
+				@Override
+				public String getLastErr() {
+					return command.getLastErr();
+				}
+
+				@Override
+				public void send(String input) {
+					sent.add(input);
+					command.send(input);
+				}
+
+				@Override
+				public void release() {
+					command.release();
+					if (releaseFault) {
+						throw new WebServiceException("Read timed out");
+					}
+				}
+			};
+		}
+
+		@Override
+		public void disconnect() {
+			transport.disconnect();
+		}
+	}
+}
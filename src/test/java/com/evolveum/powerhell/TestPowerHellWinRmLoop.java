@@ -0,0 +1,431 @@
+/**
+ * Copyright (c) 2017-2022 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.powerhell;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.ws.WebServiceException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.evolveum.powerhell.PowerHellFakeTransport.Response;
+
+/**
+ * Tests of {@link PowerHellWinRmLoopImpl} with {@link PowerHellFakeTransport}.
+ *
+ * @author semancik
+ */
+public class TestPowerHellWinRmLoop {
+
+	private static final String STALE_SHELL_MESSAGE = "The WS-Management service cannot process the request because the request contained invalid selectors for the resource.";
+
+	private PowerHellFakeTransport transport;
+	private PowerHellWinRmLoopImpl powerHell;
+	private final AtomicInteger transports = new AtomicInteger();
+	private final AtomicInteger loopStarts = new AtomicInteger();
+
+	@AfterMethod
+	public void tearDown() {
+		if (powerHell != null) {
+			powerHell.disconnect();
+			powerHell = null;
+		}
+	}
+
+	@Test
+	public void test010Output() throws Exception {
+		connect(LoopProtocol.PROMPT);
+
+		assertEquals(powerHell.runCommand("Write-Output hello", null), "hello\r\n");
+		assertEquals(powerHell.runCommand("Write-Output world", null), "world\r\n");
+
+		assertEquals(transport.getScripts(), Arrays.asList("Write-Output hello\n", "Write-Output world\n"));
+		assertEquals(loopStarts.get(), 1);
+	}
+
+	/**
+	 * Prompts (including the first one) and frames are split between receives.
+	 */
+	@Test
+	public void test012SplitOutput() throws Exception {
+		for (LoopProtocol protocol : LoopProtocol.values()) {
+			connect(protocol, 7);
+
+			assertEquals(powerHell.runCommand("Write-Output hello", null), "hello\r\n");
+			assertEquals(powerHell.runCommand("Write-Output world", null), "world\r\n");
+			assertEquals(loopStarts.get(), 1);
+
+			tearDown();
+		}
+	}
+
+	@Test
+	public void test020Error() throws Exception {
+		connect(LoopProtocol.PROMPT);
+
+		try {
+			powerHell.runCommand("Fail boom", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			// Prompt protocol keeps the line end
+			assertEquals(e.getPromptMessage().trim(), "boom");
+			assertNull(e.getExitCode());
+		}
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+		assertEquals(loopStarts.get(), 1, "Loop was restarted after error");
+	}
+
+	@Test
+	public void test030ExitRestartsLoop() throws Exception {
+		connect(LoopProtocol.PROMPT);
+
+		assertEquals(powerHell.runCommand("Exit 0", null), "");
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+
+		assertEquals(loopStarts.get(), 2);
+	}
+
+	@Test
+	public void test040ExitCodeFailure() throws Exception {
+		connect(LoopProtocol.PROMPT);
+
+		try {
+			powerHell.runCommand("Exit 3", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertEquals(e.getExitCode(), Integer.valueOf(3));
+		}
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+	}
+
+	@Test
+	public void test050Batch() throws Exception {
+		connect(LoopProtocol.PROMPT);
+
+		List<PowerHellCommandResult> results = powerHell.runCommands(Arrays.asList(
+				new PowerHellCommand("Write-Output a"), new PowerHellCommand("Fail b"), new PowerHellCommand("Write-Output c")));
+
+		assertEquals(results.size(), 3);
+		assertEquals(results.get(0).getStdout(), "a\r\n");
+		assertEquals(results.get(1).getErrorMessage().trim(), "b");
+		assertEquals(results.get(2).getStdout(), "c\r\n");
+	}
+
+	@Test
+	public void test060BatchExit() throws Exception {
+		connect(LoopProtocol.PROMPT);
+
+		List<PowerHellCommandResult> results = powerHell.runCommands(Arrays.asList(
+				new PowerHellCommand("Write-Output a"), new PowerHellCommand("Exit 0"), new PowerHellCommand("Write-Output c")));
+
+		assertEquals(results.size(), 2, "Unexpected results " + results);
+		assertTrue(results.get(1).isSuccess());
+
+		try {
+			powerHell.runCommands(Arrays.asList(
+					new PowerHellCommand("Write-Output a"), new PowerHellCommand("Exit 5"), new PowerHellCommand("Write-Output c")));
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertEquals(e.getExitCode(), Integer.valueOf(5));
+			assertEquals(e.getCommandResults().size(), 1);
+			assertEquals(e.getCommandResults().get(0).getStdout(), "a\r\n");
+		}
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+	}
+
+	@Test
+	public void test070RetryStaleShell() throws Exception {
+		connect(LoopProtocol.PROMPT);
+		AtomicInteger faults = new AtomicInteger(1);
+		transport.setResponder(script -> {
+			if (faults.getAndDecrement() > 0) {
+				throw new WebServiceException(STALE_SHELL_MESSAGE);
+			}
+			return respond(script);
+		});
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+
+		assertEquals(transports.get(), 2, "Client was not re-connected");
+		assertEquals(loopStarts.get(), 2, "Loop was not re-started");
+	}
+
+	@Test
+	public void test080NoRetryOfNonIdempotentCommand() throws Exception {
+		connect(LoopProtocol.PROMPT);
+		powerHell.getRetryPolicy().setIdempotentPredicate((command, arguments) -> !command.startsWith("Set-"));
+		AtomicInteger faults = new AtomicInteger(1);
+		transport.setResponder(script -> {
+			if (faults.getAndDecrement() > 0) {
+				throw new WebServiceException("Read timed out");
+			}
+			return respond(script);
+		});
+
+		try {
+			powerHell.runCommand("Set-Something", null);
+			fail("Unexpected success");
+		} catch (WebServiceException e) {
+			// expected
+		}
+		assertEquals(transport.getScripts().size(), 1, "Command was sent again");
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+	}
+
+	@Test
+	public void test090Timeout() throws Exception {
+		connect(LoopProtocol.PROMPT);
+		powerHell.setCommandTimeout(300L);
+
+		long start = System.currentTimeMillis();
+		try {
+			powerHell.runCommand("Sleep 5000", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertTrue(e.getMessage().contains("did not finish"), "Unexpected message: " + e.getMessage());
+		}
+		assertTrue(System.currentTimeMillis() - start < 3000, "Command was not aborted in time");
+
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+		assertEquals(loopStarts.get(), 2, "Loop was not re-started");
+		assertEquals(transport.getActiveCommands(), 1, "Aborted loop was not released");
+	}
+
+	@Test
+	public void test100Framed() throws Exception {
+		connect(LoopProtocol.FRAMED);
+
+		assertEquals(powerHell.runCommand("Write-Output hello", null), "hello\r\n");
+		try {
+			powerHell.runCommand("Fail boom", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			assertEquals(e.getPromptMessage(), "boom");
+		}
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+		assertEquals(loopStarts.get(), 1);
+	}
+
+	@Test
+	public void test110DisconnectAfterTimeout() throws Exception {
+		connect(LoopProtocol.PROMPT);
+		powerHell.setCommandTimeout(300L);
+		try {
+			powerHell.runCommand("Sleep 5000", null);
+			fail("Unexpected success");
+		} catch (PowerHellExecutionException e) {
+			// expected
+		}
+		int scripts = transport.getScripts().size();
+
+		// Loop is not running, there is nothing to exit
+		assertEquals(powerHell.disconnect(), -1);
+		assertEquals(transport.getScripts().size(), scripts, "Loop was started just to be exited");
+		assertEquals(transport.getDisconnects(), 1, "Client was not disconnected");
+		assertEquals(transport.getActiveCommands(), 0);
+	}
+
+	@Test
+	public void test120RegisteredScript() throws Exception {
+		transport = new PowerHellFakeTransport();
+		transport.setResponder(script -> respond(script.trim().substring(script.trim().lastIndexOf('\n') + 1)));
+		List<String> commandLines = new ArrayList<>();
+		powerHell = new PowerHellWinRmLoopImpl();
+		powerHell.setTransportFactory(ph -> new PowerHellTransport() {
+			@Override
+			public int command(String commandLine, Writer stdout, Writer stderr) {
+				return transport.command(commandLine, stdout, stderr);
+			}
+
+			@Override
+			public PowerHellTransportCommand commandAsync(String commandLine) {
+				commandLines.add(commandLine);
+				return transport.commandAsync(commandLine);
+			}
+
+			@Override
+			public void disconnect() {
+				transport.disconnect();
+			}
+		});
+		StringBuilder script = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			script.append("# padding\n");
+		}
+		String name = powerHell.registerScript(script.toString());
+		powerHell.connect();
+
+		assertTrue(commandLines.get(0).length() < script.length(), "Registered script is part of the loop command line");
+
+		// Definition is sent with the first invocation only
+		assertEquals(powerHell.runScript(name, null), "");
+		assertEquals(powerHell.runScript(name, null), "");
+		List<String> scripts = transport.getScripts();
+		assertTrue(scripts.get(0).contains("function:global:" + name), "Function was not defined: " + scripts.get(0));
+		assertEquals(scripts.get(1), name + "\n");
+
+		// Re-started loop needs the definition again
+		powerHell.runCommand("Exit 0", null);
+		powerHell.runScript(name, null);
+		scripts = transport.getScripts();
+		assertTrue(scripts.get(3).contains("function:global:" + name), "Function was not re-defined: " + scripts.get(3));
+		assertEquals(commandLines.size(), 2);
+	}
+
+	/**
+	 * Keepalive is reported to the listener, each of them exactly once.
+	 */
+	@Test
+	public void test190KeepAliveMetrics() throws Exception {
+		List<PowerHellCommandMetrics> commands = Collections.synchronizedList(new ArrayList<>());
+		transport = new PowerHellFakeTransport();
+		transport.setResponder(TestPowerHellWinRmLoop::respond);
+		powerHell = new PowerHellWinRmLoopImpl();
+		powerHell.setKeepAliveInterval(2000L);
+		powerHell.setTransportFactory(ph -> transport);
+		powerHell.setListener(new PowerHellListener() {
+			@Override
+			public void onCommand(PowerHellCommandMetrics metrics) {
+				commands.add(metrics);
+			}
+		});
+		powerHell.connect();
+
+		Thread.sleep(3500L);
+
+		List<String> scripts = transport.getScripts();
+		assertTrue(scripts.size() >= 1, "No keepalive was sent");
+		assertEquals(commands.size(), scripts.size(), "Keepalives were not reported");
+		for (PowerHellCommandMetrics metrics : commands) {
+			assertTrue(metrics.isSuccess(), "Keepalive was not successful: " + metrics);
+			assertTrue(metrics.getCharsSent() > 0, "Keepalive was not sent: " + metrics);
+		}
+	}
+
+	@Test
+	public void test200KeepAliveBackoff() throws Exception {
+		transport = new PowerHellFakeTransport();
+		transport.setResponder(TestPowerHellWinRmLoop::respond);
+		AtomicBoolean hostDown = new AtomicBoolean(false);
+		AtomicInteger attempts = new AtomicInteger();
+		powerHell = new PowerHellWinRmLoopImpl();
+		powerHell.setKeepAliveInterval(2000L);
+		powerHell.setTransportFactory(ph -> {
+			if (hostDown.get()) {
+				attempts.incrementAndGet();
+				throw new WebServiceException("Connection refused");
+			}
+			return new PowerHellTransport() {
+				@Override
+				public int command(String commandLine, Writer stdout, Writer stderr) {
+					return transport.command(commandLine, stdout, stderr);
+				}
+
+				@Override
+				public PowerHellTransportCommand commandAsync(String commandLine) {
+					if (hostDown.get()) {
+						attempts.incrementAndGet();
+						throw new WebServiceException("Connection refused");
+					}
+					return transport.commandAsync(commandLine);
+				}
+
+				@Override
+				public void disconnect() {
+					transport.disconnect();
+				}
+			};
+		});
+		powerHell.connect();
+
+		// Loop exits, keepalive tries to re-start it in advance (every second without backoff)
+		powerHell.runCommand("Exit 0", null);
+		hostDown.set(true);
+		Thread.sleep(5500L);
+
+		assertTrue(attempts.get() >= 2, "Keepalive did not try to re-start the loop");
+		assertTrue(attempts.get() <= 3, "Keepalive does not back off, " + attempts.get() + " attempts");
+		assertEquals(transport.getActiveCommands(), 0, "Loop command was not released");
+
+		// Commands are not affected by keepalive backoff
+		hostDown.set(false);
+		assertEquals(powerHell.runCommand("Write-Output ok", null), "ok\r\n");
+	}
+
+	private void connect(LoopProtocol protocol) throws Exception {
+		connect(protocol, 0);
+	}
+
+	private void connect(LoopProtocol protocol, int maxReceiveLength) throws Exception {
+		transport = new PowerHellFakeTransport();
+		transport.setLoopProtocol(protocol);
+		transport.setMaxReceiveLength(maxReceiveLength);
+		transport.setResponder(TestPowerHellWinRmLoop::respond);
+		transports.set(0);
+		loopStarts.set(0);
+		powerHell = new PowerHellWinRmLoopImpl();
+		powerHell.setLoopProtocol(protocol);
+		powerHell.setTransportFactory(ph -> {
+			transports.incrementAndGet();
+			return transport;
+		});
+		powerHell.setListener(new PowerHellListener() {
+			@Override
+			public void onLoopStart(String implementationName, String endpoint, long durationNanos) {
+				loopStarts.incrementAndGet();
+			}
+		});
+		powerHell.connect();
+	}
+
+	/**
+	 * Simple command language: "Write-Output text", "Fail message", "Exit code", "Sleep millis".
+	 */
+	static Response respond(String script) {
+		String command = script.trim();
+		int space = command.indexOf(' ');
+		String verb = space < 0 ? command : command.substring(0, space);
+		String argument = space < 0 ? "" : command.substring(space + 1);
+		switch (verb) {
+			case "Write-Output":
+				return Response.output(argument + "\r\n");
+			case "Fail":
+				return Response.error(argument);
+			case "Exit":
+				return Response.exit(Integer.parseInt(argument));
+			case "Sleep":
+				return Response.output("").delay(Long.parseLong(argument));
+			default:
+				return Response.output("");
+		}
+	}
+}